@@ -0,0 +1,78 @@
+package com.flipboard.psync.benchmark;
+
+import com.flipboard.psync.GenerationOptions;
+import com.flipboard.psync.PClassGenerator;
+import com.flipboard.psync.PrefEntry;
+import com.flipboard.psync.PrefEntryParser;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating the P class from already parsed entries, both in memory and written out to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GenerateBenchmark {
+
+    private static final String PACKAGE_NAME = "com.flipboard.psync.benchmark.generated";
+
+    @Param({"10", "1000", "50000"})
+    public int keys;
+
+    @Param({"false", "true"})
+    public boolean generateRx;
+
+    private File outputDir;
+    private List<PrefEntry> entries;
+    private GenerationOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File corpusDir = Files.createTempDir();
+        List<File> sources = PrefCorpus.write(corpusDir, keys, 10);
+        entries = PrefEntryParser.getPrefEntriesFromFiles(sources).toBlocking().first();
+        for (File source : sources) {
+            source.delete();
+        }
+        corpusDir.delete();
+
+        options = GenerationOptions.create(generateRx);
+        outputDir = Files.createTempDir();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File packageDir = new File(outputDir, PACKAGE_NAME.replace('.', File.separatorChar));
+        new File(packageDir, "P.java").delete();
+        for (File dir = packageDir; !dir.equals(outputDir.getParentFile()); dir = dir.getParentFile()) {
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public String generateSource() {
+        return PClassGenerator.generateSource(entries, PACKAGE_NAME, "P", options);
+    }
+
+    @Benchmark
+    public File generate() throws IOException {
+        PClassGenerator.generate(entries, PACKAGE_NAME, outputDir, "P", options);
+        return outputDir;
+    }
+}
@@ -0,0 +1,64 @@
+package com.flipboard.psync.benchmark;
+
+import com.flipboard.psync.PrefEntry;
+import com.flipboard.psync.PrefEntryParser;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a whole corpus of preference files into the merged entry list, the way the task does on a
+ * clean build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    public int keys;
+
+    @Param({"1", "100", "1000"})
+    public int files;
+
+    private File corpusDir;
+    private List<File> sources;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpusDir = Files.createTempDir();
+        sources = PrefCorpus.write(corpusDir, keys, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File source : sources) {
+            source.delete();
+        }
+        corpusDir.delete();
+    }
+
+    @Benchmark
+    public List<PrefEntry> getPrefEntriesFromFiles() {
+        return PrefEntryParser.getPrefEntriesFromFiles(sources).toBlocking().first();
+    }
+
+    @Benchmark
+    public List<PrefEntry> getPrefEntriesFromFilesSequential() {
+        return PrefEntryParser.getPrefEntriesFromFiles(sources, 1).toBlocking().first();
+    }
+}
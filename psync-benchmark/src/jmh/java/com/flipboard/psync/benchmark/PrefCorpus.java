@@ -0,0 +1,113 @@
+package com.flipboard.psync.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes synthetic preference xml corpora for the benchmarks.
+ * <p>
+ * The output is fully determined by the key and file counts, so runs are comparable. Keys are spread
+ * round robin over the files, and cycle through every kind of preference the plugin handles: booleans,
+ * ints, strings, resource references of each type, list preferences and untyped ones.
+ */
+public final class PrefCorpus {
+
+    private static final int KINDS = 9;
+
+    /**
+     * Writes a corpus to the given directory.
+     *
+     * @param dir Directory to write the files to, created if needed
+     * @param keyCount Total number of preference keys across all files
+     * @param fileCount Number of files to spread the keys over
+     * @return the written files, in order
+     * @throws IOException because Java
+     */
+    public static List<File> write(File dir, int keyCount, int fileCount) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        StringBuilder[] contents = new StringBuilder[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            contents[i] = new StringBuilder()
+                    .append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+                    .append("<PreferenceScreen xmlns:android=\"http://schemas.android.com/apk/res/android\">\n");
+        }
+
+        for (int key = 0; key < keyCount; key++) {
+            appendPreference(contents[key % fileCount], key);
+        }
+
+        List<File> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(dir, "prefs_" + i + ".xml");
+            Files.asCharSink(file, Charsets.UTF_8).write(contents[i].append("</PreferenceScreen>\n"));
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Attribute values for a key, as {@code generatePrefEntry} takes them: key, defaultValue, entries
+     * and entryValues.
+     */
+    public static String[] attributes(int key) {
+        String name = "pref_key_" + key;
+        switch (key % KINDS) {
+            case 0:
+                return new String[]{name, key % 2 == 0 ? "true" : "false", null, null};
+            case 1:
+                return new String[]{name, Integer.toString(key), null, null};
+            case 2:
+                return new String[]{name, "value_" + key, null, null};
+            case 3:
+                return new String[]{name, "@string/default_" + key, null, null};
+            case 4:
+                return new String[]{name, "@integer/default_" + key, null, null};
+            case 5:
+                return new String[]{name, "@bool/default_" + key, null, null};
+            case 6:
+                return new String[]{name, "@color/default_" + key, null, null};
+            case 7:
+                return new String[]{name, "@string/default_" + key, "@array/entries_" + key, "@array/entry_values_" + key};
+            default:
+                return new String[]{name, null, null, null};
+        }
+    }
+
+    private static void appendPreference(StringBuilder out, int key) {
+        String[] attributes = attributes(key);
+        out.append("    <").append(attributes[2] != null ? "ListPreference" : "Preference")
+                .append("\n        android:key=\"").append(attributes[0]).append('"');
+        if (attributes[1] != null) {
+            out.append("\n        android:defaultValue=\"").append(attributes[1]).append('"');
+        }
+        if (attributes[2] != null) {
+            out.append("\n        android:entries=\"").append(attributes[2]).append('"')
+                    .append("\n        android:entryValues=\"").append(attributes[3]).append('"');
+        }
+        out.append(" />\n");
+    }
+
+    /**
+     * Writes a corpus for looking at by hand: {@code PrefCorpus <dir> <keys> <files>}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: PrefCorpus <dir> <keys> <files>");
+            System.exit(1);
+        }
+        List<File> files = write(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        System.out.println("Wrote " + files.size() + " files to " + args[0]);
+    }
+
+    private PrefCorpus() {
+        throw new AssertionError("No instances.");
+    }
+}
@@ -0,0 +1,70 @@
+package com.flipboard.psync.benchmark;
+
+import com.flipboard.psync.PrefEntry;
+import com.flipboard.psync.PrefEntryParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning attribute values into {@link PrefEntry}s, without any xml in the way. Each invocation goes
+ * through the same mix of preference kinds as the corpus files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrefEntryBenchmark {
+
+    private static final int COUNT = 900;
+
+    private String[][] attributes;
+    private String[] keys;
+    private Object[] defaultValues;
+
+    @Setup
+    public void setUp() {
+        attributes = new String[COUNT][];
+        keys = new String[COUNT];
+        defaultValues = new Object[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            attributes[i] = PrefCorpus.attributes(i);
+            keys[i] = "pref_key_" + i;
+            switch (i % 3) {
+                case 0:
+                    defaultValues[i] = Boolean.TRUE;
+                    break;
+                case 1:
+                    defaultValues[i] = i;
+                    break;
+                default:
+                    defaultValues[i] = "value_" + i;
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void generatePrefEntry(Blackhole blackhole) {
+        for (String[] attrs : attributes) {
+            blackhole.consume(PrefEntryParser.generatePrefEntry(attrs[0], attrs[1], attrs[2], attrs[3]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void prefEntryCreate(Blackhole blackhole) {
+        for (int i = 0; i < COUNT; i++) {
+            blackhole.consume(PrefEntry.create(keys[i], defaultValues[i]));
+        }
+    }
+}
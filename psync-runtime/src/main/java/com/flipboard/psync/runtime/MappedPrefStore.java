@@ -0,0 +1,649 @@
+package com.flipboard.psync.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A {@link PrefStore} kept in a memory-mapped, append-only log.
+ * <p>
+ * SharedPreferences rewrites its whole xml file on every apply(). Here a change only appends a small
+ * record to the mapped file and bumps the committed length in the header, so a write costs about as
+ * much as the value itself. Once the log is full and at least half of it is overwritten values, it is
+ * compacted into a fresh file that replaces the old one. Otherwise the file grows.
+ * <p>
+ * Values live in typed slots (booleans, ints, longs and floats as bits of a long, strings on their
+ * own), so reads and writes don't box. Only {@link #getAll()} creates boxed values.
+ * <p>
+ * Layout: a header of magic, version and committed length (ints), then records of
+ * {@code type (byte), key length (short), key (UTF-8), value}. Anything past the committed length is
+ * ignored, so a write that was cut short leaves the store as it was before it.
+ */
+public final class MappedPrefStore implements PrefStore, Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x50535943;
+    private static final int VERSION = 1;
+    private static final int END_OFFSET = 8;
+    private static final int HEADER_SIZE = 12;
+    private static final int MIN_CAPACITY = 4096;
+    private static final int RECORD_OVERHEAD = 3;
+
+    // Record types, which double as slot types
+    static final byte TYPE_REMOVED = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_CLEAR = 6;
+
+    private final File file;
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Boolean> listeners = new WeakHashMap<>();
+
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int end;
+
+    // Open addressing index. Removed keys keep their slot until the next compaction
+    private String[] keys;
+    private byte[] types;
+    private long[] values;
+    private String[] strings;
+    private int[] recordSizes;
+    private int slotCount;
+    private int liveBytes;
+
+    private MappedPrefStore(File file) {
+        this.file = file;
+        allocateIndex(16);
+    }
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist.
+     *
+     * @throws IOException if the file can't be mapped or isn't a store
+     */
+    public static MappedPrefStore open(File file) throws IOException {
+        MappedPrefStore store = new MappedPrefStore(file);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Creates a store in the given file, holding the given values. This is the migration path from
+     * SharedPreferences: pass it {@code getAll()}. The file only shows up once everything is in it,
+     * so an interrupted migration is simply done again. String sets have no slot type and are skipped.
+     *
+     * @throws IOException if the file already exists or can't be written
+     */
+    public static MappedPrefStore migrate(File file, Map<String, ?> values) throws IOException {
+        if (file.exists()) {
+            throw new IOException(file + " already exists");
+        }
+
+        File migrating = new File(file.getPath() + ".migrating");
+        if (migrating.exists() && !migrating.delete()) {
+            throw new IOException("Could not delete " + migrating);
+        }
+
+        MappedPrefStore store = open(migrating);
+        Editor editor = store.edit();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(entry.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(entry.getKey(), (Float) value);
+            } else if (value instanceof String) {
+                editor.putString(entry.getKey(), (String) value);
+            }
+        }
+        boolean committed = editor.commit();
+        store.close();
+        if (!committed) {
+            throw new IOException("Could not write " + migrating);
+        }
+        if (!migrating.renameTo(file)) {
+            throw new IOException("Could not rename " + migrating + " to " + file);
+        }
+        return open(file);
+    }
+
+    private void load() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        long length = randomAccessFile.length();
+        if (length < HEADER_SIZE) {
+            map(MIN_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            setEnd(HEADER_SIZE);
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to be a store");
+        }
+
+        map((int) length);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a store");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+        int committed = buffer.getInt(END_OFFSET);
+        if (committed < HEADER_SIZE || committed > length) {
+            committed = HEADER_SIZE;
+        }
+
+        ByteBuffer records = buffer.duplicate();
+        records.limit(committed).position(HEADER_SIZE);
+        int replayed = replay(records, null);
+        // Pages can reach the disk in any order, so drop whatever didn't fully make it
+        setEnd(replayed);
+    }
+
+    private void map(int capacity) throws IOException {
+        randomAccessFile.setLength(capacity);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        buffer.putInt(END_OFFSET, end);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        int slot = find(key);
+        return slot >= 0 && typed(slot, TYPE_BOOLEAN) ? values[slot] != 0 : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        int slot = find(key);
+        return slot >= 0 && typed(slot, TYPE_INT) ? (int) values[slot] : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        int slot = find(key);
+        return slot >= 0 && typed(slot, TYPE_LONG) ? values[slot] : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        int slot = find(key);
+        return slot >= 0 && typed(slot, TYPE_FLOAT) ? Float.intBitsToFloat((int) values[slot]) : defValue;
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        int slot = find(key);
+        return slot >= 0 && typed(slot, TYPE_STRING) ? strings[slot] : defValue;
+    }
+
+    /**
+     * @return true if the slot holds a value of the given type, false if it was removed
+     * @throws ClassCastException if it holds a value of another type, like SharedPreferences does
+     */
+    private boolean typed(int slot, byte type) {
+        if (types[slot] == TYPE_REMOVED) {
+            return false;
+        }
+        if (types[slot] != type) {
+            throw new ClassCastException(keys[slot] + " holds a " + typeName(types[slot]) + ", not a " + typeName(type));
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        int slot = find(key);
+        return slot >= 0 && types[slot] != TYPE_REMOVED;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            switch (types[slot]) {
+                case TYPE_BOOLEAN:
+                    all.put(keys[slot], values[slot] != 0);
+                    break;
+                case TYPE_INT:
+                    all.put(keys[slot], (int) values[slot]);
+                    break;
+                case TYPE_LONG:
+                    all.put(keys[slot], values[slot]);
+                    break;
+                case TYPE_FLOAT:
+                    all.put(keys[slot], Float.intBitsToFloat((int) values[slot]));
+                    break;
+                case TYPE_STRING:
+                    all.put(keys[slot], strings[slot]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public Editor edit() {
+        return new RecordEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.put(listener, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the size of the log, including overwritten records
+     */
+    synchronized int logSize() {
+        return end;
+    }
+
+    /**
+     * Releases the file. The store can't be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Appends encoded records to the log and applies them.
+     */
+    private void write(byte[] records, int length, boolean durable) throws IOException {
+        List<String> changed = new ArrayList<>();
+        List<OnSharedPreferenceChangeListener> toNotify;
+        synchronized (this) {
+            ensureCapacity(length);
+            ByteBuffer out = buffer.duplicate();
+            out.position(end);
+            out.put(records, 0, length);
+            if (durable) {
+                // The records have to be on disk before the header says they're there
+                buffer.force();
+            }
+            setEnd(end + length);
+            if (durable) {
+                buffer.force();
+            }
+
+            replay(ByteBuffer.wrap(records, 0, length), changed);
+            toNotify = new ArrayList<>(listeners.keySet());
+        }
+
+        for (String key : changed) {
+            for (OnSharedPreferenceChangeListener listener : toNotify) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if ((long) end + length <= buffer.capacity()) {
+            return;
+        }
+        int overwritten = end - HEADER_SIZE - liveBytes;
+        if (overwritten >= liveBytes) {
+            compact(length);
+        }
+        if ((long) end + length > buffer.capacity()) {
+            map(capacityFor((long) end + length));
+        }
+    }
+
+    private static int capacityFor(long size) throws IOException {
+        long capacity = MIN_CAPACITY;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Store can't grow past " + Integer.MAX_VALUE + " bytes");
+        }
+        return (int) capacity;
+    }
+
+    /**
+     * Writes the current values to a new file, with room for {@code extra} more bytes, and swaps it in
+     * for the current one.
+     */
+    private void compact(int extra) throws IOException {
+        File compacting = new File(file.getPath() + ".compacting");
+        int size = HEADER_SIZE + liveBytes;
+        int capacity = capacityFor((long) size + extra);
+
+        RandomAccessFile compacted = new RandomAccessFile(compacting, "rw");
+        MappedByteBuffer out;
+        try {
+            compacted.setLength(capacity);
+            out = compacted.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            out.putInt(MAGIC).putInt(VERSION).putInt(size);
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != null && types[slot] != TYPE_REMOVED) {
+                    writeRecord(out, types[slot], keys[slot].getBytes(UTF_8), values[slot], strings[slot]);
+                }
+            }
+            out.force();
+        } catch (IOException e) {
+            compacted.close();
+            throw e;
+        }
+
+        if (!compacting.renameTo(file)) {
+            compacted.close();
+            throw new IOException("Could not rename " + compacting + " to " + file);
+        }
+
+        randomAccessFile.close();
+        randomAccessFile = compacted;
+        buffer = out;
+        end = size;
+        rehash(keys.length);
+    }
+
+    /**
+     * Applies records to the index, stopping at the first one that's incomplete or invalid.
+     *
+     * @param changed Collects the changed keys, null for none
+     * @return the position after the last applied record
+     */
+    private int replay(ByteBuffer records, List<String> changed) {
+        while (records.remaining() >= RECORD_OVERHEAD) {
+            int start = records.position();
+            byte type = records.get();
+            int keyLength = records.getShort() & 0xFFFF;
+            if (type < TYPE_REMOVED || type > TYPE_CLEAR || records.remaining() < keyLength) {
+                return start;
+            }
+
+            if (type == TYPE_CLEAR) {
+                for (int slot = 0; slot < keys.length; slot++) {
+                    types[slot] = TYPE_REMOVED;
+                    strings[slot] = null;
+                    recordSizes[slot] = 0;
+                }
+                liveBytes = 0;
+                if (changed != null) {
+                    changed.add(null);
+                }
+                continue;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            records.get(keyBytes);
+            String key = new String(keyBytes, UTF_8);
+
+            long value = 0;
+            String string = null;
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    if (records.remaining() < 1) {
+                        return start;
+                    }
+                    value = records.get();
+                    break;
+                case TYPE_INT:
+                case TYPE_FLOAT:
+                    if (records.remaining() < 4) {
+                        return start;
+                    }
+                    value = records.getInt();
+                    break;
+                case TYPE_LONG:
+                    if (records.remaining() < 8) {
+                        return start;
+                    }
+                    value = records.getLong();
+                    break;
+                case TYPE_STRING:
+                    if (records.remaining() < 4) {
+                        return start;
+                    }
+                    int stringLength = records.getInt();
+                    if (stringLength < 0 || records.remaining() < stringLength) {
+                        return start;
+                    }
+                    byte[] stringBytes = new byte[stringLength];
+                    records.get(stringBytes);
+                    string = new String(stringBytes, UTF_8);
+                    break;
+                default:
+                    break;
+            }
+
+            boolean didChange = set(key, type, value, string, type == TYPE_REMOVED ? 0 : records.position() - start);
+            if (changed != null && didChange) {
+                changed.add(key);
+            }
+        }
+        return records.position();
+    }
+
+    private static void writeRecord(ByteBuffer out, byte type, byte[] key, long value, String string) {
+        out.put(type).putShort((short) key.length).put(key);
+        switch (type) {
+            case TYPE_BOOLEAN:
+                out.put((byte) value);
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                out.putInt((int) value);
+                break;
+            case TYPE_LONG:
+                out.putLong(value);
+                break;
+            case TYPE_STRING:
+                byte[] bytes = string.getBytes(UTF_8);
+                out.putInt(bytes.length).put(bytes);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        keys = new String[capacity];
+        types = new byte[capacity];
+        values = new long[capacity];
+        strings = new String[capacity];
+        recordSizes = new int[capacity];
+        slotCount = 0;
+    }
+
+    /**
+     * @return the slot of the key, or -(insertion point) - 1 if it has none
+     */
+    private int find(String key) {
+        int mask = keys.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot].equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return true if this changed the key's value, which is what listeners are told about
+     */
+    private boolean set(String key, byte type, long value, String string, int recordSize) {
+        int slot = find(key);
+        if (slot < 0) {
+            if (type == TYPE_REMOVED) {
+                return false;
+            }
+            if ((slotCount + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+                slot = find(key);
+            }
+            slot = -slot - 1;
+            keys[slot] = key;
+            slotCount++;
+        }
+
+        boolean didChange = types[slot] != type
+                || values[slot] != value
+                || (string != null && !string.equals(strings[slot]));
+        liveBytes += recordSize - recordSizes[slot];
+        types[slot] = type;
+        values[slot] = value;
+        strings[slot] = string;
+        recordSizes[slot] = recordSize;
+        return didChange;
+    }
+
+    /**
+     * Rebuilds the index with the given capacity, dropping removed keys.
+     */
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        byte[] oldTypes = types;
+        long[] oldValues = values;
+        String[] oldStrings = strings;
+        int[] oldRecordSizes = recordSizes;
+
+        allocateIndex(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && oldTypes[i] != TYPE_REMOVED) {
+                int slot = -find(oldKeys[i]) - 1;
+                keys[slot] = oldKeys[i];
+                types[slot] = oldTypes[i];
+                values[slot] = oldValues[i];
+                strings[slot] = oldStrings[i];
+                recordSizes[slot] = oldRecordSizes[i];
+                slotCount++;
+            }
+        }
+    }
+
+    private static String typeName(byte type) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return "boolean";
+            case TYPE_INT:
+                return "int";
+            case TYPE_LONG:
+                return "long";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_STRING:
+                return "String";
+            default:
+                return "nothing";
+        }
+    }
+
+    /**
+     * Encodes changes as log records right away, so applying them is a single copy into the log.
+     */
+    private final class RecordEditor implements Editor {
+
+        private byte[] records = new byte[64];
+        private int length = 0;
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return append(TYPE_BOOLEAN, key, value ? 1 : 0, null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return append(TYPE_INT, key, value, null);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return append(TYPE_LONG, key, value, null);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return append(TYPE_FLOAT, key, Float.floatToIntBits(value), null);
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return value == null ? remove(key) : append(TYPE_STRING, key, 0, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return append(TYPE_REMOVED, key, 0, null);
+        }
+
+        @Override
+        public Editor clear() {
+            return append(TYPE_CLEAR, "", 0, null);
+        }
+
+        private Editor append(byte type, String key, long value, String string) {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            if (keyBytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Key is too long: " + key);
+            }
+            int size = RECORD_OVERHEAD + keyBytes.length + 8 + (string != null ? 4 + string.length() * 3 : 0);
+            if (length + size > records.length) {
+                records = Arrays.copyOf(records, Math.max(records.length * 2, length + size));
+            }
+            ByteBuffer out = ByteBuffer.wrap(records);
+            out.position(length);
+            writeRecord(out, type, keyBytes, value, string);
+            length = out.position();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            try {
+                write(records, length, true);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void apply() {
+            try {
+                write(records, length, false);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to " + file, e);
+            }
+        }
+    }
+}
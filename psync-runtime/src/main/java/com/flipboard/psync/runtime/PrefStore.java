@@ -0,0 +1,77 @@
+package com.flipboard.psync.runtime;
+
+import java.util.Map;
+
+/**
+ * The part of {@code android.content.SharedPreferences} that the generated P class uses, so that it
+ * can be backed by something else. Names and semantics match SharedPreferences, which is why the
+ * generated code only differs in types between backends.
+ */
+public interface PrefStore {
+
+    boolean getBoolean(String key, boolean defValue);
+
+    int getInt(String key, int defValue);
+
+    long getLong(String key, long defValue);
+
+    float getFloat(String key, float defValue);
+
+    String getString(String key, String defValue);
+
+    boolean contains(String key);
+
+    /**
+     * @return a copy of every value in the store
+     */
+    Map<String, ?> getAll();
+
+    Editor edit();
+
+    void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener);
+
+    void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener);
+
+    /**
+     * Batches changes, which are only visible once {@link #apply()} or {@link #commit()} is called.
+     */
+    interface Editor {
+
+        Editor putBoolean(String key, boolean value);
+
+        Editor putInt(String key, int value);
+
+        Editor putLong(String key, long value);
+
+        Editor putFloat(String key, float value);
+
+        /**
+         * A null value removes the key, like {@link #remove(String)}
+         */
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        Editor clear();
+
+        /**
+         * Writes the changes and waits for them to be durable.
+         *
+         * @return true if they were written
+         */
+        boolean commit();
+
+        /**
+         * Writes the changes without waiting for them to be durable.
+         */
+        void apply();
+    }
+
+    interface OnSharedPreferenceChangeListener {
+
+        /**
+         * @param key The changed key, or null if the store was cleared
+         */
+        void onSharedPreferenceChanged(PrefStore store, String key);
+    }
+}
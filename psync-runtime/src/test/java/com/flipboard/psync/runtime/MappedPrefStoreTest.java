@@ -0,0 +1,218 @@
+package com.flipboard.psync.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class MappedPrefStoreTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("psync-store").toFile();
+        file = new File(dir, "prefs.store");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        assertThat(store.getInt("missing", 7)).isEqualTo(7);
+        assertThat(store.contains("missing")).isFalse();
+
+        store.edit()
+                .putBoolean("bool", true)
+                .putInt("int", -42)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putString("string", "h\u00e9llo")
+                .apply();
+
+        assertThat(store.getBoolean("bool", false)).isTrue();
+        assertThat(store.getInt("int", 0)).isEqualTo(-42);
+        assertThat(store.getLong("long", 0)).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.getFloat("float", 0)).isEqualTo(1.5f);
+        assertThat(store.getString("string", null)).isEqualTo("h\u00e9llo");
+        assertThat(store.contains("int")).isTrue();
+        assertThat(store.getAll()).hasSize(5);
+
+        // Like SharedPreferences, a null string removes the key
+        store.edit().putString("string", null).commit();
+        assertThat(store.contains("string")).isFalse();
+        assertThat(store.getString("string", "default")).isEqualTo("default");
+        store.close();
+    }
+
+    @Test
+    public void testValuesSurviveReopening() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        store.edit().putInt("count", 1).putString("name", "one").commit();
+        store.edit().putInt("count", 2).remove("name").apply();
+        store.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getInt("count", 0)).isEqualTo(2);
+        assertThat(store.contains("name")).isFalse();
+        store.close();
+    }
+
+    @Test
+    public void testWrongTypeThrows() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        store.edit().putString("key", "value").commit();
+        try {
+            store.getInt("key", 0);
+            fail();
+        } catch (ClassCastException expected) {
+        }
+        store.close();
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        store.edit().putInt("a", 1).putInt("b", 2).commit();
+        store.edit().clear().putInt("c", 3).commit();
+        assertThat(store.getAll().keySet()).containsExactly("c");
+        store.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getAll().keySet()).containsExactly("c");
+        store.close();
+    }
+
+    @Test
+    public void testOverwritesAreCompacted() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        store.edit().putString("constant", "stays").commit();
+        for (int i = 0; i < 100000; i++) {
+            store.edit().putLong("counter", i).apply();
+        }
+        // Way less than the 100000 records written
+        assertThat(store.logSize()).isLessThan(8192);
+        assertThat(file.length()).isLessThan(8192L);
+        assertThat(store.getLong("counter", -1)).isEqualTo(99999L);
+        store.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getLong("counter", -1)).isEqualTo(99999L);
+        assertThat(store.getString("constant", null)).isEqualTo("stays");
+        store.close();
+    }
+
+    @Test
+    public void testGrowsForLiveValues() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        PrefStore.Editor editor = store.edit();
+        for (int i = 0; i < 10000; i++) {
+            editor.putInt("key_" + i, i);
+        }
+        editor.commit();
+        store.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getAll()).hasSize(10000);
+        assertThat(store.getInt("key_9999", -1)).isEqualTo(9999);
+        store.close();
+    }
+
+    @Test
+    public void testTornWriteIsDropped() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        store.edit().putInt("kept", 1).commit();
+        int committed = store.logSize();
+        store.close();
+
+        // Claim a record whose value never made it to disk
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(committed);
+        raw.writeByte(MappedPrefStore.TYPE_LONG);
+        raw.writeShort(4);
+        raw.write("lost".getBytes("UTF-8"));
+        raw.seek(8);
+        raw.writeInt(committed + 7 + 4);
+        raw.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getInt("kept", 0)).isEqualTo(1);
+        assertThat(store.contains("lost")).isFalse();
+        assertThat(store.logSize()).isEqualTo(committed);
+        store.edit().putInt("next", 2).commit();
+        store.close();
+
+        store = MappedPrefStore.open(file);
+        assertThat(store.getInt("next", 0)).isEqualTo(2);
+        store.close();
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("bool", true);
+        legacy.put("int", 3);
+        legacy.put("long", 4L);
+        legacy.put("float", 5f);
+        legacy.put("string", "six");
+        legacy.put("set", Collections.singleton("unsupported"));
+
+        MappedPrefStore store = MappedPrefStore.migrate(file, legacy);
+        legacy.remove("set");
+        assertThat(store.getAll()).isEqualTo(legacy);
+        store.close();
+        assertThat(new File(dir, "prefs.store.migrating").exists()).isFalse();
+
+        try {
+            MappedPrefStore.migrate(file, legacy);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testListeners() throws IOException {
+        MappedPrefStore store = MappedPrefStore.open(file);
+        final List<String> changed = new ArrayList<>();
+        PrefStore.OnSharedPreferenceChangeListener listener = new PrefStore.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(PrefStore store, String key) {
+                changed.add(key);
+            }
+        };
+
+        store.registerOnSharedPreferenceChangeListener(listener);
+        store.edit().putInt("a", 1).remove("b").apply();
+        store.edit().clear().commit();
+        // Removing a key that isn't there changes nothing
+        assertThat(changed).containsExactly("a", null).inOrder();
+
+        store.unregisterOnSharedPreferenceChangeListener(listener);
+        store.edit().putInt("a", 2).apply();
+        assertThat(changed).hasSize(2);
+        store.close();
+    }
+}
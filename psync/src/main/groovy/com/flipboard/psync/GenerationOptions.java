@@ -0,0 +1,88 @@
+package com.flipboard.psync;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Options controlling what {@link PClassGenerator} generates, on top of the entries themselves.
+ */
+public final class GenerationOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String BACKEND_SHARED_PREFERENCES = "sharedPreferences";
+    public static final String BACKEND_MAPPED = "mapped";
+
+    /**
+     * Generate rx() methods backed by Rx-Preferences
+     */
+    public boolean generateRx = false;
+
+    /**
+     * Keep each preference's value in a field once read or written through the generated Editor, invalidated
+     * whenever the preference changes otherwise
+     */
+    public boolean cacheValues = false;
+
+    /**
+     * Generate a top level class per preference xml file, with the P class only holding shared state
+     */
+    public boolean shardByFile = false;
+
+    /**
+     * Generate constants and static accessors on the owning class instead of a nested class per preference
+     */
+    public boolean flat = false;
+
+    /**
+     * Load the shared preferences on a background executor in init(), with accessors waiting for them
+     */
+    public boolean asyncInit = false;
+
+    /**
+     * Generate observe() methods taking primitive-specialized listeners, called when that preference changes
+     */
+    public boolean generateObservers = false;
+
+    /**
+     * What stores the values, {@link #BACKEND_SHARED_PREFERENCES} or {@link #BACKEND_MAPPED}
+     */
+    public String backend = BACKEND_SHARED_PREFERENCES;
+
+    /**
+     * SharedPreferences file name for preference xml files (by name, without extension) whose entries
+     * don't go in the default one
+     */
+    public Map<String, String> preferenceFiles = new TreeMap<>();
+
+    public static GenerationOptions create(boolean generateRx) {
+        GenerationOptions options = new GenerationOptions();
+        options.generateRx = generateRx;
+        return options;
+    }
+
+    /**
+     * Everything in here affects the generated code, so this doubles as a cache key for it.
+     */
+    @Override
+    public String toString() {
+        return "GenerationOptions{generateRx="
+                + generateRx
+                + ", cacheValues="
+                + cacheValues
+                + ", shardByFile="
+                + shardByFile
+                + ", flat="
+                + flat
+                + ", asyncInit="
+                + asyncInit
+                + ", generateObservers="
+                + generateObservers
+                + ", backend="
+                + backend
+                + ", preferenceFiles="
+                + new TreeMap<>(preferenceFiles)
+                + "}";
+    }
+}
@@ -0,0 +1,172 @@
+package com.flipboard.psync;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a single run of {@link PSyncTask} did and how long each phase took, written out as JSON for
+ * build analytics.
+ * <p>
+ * Phases are {@link #SCAN} (finding and hashing out of date files), {@link #PARSE}, {@link #MERGE},
+ * {@link #RESOLVE} (inlining resource defaults and persisting the per-file cache), {@link #GENERATE},
+ * {@link #WRITE} and {@link #COMPILE} (only when the classes are compiled for the variant, see
+ * {@link PClassCompiler}). Phases that didn't run, like generating when nothing changed, are reported as 0.
+ * When the output is {@link #streamed}, each class is written as soon as it's generated, so all of that
+ * is reported as {@link #GENERATE}.
+ */
+public final class GenerationReport {
+
+    /**
+     * Bump whenever a field is renamed or changes meaning, so consumers can tell reports apart.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    public static final String SCAN = "scan";
+    public static final String PARSE = "parse";
+    public static final String MERGE = "merge";
+    public static final String RESOLVE = "resolve";
+    public static final String GENERATE = "generate";
+    public static final String WRITE = "write";
+    public static final String COMPILE = "compile";
+
+    public final String taskPath;
+    public final boolean incremental;
+
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private long totalNanos = 0;
+
+    // Files
+    public int sourceFiles = 0;
+    public int parsedFiles = 0;
+    public int sharedCacheHits = 0;
+    public int removedFiles = 0;
+
+    // Entries
+    public int entries = 0;
+    public int conflicts = 0;
+    public int inlinedDefaults = 0;
+
+    // Output
+    public boolean entriesChanged = true;
+    public boolean generatedSourcesReused = false;
+    public boolean streamed = false;
+    public int generatedClasses = 0;
+    public int writtenClasses = 0;
+    public long bytesWritten = 0;
+    public int compiledClasses = 0;
+
+    public GenerationReport(String taskPath, boolean incremental) {
+        this.taskPath = taskPath;
+        this.incremental = incremental;
+        for (String phase : new String[]{SCAN, PARSE, MERGE, RESOLVE, GENERATE, WRITE, COMPILE}) {
+            phaseNanos.put(phase, 0L);
+        }
+    }
+
+    /**
+     * Adds the time since {@code startNanos} to the given phase.
+     *
+     * @param phase One of the phase constants
+     * @param startNanos {@link System#nanoTime()} when the phase started
+     * @return the current {@link System#nanoTime()}, to start the next phase with
+     */
+    public long endPhase(String phase, long startNanos) {
+        long now = System.nanoTime();
+        Long spent = phaseNanos.get(phase);
+        if (spent == null) {
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+        phaseNanos.put(phase, spent + now - startNanos);
+        return now;
+    }
+
+    public void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    public long getPhaseNanos(String phase) {
+        Long spent = phaseNanos.get(phase);
+        return spent != null ? spent : 0;
+    }
+
+    /**
+     * @return files whose cached entries were still current, so they weren't parsed at all
+     */
+    public int getSkippedFiles() {
+        return sourceFiles - parsedFiles - sharedCacheHits;
+    }
+
+    /**
+     * @return the report as a single JSON object, with stable key order and durations in milliseconds
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"formatVersion\": ").append(FORMAT_VERSION).append(",\n");
+        json.append("  \"task\": ").append(quote(taskPath)).append(",\n");
+        json.append("  \"incremental\": ").append(incremental).append(",\n");
+        json.append("  \"durationsMs\": {\n");
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            json.append("    ").append(quote(phase.getKey())).append(": ").append(millis(phase.getValue())).append(",\n");
+        }
+        json.append("    \"total\": ").append(millis(totalNanos)).append("\n");
+        json.append("  },\n");
+        json.append("  \"files\": {\n");
+        json.append("    \"sources\": ").append(sourceFiles).append(",\n");
+        json.append("    \"parsed\": ").append(parsedFiles).append(",\n");
+        json.append("    \"sharedCacheHits\": ").append(sharedCacheHits).append(",\n");
+        json.append("    \"skipped\": ").append(getSkippedFiles()).append(",\n");
+        json.append("    \"removed\": ").append(removedFiles).append("\n");
+        json.append("  },\n");
+        json.append("  \"entries\": ").append(entries).append(",\n");
+        json.append("  \"conflicts\": ").append(conflicts).append(",\n");
+        json.append("  \"inlinedDefaults\": ").append(inlinedDefaults).append(",\n");
+        json.append("  \"output\": {\n");
+        json.append("    \"entriesChanged\": ").append(entriesChanged).append(",\n");
+        json.append("    \"generatedSourcesReused\": ").append(generatedSourcesReused).append(",\n");
+        json.append("    \"streamed\": ").append(streamed).append(",\n");
+        json.append("    \"generatedClasses\": ").append(generatedClasses).append(",\n");
+        json.append("    \"writtenClasses\": ").append(writtenClasses).append(",\n");
+        json.append("    \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("    \"compiledClasses\": ").append(compiledClasses).append("\n");
+        json.append("  }\n");
+        return json.append("}\n").toString();
+    }
+
+    public void write(File reportFile) throws IOException {
+        File parent = reportFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        Files.write(toJson(), reportFile, Charsets.UTF_8);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
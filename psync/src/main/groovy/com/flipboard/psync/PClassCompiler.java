@@ -0,0 +1,154 @@
+package com.flipboard.psync;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the generated P classes on their own, so they can go to the variant as bytecode instead of
+ * being part of its javac run. Only the P classes are compiled, against the variant's classpath and
+ * generated R, and only when they or what they're compiled against changed.
+ */
+public final class PClassCompiler {
+
+    /**
+     * Bytecode level older dx versions can still read
+     */
+    static final String JAVA_VERSION = "1.7";
+
+    private PClassCompiler() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Compiles all the generated sources of a package into the classes directory, replacing whatever
+     * was compiled into that package before.
+     *
+     * @param packageName Package the sources were generated in
+     * @param sourceDir Directory the sources were generated in, see {@link PClassGenerator#writeSources}
+     * @param classesDir Directory to put the class files in
+     * @param classpath What the generated code compiles against, like Rx-Preferences or psync-runtime
+     * @param bootClasspath The android.jar to compile against, may be empty to use the classpath instead
+     * @param sourcepath Source directories to compile against without compiling them, like the one R is
+     * generated in
+     * @return the written class files
+     * @throws IOException if it couldn't compile, with javac's errors
+     */
+    public static List<File> compile(String packageName, File sourceDir, File classesDir, Collection<File> classpath, Collection<File> bootClasspath, Collection<File> sourcepath) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("No Java compiler available, the build has to run on a JDK");
+        }
+
+        List<File> sources = listFiles(new File(sourceDir, packageName.replace('.', File.separatorChar)), ".java");
+        File packageClassesDir = new File(classesDir, packageName.replace('.', File.separatorChar));
+        // Nested classes of entries that are gone would stick around otherwise
+        for (File stale : listFiles(packageClassesDir, ".class")) {
+            if (!stale.delete()) {
+                throw new IOException("Could not delete stale " + stale);
+            }
+        }
+        if (!packageClassesDir.exists() && !packageClassesDir.mkdirs()) {
+            throw new IOException("Could not create " + packageClassesDir);
+        }
+
+        List<String> options = new ArrayList<>(Arrays.asList(
+                "-source", JAVA_VERSION,
+                "-target", JAVA_VERSION,
+                "-encoding", Charsets.UTF_8.name(),
+                "-g",
+                "-nowarn",
+                "-proc:none",
+                // R is only read from the sourcepath, it's the variant's javac that compiles it
+                "-implicit:none",
+                "-d", classesDir.getPath(),
+                "-classpath", Joiner.on(File.pathSeparator).join(classpath)));
+        if (!bootClasspath.isEmpty()) {
+            options.add("-bootclasspath");
+            options.add(Joiner.on(File.pathSeparator).join(bootClasspath));
+        }
+        if (!sourcepath.isEmpty()) {
+            options.add("-sourcepath");
+            options.add(Joiner.on(File.pathSeparator).join(sourcepath));
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.US, Charsets.UTF_8);
+        try {
+            boolean compiled = compiler.getTask(new StringWriter(), fileManager, diagnostics, options, null, fileManager.getJavaFileObjectsFromFiles(sources)).call();
+            if (!compiled) {
+                StringBuilder message = new StringBuilder("Could not compile the generated sources in ").append(sourceDir);
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                        message.append('\n').append(diagnostic);
+                    }
+                }
+                throw new IOException(message.toString());
+            }
+        } finally {
+            fileManager.close();
+        }
+        return listFiles(packageClassesDir, ".class");
+    }
+
+    /**
+     * Puts the generated sources of a package in a jar, for IDEs to attach to the compiled classes.
+     *
+     * @throws IOException because Java
+     */
+    public static void writeSourcesJar(String packageName, File sourceDir, File sourcesJar) throws IOException {
+        File parent = sourcesJar.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        String packagePath = packageName.replace('.', '/');
+        try (ZipOutputStream jar = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(sourcesJar)))) {
+            for (File source : listFiles(new File(sourceDir, packagePath), ".java")) {
+                ZipEntry entry = new ZipEntry(packagePath + "/" + source.getName());
+                // Same sources, same jar
+                entry.setTime(0);
+                jar.putNextEntry(entry);
+                Files.copy(source, jar);
+                jar.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @return the files in the directory with the given extension, sorted by name
+     */
+    private static List<File> listFiles(File dir, String extension) {
+        List<File> files = new ArrayList<>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isFile() && child.getName().endsWith(extension)) {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+}
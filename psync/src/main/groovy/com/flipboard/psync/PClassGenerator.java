@@ -4,9 +4,15 @@ import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.primitives.Primitives;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
@@ -16,12 +22,31 @@ import com.squareup.javapoet.ParameterSpec;
 import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.WildcardTypeName;
 
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.lang.model.element.Modifier;
@@ -33,10 +58,36 @@ public final class PClassGenerator {
 
     private static final ClassName CN_RX_PREFERENCES = ClassName.get("com.f2prateek.rx.preferences", "RxSharedPreferences");
     private static final ClassName CN_RX_PREFERENCE = ClassName.get("com.f2prateek.rx.preferences", "Preference");
+    private static final ClassName CN_RX_OBSERVABLE = ClassName.get("rx", "Observable");
+    private static final ClassName CN_RX_FUNC0 = ClassName.get("rx.functions", "Func0");
+    private static final ClassName CN_PREF_STORE = ClassName.get("com.flipboard.psync.runtime", "PrefStore");
+    private static final ClassName CN_PREF_STORE_EDITOR = ClassName.get("com.flipboard.psync.runtime", "PrefStore", "Editor");
+    private static final ClassName CN_PREF_STORE_LISTENER = ClassName.get("com.flipboard.psync.runtime", "PrefStore", "OnSharedPreferenceChangeListener");
+    private static final ClassName CN_MAPPED_PREF_STORE = ClassName.get("com.flipboard.psync.runtime", "MappedPrefStore");
     private static final Modifier[] MODIFIERS = {Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL};
     private static final Pattern COULD_BE_CAMEL = Pattern.compile("[a-zA-Z]+[a-zA-Z0-9]*");
     private static final Pattern ALL_CAPS = Pattern.compile("[A-Z0-9]*");
 
+    /**
+     * Class files can't have more than 65535 constants. Overflow classes stay under that, with room to
+     * spare for what every class has regardless of its entries.
+     */
+    private static final int CLASS_FILE_BUDGET = 65535 - 4096;
+
+    /**
+     * Upper bounds of what a single entry adds to the constant pool of its class. Flat entries put all
+     * of their members in there.
+     */
+    private static final int CONSTANTS_PER_NESTED_ENTRY = 16;
+    private static final int CONSTANTS_PER_FLAT_ENTRY = 64;
+
+    /**
+     * Most entries whose code goes in a single generated method. Past this, the code every entry adds
+     * to a method is spread over numbered private helpers (see {@link #addChunkHelpers}), so no method
+     * gets anywhere near 64KB however many entries there are.
+     */
+    static final int ENTRIES_PER_METHOD = 256;
+
     /**
      * Groovy can't talk to Java vararg methods, such as JavaPoet's many vararg methods. Utility
      * class is here so we can use JavaPoet nicely.
@@ -49,81 +100,1351 @@ public final class PClassGenerator {
      * @throws IOException because Java
      */
     public static void generate(List<PrefEntry> inputKeys, String packageName, File outputDir, String className, boolean generateRx) throws IOException {
+        generate(inputKeys, packageName, outputDir, className, GenerationOptions.create(generateRx));
+    }
+
+    /**
+     * Same as {@link #generate(List, String, File, String, boolean)}, with the full set of options.
+     *
+     * @throws IOException because Java
+     */
+    public static void generate(List<PrefEntry> inputKeys, String packageName, File outputDir, String className, GenerationOptions options) throws IOException {
+        writeSource(generateSource(inputKeys, packageName, className, options), packageName, outputDir, className);
+    }
+
+    /**
+     * Generates the source of the P class without writing it anywhere.
+     *
+     * @param inputKeys List of the preference keys to generate for
+     * @param packageName Package name to create the P class in
+     * @param className Name to use for the generated class
+     * @param generateRx Boolean indicating whether or not to generate Rx-Preferences support code
+     * @return the generated Java source
+     */
+    public static String generateSource(List<PrefEntry> inputKeys, String packageName, String className, boolean generateRx) {
+        return generateSource(inputKeys, packageName, className, GenerationOptions.create(generateRx));
+    }
+
+    /**
+     * Same as {@link #generateSource(List, String, String, boolean)}, with the full set of options.
+     * With {@link GenerationOptions#shardByFile} this is only the facade, see {@link #generateSources}.
+     */
+    public static String generateSource(List<PrefEntry> inputKeys, String packageName, String className, GenerationOptions options) {
+        return generateSources(inputKeys, packageName, className, options).get(className);
+    }
+
+    /**
+     * Generates the source of every class that makes up the P class.
+     * <p>
+     * That's just the P class itself, unless {@link GenerationOptions#shardByFile} is set. Then every
+     * preference xml file gets its own top level class holding its entries, and the P class is a thin
+     * facade that only holds the shared state. Adding a key to a file then only changes that file's
+     * class, so only the code using it has to be recompiled. A file with more entries than fit in a
+     * single class is split into overflow classes, see {@link #groupByClass}.
+     *
+     * @param inputKeys List of the preference keys to generate for
+     * @param packageName Package name to create the classes in
+     * @param className Name to use for the P class
+     * @param options Generation options
+     * @return the generated Java source of each class, keyed by class name, P class first
+     */
+    public static Map<String, String> generateSources(List<PrefEntry> inputKeys, String packageName, String className, GenerationOptions options) {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        try {
+            streamSources(inputKeys, packageName, className, options, new SourceSink() {
+                @Override
+                public void accept(String name, String source) {
+                    sources.put(name, source);
+                }
+            });
+        } catch (IOException e) {
+            // Nothing in here does any IO
+            throw new AssertionError(e);
+        }
+        return sources;
+    }
+
+    /**
+     * Receives the generated classes one at a time, see {@link #streamSources}.
+     */
+    public interface SourceSink {
+
+        /**
+         * @param className Name of the generated class, in the package it was generated for
+         * @param source Its Java source
+         * @throws IOException because Java
+         */
+        void accept(String className, String source) throws IOException;
+    }
+
+    /**
+     * Same as {@link #generateSources}, but hands each class to the sink as soon as it's generated
+     * instead of collecting all of them. Only one class is held in memory at a time, so with
+     * {@link GenerationOptions#shardByFile} memory stays bounded no matter how many entries there are.
+     *
+     * @throws IOException whatever the sink throws
+     */
+    public static void streamSources(List<PrefEntry> inputKeys, String packageName, String className, GenerationOptions options, SourceSink sink) throws IOException {
+        if (!GenerationOptions.BACKEND_SHARED_PREFERENCES.equals(options.backend) && !GenerationOptions.BACKEND_MAPPED.equals(options.backend)) {
+            throw new IllegalArgumentException("Unknown backend '" + options.backend + "', expected '"
+                    + GenerationOptions.BACKEND_SHARED_PREFERENCES + "' or '" + GenerationOptions.BACKEND_MAPPED + "'");
+        }
+        if (options.generateRx && GenerationOptions.BACKEND_MAPPED.equals(options.backend)) {
+            throw new IllegalArgumentException("Rx-Preferences only works with the '" + GenerationOptions.BACKEND_SHARED_PREFERENCES + "' backend");
+        }
+        Set<String> preferenceFiles = preferenceFiles(inputKeys, options);
+        if (!preferenceFiles.isEmpty() && GenerationOptions.BACKEND_MAPPED.equals(options.backend)) {
+            throw new IllegalArgumentException("Separate preference files only work with the '" + GenerationOptions.BACKEND_SHARED_PREFERENCES + "' backend");
+        }
+        Map<String, String> preferenceFileNames = new HashMap<>();
+        for (String preferenceFile : preferenceFiles) {
+            String clash = preferenceFileNames.put(preferenceFileName(preferenceFile), preferenceFile);
+            if (clash != null) {
+                throw new IllegalArgumentException("Preference files '" + clash + "' and '" + preferenceFile + "' would generate the same accessors");
+            }
+        }
+
+        Map<String, List<PrefEntry>> entryClasses = groupByClass(inputKeys, className, options);
+        if (entryClasses == null) {
+            TypeSpec.Builder pClass = TypeSpec.classBuilder(className).addModifiers(Modifier.PUBLIC, Modifier.FINAL);
+            setUpContextAndPreferences(pClass, inputKeys, options, null);
+            addPrivateConstructor(pClass);
+            generateEditor(pClass, packageName, className, inputKeys, options, "");
+            generateSnapshot(pClass, packageName, className, inputKeys, options, "");
+
+            for (PrefEntry entry : inputKeys) {
+                addPrefMembers(pClass, entry, packageName, className, options, "");
+            }
+
+            sink.accept(className, JavaFile.builder(packageName, pClass.build()).build().toString());
+            return;
+        }
+
         TypeSpec.Builder pClass = TypeSpec.classBuilder(className).addModifiers(Modifier.PUBLIC, Modifier.FINAL);
+        setUpContextAndPreferences(pClass, inputKeys, options, entryClasses.keySet());
+        addPrivateConstructor(pClass);
+        sink.accept(className, JavaFile.builder(packageName, pClass.build()).build().toString());
+
+        String state = className + ".";
+        for (Map.Entry<String, List<PrefEntry>> entryClass : entryClasses.entrySet()) {
+            String shardName = entryClass.getKey();
+            List<PrefEntry> shardKeys = entryClass.getValue();
+
+            String sourceFile = shardKeys.get(0).sourceFile;
+            TypeSpec.Builder shardClass = TypeSpec.classBuilder(shardName)
+                    .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                    .addJavadoc("Preferences declared in $L, set up through {@link $N#init}.\n", sourceFile != null ? new File(sourceFile).getName() : "an unknown file", className);
+            addPrivateConstructor(shardClass);
+            generateEditor(shardClass, packageName, shardName, shardKeys, options, state);
+            generateSnapshot(shardClass, packageName, shardName, shardKeys, options, state);
+            // The facade calls these for every shard, so they're always there even if there's nothing to do
+            addClearResolvedDefaults(shardClass, shardKeys, options, Modifier.STATIC);
+            if (options.cacheValues) {
+                addInvalidateCachedValues(shardClass, shardKeys, options, state, Modifier.STATIC);
+                addCacheWrittenValue(shardClass, shardKeys, options, state, Modifier.STATIC);
+            }
+            if (options.generateObservers) {
+                addDispatchChange(shardClass, shardKeys, options, Modifier.STATIC);
+            }
+
+            for (PrefEntry entry : shardKeys) {
+                addPrefMembers(shardClass, entry, packageName, className, options, state);
+            }
+
+            sink.accept(shardName, JavaFile.builder(packageName, shardClass.build()).build().toString());
+        }
+    }
+
+    /**
+     * @return the most entries a single overflow class can hold without running out of constants, past
+     * which generation also switches to streaming
+     */
+    public static int maxEntriesPerClass(GenerationOptions options) {
+        int constantsPerEntry = options.flat ? CONSTANTS_PER_FLAT_ENTRY : CONSTANTS_PER_NESTED_ENTRY;
+        return CLASS_FILE_BUDGET / constantsPerEntry;
+    }
+
+    /**
+     * Groups entries by the top level class they go in, or returns null if they all go in the P class.
+     * <p>
+     * With {@link GenerationOptions#shardByFile} that's a class per preference xml file, and a file
+     * with more entries than {@link #maxEntriesPerClass} is split into numbered overflow classes:
+     * {@code PrefsGeneral1}, {@code PrefsGeneral2}... Without it, everything goes in the P class however
+     * many entries there are, so {@code P.someKey} never moves.
+     */
+    static Map<String, List<PrefEntry>> groupByClass(List<PrefEntry> inputKeys, String className, GenerationOptions options) {
+        if (!options.shardByFile) {
+            return null;
+        }
+        int maxEntries = maxEntriesPerClass(options);
+        Map<String, List<PrefEntry>> groups = groupByShard(inputKeys, className);
+
+        Map<String, List<PrefEntry>> classes = new LinkedHashMap<>();
+        for (Map.Entry<String, List<PrefEntry>> group : groups.entrySet()) {
+            List<PrefEntry> groupKeys = group.getValue();
+            if (groupKeys.size() <= maxEntries) {
+                addEntryClass(classes, group.getKey(), groupKeys);
+                continue;
+            }
+
+            for (int from = 0, part = 1; from < groupKeys.size(); from += maxEntries, part++) {
+                addEntryClass(classes, group.getKey() + part, groupKeys.subList(from, Math.min(from + maxEntries, groupKeys.size())));
+            }
+        }
+        return classes;
+    }
+
+    private static void addEntryClass(Map<String, List<PrefEntry>> classes, String name, List<PrefEntry> entries) {
+        if (classes.put(name, entries) != null) {
+            throw new IllegalArgumentException("More than one generated class would be named " + name + ", rename one of the preference files");
+        }
+    }
+
+    /**
+     * Groups entries by the class they go in when sharding, which is named after the file they were
+     * declared in. Same named files from different source sets share a class.
+     */
+    static Map<String, List<PrefEntry>> groupByShard(List<PrefEntry> inputKeys, String className) {
+        Map<String, List<PrefEntry>> shards = new TreeMap<>();
+        for (PrefEntry entry : inputKeys) {
+            String shardName = shardName(entry, className);
+            List<PrefEntry> shardKeys = shards.get(shardName);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<>();
+                shards.put(shardName, shardKeys);
+            }
+            shardKeys.add(entry);
+        }
+        return shards;
+    }
+
+    static String shardName(PrefEntry entry, String className) {
+        if (entry.sourceFile == null) {
+            return className + "Other";
+        }
+
+        String fileName = new File(entry.sourceFile).getName();
+        int extension = fileName.lastIndexOf('.');
+        if (extension > 0) {
+            fileName = fileName.substring(0, extension);
+        }
+
+        // Resource file names are lower_underscore
+        String shardName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, fileName);
+        if (shardName.isEmpty() || !Character.isJavaIdentifierStart(shardName.charAt(0)) || shardName.equals(className)) {
+            shardName = className + shardName;
+        }
+        return shardName;
+    }
+
+    private static void addPrivateConstructor(TypeSpec.Builder type) {
+        type.addMethod(MethodSpec.constructorBuilder()
+                        .addModifiers(Modifier.PRIVATE)
+                        .addStatement("throw new $T($S)", AssertionError.class, "No instances.")
+                        .build()
+        );
+    }
+
+    /**
+     * Writes generated source to its package directory under the output directory, always as UTF-8.
+     * A file that already has exactly this content is left alone, so its timestamp doesn't change and
+     * nothing depending on it gets recompiled.
+     *
+     * @return the written file
+     * @throws IOException because Java
+     */
+    public static File writeSource(String source, String packageName, File outputDir, String className) throws IOException {
+        File file = new File(packageDir(packageName, outputDir), className + ".java");
+        writeIfChanged(source, file);
+        return file;
+    }
+
+    /**
+     * Writes all the generated classes, as returned by {@link #generateSources}, and deletes any other
+     * source left in the package directory by an earlier run (shards of files that are gone, say).
+     *
+     * @return the files whose contents actually changed
+     * @throws IOException because Java
+     */
+    public static List<File> writeSources(Map<String, String> sources, String packageName, File outputDir) throws IOException {
+        FileSink sink = new FileSink(packageDir(packageName, outputDir));
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            sink.accept(source.getKey(), source.getValue());
+        }
+        sink.deleteStale();
+        return sink.changed;
+    }
+
+    /**
+     * Generates and writes all the classes making up the P class like {@link #writeSources(Map, String, File)},
+     * writing each class as soon as it's generated, see {@link #streamSources}.
+     *
+     * @return the files whose contents actually changed
+     * @throws IOException because Java
+     */
+    public static List<File> writeSources(List<PrefEntry> inputKeys, String packageName, String className, GenerationOptions options, File outputDir) throws IOException {
+        FileSink sink = new FileSink(packageDir(packageName, outputDir));
+        streamSources(inputKeys, packageName, className, options, sink);
+        sink.deleteStale();
+        return sink.changed;
+    }
+
+    /**
+     * Writes classes to their package directory, keeping track of what it wrote.
+     */
+    private static final class FileSink implements SourceSink {
+
+        private final File packageDir;
+        private final List<File> changed = new ArrayList<>();
+        private final Set<String> fileNames = new HashSet<>();
+
+        FileSink(File packageDir) {
+            this.packageDir = packageDir;
+        }
+
+        @Override
+        public void accept(String className, String source) throws IOException {
+            File file = new File(packageDir, className + ".java");
+            if (writeIfChanged(source, file)) {
+                changed.add(file);
+            }
+            fileNames.add(file.getName());
+        }
+
+        void deleteStale() throws IOException {
+            File[] existing = packageDir.listFiles();
+            if (existing != null) {
+                for (File file : existing) {
+                    if (file.getName().endsWith(".java") && !fileNames.contains(file.getName()) && !file.delete()) {
+                        throw new IOException("Could not delete stale " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static File packageDir(String packageName, File outputDir) throws IOException {
+        File packageDir = new File(outputDir, packageName.replace('.', File.separatorChar));
+        if (!packageDir.exists() && !packageDir.mkdirs()) {
+            throw new IOException("Could not create " + packageDir);
+        }
+        return packageDir;
+    }
+
+    /**
+     * @return true if the file was written, false if it already had exactly this content
+     */
+    private static boolean writeIfChanged(String source, File file) throws IOException {
+        byte[] content = source.getBytes(Charsets.UTF_8);
+        if (file.isFile() && file.length() == content.length && Arrays.equals(Files.toByteArray(file), content)) {
+            return false;
+        }
+        Files.write(content, file);
+        return true;
+    }
+
+    /**
+     * @param shardNames Classes holding the entries when sharding, or null if they're all nested in this one
+     */
+    private static void setUpContextAndPreferences(TypeSpec.Builder pClass, List<PrefEntry> inputKeys, GenerationOptions options, Collection<String> shardNames) {
+        // Shards live in the same package and need to get at the shared state
+        Modifier[] stateModifiers = shardNames == null
+                ? new Modifier[]{Modifier.PRIVATE, Modifier.STATIC}
+                : new Modifier[]{Modifier.STATIC};
+
+        pClass.addField(FieldSpec.builder(Resources.class, "RESOURCES", stateModifiers)
+                        .initializer("null")
+                        .build()
+        );
+
+        // With asyncInit these are published by the loading thread
+        FieldSpec.Builder preferencesField = FieldSpec.builder(storeType(options), "PREFERENCES", stateModifiers);
+        FieldSpec.Builder rxPreferencesField = FieldSpec.builder(CN_RX_PREFERENCES, "RX_PREFERENCES", stateModifiers);
+        if (options.asyncInit) {
+            preferencesField.addModifiers(Modifier.VOLATILE);
+            rxPreferencesField.addModifiers(Modifier.VOLATILE);
+        }
+
+        pClass.addField(preferencesField
+                        .initializer("null")
+                        .build()
+        );
+
+        if (options.generateRx) {
+            pClass.addField(rxPreferencesField
+                            .initializer("null")
+                            .build()
+            );
+        }
+
+        if (options.cacheValues) {
+            setUpValueCache(pClass, inputKeys, options, shardNames);
+        }
+
+        if (options.generateObservers) {
+            setUpObservers(pClass, inputKeys, options, shardNames);
+        }
+
+        if (options.asyncInit) {
+            setUpAsyncInit(pClass, options, shardNames);
+        }
+
+        Set<String> preferenceFiles = preferenceFiles(inputKeys, options);
+        if (!preferenceFiles.isEmpty()) {
+            setUpPreferenceFiles(pClass, preferenceFiles, options, shardNames);
+        }
+
+        MethodSpec.Builder initBuilder = MethodSpec.methodBuilder("init")
+                .addModifiers(MODIFIERS)
+                .addParameter(ParameterSpec.builder(Context.class, "applicationContext", Modifier.FINAL).build());
+        if (options.asyncInit) {
+            pClass.addMethod(initBuilder
+                            .addJavadoc("Initializer that takes a {@link Context} for resource resolution. This should be an Application context instance. The default shared preferences are loaded on {@link $T#THREAD_POOL_EXECUTOR}, see {@link #init(Context, Executor)}.\n", AsyncTask.class)
+                            .addStatement("init(applicationContext, $T.THREAD_POOL_EXECUTOR)", AsyncTask.class)
+                            .build()
+            );
+            initBuilder = MethodSpec.methodBuilder("init")
+                    .addModifiers(MODIFIERS)
+                    .addJavadoc("Initializer that takes a {@link Context} for resource resolution. This should be an Application context instance. Returns right away, while the default shared preferences\n"
+                            + "are loaded from disk on the given executor. Until then accessors block, see {@link #isReady()} and {@link #awaitReady(long, TimeUnit)}.\n")
+                    .addParameter(ParameterSpec.builder(Context.class, "applicationContext", Modifier.FINAL).build())
+                    .addParameter(ParameterSpec.builder(Executor.class, "executor", Modifier.FINAL).build());
+        } else {
+            initBuilder.addJavadoc("Initializer that takes a {@link Context} for resource resolution. This should be an Application context instance, and will retrieve default shared preferences.\n");
+        }
+
+        initBuilder
+                .beginControlFlow("if (applicationContext == null)")
+                .addStatement("throw new $T($S)", IllegalStateException.class, "applicationContext cannot be null!")
+                .endControlFlow()
+                .beginControlFlow("if (!(applicationContext instanceof $T))", Application.class)
+                .addStatement("throw new $T($S)", IllegalArgumentException.class, "You may only use an Application instance as context!")
+                .endControlFlow()
+                .addStatement("RESOURCES = applicationContext.getResources()");
+
+        if (!preferenceFiles.isEmpty()) {
+            initBuilder.addStatement("CONTEXT = applicationContext");
+        }
+
+        if (shardNames != null || hasResourceDefaults(inputKeys)) {
+            // Resources may have changed configuration since the defaults were resolved
+            initBuilder.addStatement("clearResolvedDefaults()");
+        }
+
+        if (options.asyncInit) {
+            TypeSpec preload = TypeSpec.anonymousClassBuilder("")
+                    .addSuperinterface(Runnable.class)
+                    .addMethod(MethodSpec.methodBuilder("run")
+                            .addAnnotation(Override.class)
+                            .addModifiers(Modifier.PUBLIC)
+                            .addCode(openStore(options))
+                            .beginControlFlow("synchronized (INIT_LOCK)")
+                            .addCode("// Unless setSharedPreferences() or a later init() got there first\n")
+                            .beginControlFlow("if (preload == PRELOADS)")
+                            .addStatement("setSharedPreferences(preferences)")
+                            .endControlFlow()
+                            .endControlFlow()
+                            .build())
+                    .build();
+            initBuilder.addStatement("final int preload")
+                    .beginControlFlow("synchronized (INIT_LOCK)")
+                    .addStatement("preload = ++PRELOADS")
+                    .endControlFlow()
+                    .addStatement("executor.execute($L)", preload);
+        } else if (GenerationOptions.BACKEND_MAPPED.equals(options.backend)) {
+            initBuilder.addCode(openStore(options))
+                    .addStatement("setSharedPreferences(preferences)");
+        } else {
+            initBuilder.addStatement("// Sensible default")
+                    .addStatement("setSharedPreferences($T.getDefaultSharedPreferences(applicationContext))", PreferenceManager.class);
+        }
+        pClass.addMethod(initBuilder.build());
+
+        MethodSpec.Builder setSharedPreferencesBuilder = MethodSpec.methodBuilder("setSharedPreferences")
+                .addModifiers(MODIFIERS)
+                .addParameter(ParameterSpec.builder(storeType(options), "sharedPreferences", Modifier.FINAL).build())
+                .beginControlFlow("if (sharedPreferences == null)")
+                .addStatement("throw new $T($S)", IllegalStateException.class, "sharedPreferences cannot be null!")
+                .endControlFlow();
+
+        if (options.asyncInit) {
+            setSharedPreferencesBuilder.beginControlFlow("synchronized (INIT_LOCK)")
+                    .addCode("// Drops any preload still in flight\n")
+                    .addStatement("PRELOADS++");
+        }
+
+        List<String> changeListeners = new ArrayList<>();
+        if (options.cacheValues) {
+            changeListeners.add("CACHE_INVALIDATOR");
+        }
+        if (options.generateObservers) {
+            changeListeners.add("CHANGE_DISPATCHER");
+        }
+        if (!changeListeners.isEmpty()) {
+            setSharedPreferencesBuilder.beginControlFlow("if (PREFERENCES != null)");
+            for (String changeListener : changeListeners) {
+                setSharedPreferencesBuilder.addStatement("PREFERENCES.unregisterOnSharedPreferenceChangeListener($N)", changeListener);
+            }
+            setSharedPreferencesBuilder.endControlFlow()
+                    .addStatement("PREFERENCES = sharedPreferences");
+            for (String changeListener : changeListeners) {
+                setSharedPreferencesBuilder.addStatement("PREFERENCES.registerOnSharedPreferenceChangeListener($N)", changeListener);
+            }
+        } else {
+            setSharedPreferencesBuilder.addStatement("PREFERENCES = sharedPreferences");
+        }
+        if (options.cacheValues) {
+            setSharedPreferencesBuilder.addStatement("invalidateCachedValues(null)");
+        }
+
+        if (options.generateRx) {
+            setSharedPreferencesBuilder.addStatement("RX_PREFERENCES = $T.create(PREFERENCES)", CN_RX_PREFERENCES);
+        }
+
+        if (options.asyncInit) {
+            setSharedPreferencesBuilder.addStatement("READY.countDown()")
+                    .endControlFlow();
+        }
+
+        pClass.addMethod(setSharedPreferencesBuilder.build());
+
+        if (shardNames != null) {
+            MethodSpec.Builder clearBuilder = MethodSpec.methodBuilder("clearResolvedDefaults")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC);
+            for (String shardName : shardNames) {
+                clearBuilder.addStatement("$N.clearResolvedDefaults()", shardName);
+            }
+            pClass.addMethod(clearBuilder.build());
+        } else if (hasResourceDefaults(inputKeys)) {
+            addClearResolvedDefaults(pClass, inputKeys, options, Modifier.PRIVATE, Modifier.STATIC);
+        }
+    }
+
+    /**
+     * Adds the state and methods behind {@link GenerationOptions#asyncInit}. Accessors go through
+     * {@code preferences()} and {@code rxPreferences()}, which block until the first SharedPreferences
+     * instance has been set, by the loading thread or by a direct {@code setSharedPreferences()}.
+     */
+    private static void setUpAsyncInit(TypeSpec.Builder pClass, GenerationOptions options, Collection<String> shardNames) {
+        Modifier[] accessorModifiers = shardNames == null
+                ? new Modifier[]{Modifier.PRIVATE, Modifier.STATIC}
+                : new Modifier[]{Modifier.STATIC};
+
+        pClass.addField(FieldSpec.builder(CountDownLatch.class, "READY", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("new $T(1)", CountDownLatch.class)
+                        .build()
+        );
+        pClass.addField(FieldSpec.builder(Object.class, "INIT_LOCK", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("new $T()", Object.class)
+                        .build()
+        );
+        pClass.addField(FieldSpec.builder(int.class, "PRELOADS", Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE)
+                        .addJavadoc("Bumped by every init() and setSharedPreferences(), so a preload only applies if nothing replaced it in the meantime\n")
+                        .initializer("0")
+                        .build()
+        );
+
+        pClass.addMethod(MethodSpec.methodBuilder("isReady")
+                        .addModifiers(MODIFIERS)
+                        .addJavadoc("@return true once the shared preferences are loaded, after which accessors don't block\n")
+                        .returns(boolean.class)
+                        .addStatement("return READY.getCount() == 0")
+                        .build()
+        );
+
+        pClass.addMethod(MethodSpec.methodBuilder("awaitReady")
+                        .addModifiers(MODIFIERS)
+                        .addJavadoc("Waits for the shared preferences to be loaded.\n\n@return true if they're loaded, false if the timeout elapsed first\n")
+                        .returns(boolean.class)
+                        .addParameter(ParameterSpec.builder(long.class, "timeout", Modifier.FINAL).build())
+                        .addParameter(ParameterSpec.builder(TimeUnit.class, "unit", Modifier.FINAL).build())
+                        .addException(InterruptedException.class)
+                        .addStatement("return READY.await(timeout, unit)")
+                        .build()
+        );
+
+        pClass.addMethod(MethodSpec.methodBuilder("awaitLoad")
+                        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                        .beginControlFlow("if (PRELOADS == 0)")
+                        .addStatement("throw new $T($S)", IllegalStateException.class, "init() hasn't been called!")
+                        .endControlFlow()
+                        .beginControlFlow("try")
+                        .addStatement("READY.await()")
+                        .nextControlFlow("catch ($T e)", InterruptedException.class)
+                        .addStatement("$T.currentThread().interrupt()", Thread.class)
+                        .addStatement("throw new $T($S, e)", IllegalStateException.class, "Interrupted while loading preferences")
+                        .endControlFlow()
+                        .build()
+        );
+
+        pClass.addMethod(MethodSpec.methodBuilder("preferences")
+                        .addModifiers(accessorModifiers)
+                        .returns(storeType(options))
+                        .beginControlFlow("if (READY.getCount() != 0)")
+                        .addStatement("awaitLoad()")
+                        .endControlFlow()
+                        .addStatement("return PREFERENCES")
+                        .build()
+        );
+
+        if (options.generateRx) {
+            pClass.addMethod(MethodSpec.methodBuilder("rxPreferences")
+                            .addModifiers(accessorModifiers)
+                            .returns(CN_RX_PREFERENCES)
+                            .beginControlFlow("if (READY.getCount() != 0)")
+                            .addStatement("awaitLoad()")
+                            .endControlFlow()
+                            .addStatement("return RX_PREFERENCES")
+                            .build()
+            );
+        }
+    }
+
+    /**
+     * Adds a lazily opened SharedPreferences per separate preference file, so a file is only loaded
+     * once one of its preferences is used. Opening the same file twice gets the same instance from the
+     * Context, so racing threads at worst both look it up.
+     */
+    private static void setUpPreferenceFiles(TypeSpec.Builder pClass, Set<String> preferenceFiles, GenerationOptions options, Collection<String> shardNames) {
+        Modifier[] accessorModifiers = shardNames == null
+                ? new Modifier[]{Modifier.PRIVATE, Modifier.STATIC}
+                : new Modifier[]{Modifier.STATIC};
+
+        pClass.addField(FieldSpec.builder(Context.class, "CONTEXT", Modifier.PRIVATE, Modifier.STATIC)
+                        .initializer("null")
+                        .build()
+        );
+
+        for (String preferenceFile : preferenceFiles) {
+            String field = "PREFERENCES_" + preferenceFileConstant(preferenceFile);
+            pClass.addField(FieldSpec.builder(SharedPreferences.class, field, Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE)
+                            .initializer("null")
+                            .build()
+            );
+
+            MethodSpec.Builder accessor = MethodSpec.methodBuilder("preferences" + preferenceFileName(preferenceFile))
+                    .addModifiers(accessorModifiers)
+                    .returns(SharedPreferences.class)
+                    .addStatement("$T preferences = $N", SharedPreferences.class, field)
+                    .beginControlFlow("if (preferences == null)")
+                    .beginControlFlow("if (CONTEXT == null)")
+                    .addStatement("throw new $T($S)", IllegalStateException.class, "init() hasn't been called!")
+                    .endControlFlow()
+                    .addStatement("preferences = CONTEXT.getSharedPreferences($S, $T.MODE_PRIVATE)", preferenceFile, Context.class);
+            // Registering the same listener again is a no-op
+            if (options.cacheValues) {
+                accessor.addStatement("preferences.registerOnSharedPreferenceChangeListener(CACHE_INVALIDATOR)");
+            }
+            if (options.generateObservers) {
+                accessor.addStatement("preferences.registerOnSharedPreferenceChangeListener(CHANGE_DISPATCHER)");
+            }
+            pClass.addMethod(accessor.addStatement("$N = preferences", field)
+                            .endControlFlow()
+                            .addStatement("return preferences")
+                            .build()
+            );
+
+            if (options.generateRx) {
+                String rxField = "RX_PREFERENCES_" + preferenceFileConstant(preferenceFile);
+                pClass.addField(FieldSpec.builder(CN_RX_PREFERENCES, rxField, Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE)
+                                .initializer("null")
+                                .build()
+                );
+                pClass.addMethod(MethodSpec.methodBuilder("rxPreferences" + preferenceFileName(preferenceFile))
+                                .addModifiers(accessorModifiers)
+                                .returns(CN_RX_PREFERENCES)
+                                .addStatement("$T rxPreferences = $N", CN_RX_PREFERENCES, rxField)
+                                .beginControlFlow("if (rxPreferences == null)")
+                                .addStatement("rxPreferences = $T.create(preferences$L())", CN_RX_PREFERENCES, preferenceFileName(preferenceFile))
+                                .addStatement("$N = rxPreferences", rxField)
+                                .endControlFlow()
+                                .addStatement("return rxPreferences")
+                                .build()
+                );
+            }
+        }
+    }
+
+    private static void addClearResolvedDefaults(TypeSpec.Builder owner, List<PrefEntry> inputKeys, final GenerationOptions options, Modifier... modifiers) {
+        MethodSpec.Builder clearBuilder = MethodSpec.methodBuilder("clearResolvedDefaults")
+                .addModifiers(modifiers);
+        List<PrefEntry> resourceDefaultEntries = new ArrayList<>();
+        for (PrefEntry entry : inputKeys) {
+            if (hasResourceDefault(entry)) {
+                resourceDefaultEntries.add(entry);
+            }
+        }
+        addChunked(owner, clearBuilder, "clearResolvedDefaults", true, Collections.<ParameterSpec>emptyList(), resourceDefaultEntries, new ChunkWriter() {
+            @Override
+            public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                for (PrefEntry entry : entries) {
+                    if (options.flat) {
+                        method.addStatement("hasResolvedDefault$N = false", flatName(entry));
+                    } else {
+                        method.addStatement("$N.clearResolvedDefault()", camelCaseKey(entry.key));
+                    }
+                }
+            }
+        });
+        owner.addMethod(clearBuilder.build());
+    }
+
+    /**
+     * Adds the lock and change listener that keep the cached values of {@link #isCacheable(PrefEntry)}
+     * entries in sync with the backing preferences.
+     */
+    private static void setUpValueCache(TypeSpec.Builder pClass, List<PrefEntry> inputKeys, GenerationOptions options, Collection<String> shardNames) {
+        Modifier[] lockModifiers = shardNames == null
+                ? new Modifier[]{Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL}
+                : new Modifier[]{Modifier.STATIC, Modifier.FINAL};
+        pClass.addField(FieldSpec.builder(Object.class, "CACHE_LOCK", lockModifiers)
+                        .initializer("new $T()", Object.class)
+                        .build()
+        );
+
+        // SharedPreferences only keeps weak references to listeners, so this has to live in a field
+        TypeSpec invalidator = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(storeListenerType(options))
+                .addMethod(MethodSpec.methodBuilder("onSharedPreferenceChanged")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(storeType(options), "sharedPreferences")
+                        .addParameter(String.class, "key")
+                        .addStatement("invalidateCachedValues(key)")
+                        .build())
+                .build();
+        pClass.addField(FieldSpec.builder(storeListenerType(options), "CACHE_INVALIDATOR", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("$L", invalidator)
+                        .build()
+        );
+
+        if (shardNames != null) {
+            MethodSpec.Builder dispatch = MethodSpec.methodBuilder("invalidateCachedValues")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addParameter(String.class, "key");
+            for (String shardName : shardNames) {
+                dispatch.addStatement("$N.invalidateCachedValues(key)", shardName);
+            }
+            pClass.addMethod(dispatch.build());
+        } else {
+            addInvalidateCachedValues(pClass, inputKeys, options, "", Modifier.PRIVATE, Modifier.STATIC);
+            addCacheWrittenValue(pClass, inputKeys, options, "", Modifier.PRIVATE, Modifier.STATIC);
+        }
+    }
+
+    /**
+     * Adds {@code invalidateCachedValues()}, which invalidates the cached value of the given key, or all of them for a null key.
+     */
+    private static void addInvalidateCachedValues(TypeSpec.Builder owner, List<PrefEntry> inputKeys, final GenerationOptions options, String state, Modifier... modifiers) {
+        MethodSpec.Builder invalidateAll = MethodSpec.methodBuilder("invalidateCachedValues")
+                .addModifiers(modifiers)
+                .addParameter(String.class, "key");
+        if (options.flat) {
+            // There are no per-block invalidate() methods to take the lock, so take it once for all of them
+            invalidateAll.beginControlFlow("synchronized ($LCACHE_LOCK)", state);
+        }
+        addChunked(owner, invalidateAll, "invalidateCachedValues", true, Collections.singletonList(ParameterSpec.builder(String.class, "key").build()),
+                cacheableEntries(inputKeys), new ChunkWriter() {
+                    @Override
+                    public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                        addKeyDispatch(method, entries, new EntryStatement() {
+                            @Override
+                            public String of(PrefEntry entry) {
+                                return invalidateStmt(entry, options);
+                            }
+                        });
+                    }
+                });
+        if (options.flat) {
+            invalidateAll.endControlFlow();
+        }
+        owner.addMethod(invalidateAll.build());
+    }
+
+    /**
+     * Builds a statement for an entry, see {@link #addKeyDispatch}.
+     */
+    private interface EntryStatement {
+
+        String of(PrefEntry entry);
+    }
+
+    /**
+     * Adds a switch running the statement of the entry with the given key, or the statements of all entries
+     * for a null key.
+     */
+    private static void addKeyDispatch(MethodSpec.Builder method, List<PrefEntry> entries, EntryStatement statement) {
+        method.beginControlFlow("if (key == null)");
+        for (PrefEntry entry : entries) {
+            method.addStatement(statement.of(entry));
+        }
+        method.addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("switch (key)");
+        for (PrefEntry entry : entries) {
+            method.addCode("case $S:\n$>", entry.key)
+                    .addStatement(statement.of(entry))
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        method.endControlFlow();
+    }
+
+    /**
+     * @return the entries that get a cached value and observers, see {@link #isCacheable}
+     */
+    private static List<PrefEntry> cacheableEntries(List<PrefEntry> inputKeys) {
+        List<PrefEntry> cacheable = new ArrayList<>();
+        for (PrefEntry entry : inputKeys) {
+            if (isCacheable(entry)) {
+                cacheable.add(entry);
+            }
+        }
+        return cacheable;
+    }
+
+    /**
+     * Adds {@code cacheWrittenValue()}, which caches a value the Editor has written out, or invalidates the cached value for a null one.
+     */
+    private static void addCacheWrittenValue(TypeSpec.Builder owner, List<PrefEntry> inputKeys, final GenerationOptions options, String state, Modifier... modifiers) {
+        MethodSpec.Builder cacheBuilder = MethodSpec.methodBuilder("cacheWrittenValue")
+                .addModifiers(modifiers)
+                .addParameter(String.class, "key")
+                .addParameter(Object.class, "value")
+                .beginControlFlow("if (value == null)")
+                .addStatement("invalidateCachedValues(key)")
+                .addStatement("return")
+                .endControlFlow();
+        if (options.flat) {
+            cacheBuilder.beginControlFlow("synchronized ($LCACHE_LOCK)", state);
+        }
+        addChunked(owner, cacheBuilder, "cacheWrittenValue", true,
+                Arrays.asList(ParameterSpec.builder(String.class, "key").build(), ParameterSpec.builder(Object.class, "value").build()),
+                cacheableEntries(inputKeys), new ChunkWriter() {
+                    @Override
+                    public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                        method.beginControlFlow("switch (key)");
+                        for (PrefEntry entry : entries) {
+                            TypeName boxedType = TypeName.get(Primitives.wrap(entry.valueType != null ? entry.valueType : entry.defaultType));
+                            method.addCode("case $S:\n$>", entry.key);
+                            if (options.flat) {
+                                method.addStatement("cached$N = ($T) value", flatName(entry), boxedType)
+                                        .addStatement("hasCached$N = true", flatName(entry));
+                            } else {
+                                method.addStatement("$N.cache(($T) value)", camelCaseKey(entry.key), boxedType);
+                            }
+                            method.addStatement("break")
+                                    .addCode("$<");
+                        }
+                        method.endControlFlow();
+                    }
+                });
+        if (options.flat) {
+            cacheBuilder.endControlFlow();
+        }
+        owner.addMethod(cacheBuilder.build());
+    }
+
+    /**
+     * Adds the listener interfaces and the single change listener behind {@link GenerationOptions#generateObservers}.
+     * It hands each change to {@code dispatchChange()}, whose switch on the key only notifies that
+     * preference's observers.
+     */
+    private static void setUpObservers(TypeSpec.Builder pClass, List<PrefEntry> inputKeys, GenerationOptions options, Collection<String> shardNames) {
+        Set<Class<?>> observedTypes = new LinkedHashSet<>();
+        for (PrefEntry entry : inputKeys) {
+            if (isCacheable(entry)) {
+                observedTypes.add(entry.valueType != null ? entry.valueType : entry.defaultType);
+            }
+        }
+        for (Class<?> observedType : observedTypes) {
+            pClass.addType(TypeSpec.interfaceBuilder(listenerName(observedType))
+                            .addModifiers(Modifier.PUBLIC)
+                            .addJavadoc("Called with the new value of an observed $L preference, or its default value once removed.\n", observedType.getSimpleName())
+                            .addMethod(MethodSpec.methodBuilder("onChanged")
+                                    .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT)
+                                    .addParameter(observedType, "value")
+                                    .build())
+                            .build()
+            );
+        }
+
+        // SharedPreferences only keeps weak references to listeners, so this has to live in a field
+        TypeSpec dispatcher = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(storeListenerType(options))
+                .addMethod(MethodSpec.methodBuilder("onSharedPreferenceChanged")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(storeType(options), "sharedPreferences")
+                        .addParameter(String.class, "key")
+                        .addStatement("dispatchChange(key)")
+                        .build())
+                .build();
+        pClass.addField(FieldSpec.builder(storeListenerType(options), "CHANGE_DISPATCHER", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("$L", dispatcher)
+                        .build()
+        );
+
+        if (shardNames != null) {
+            MethodSpec.Builder dispatch = MethodSpec.methodBuilder("dispatchChange")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addParameter(String.class, "key");
+            for (String shardName : shardNames) {
+                dispatch.addStatement("$N.dispatchChange(key)", shardName);
+            }
+            pClass.addMethod(dispatch.build());
+        } else {
+            addDispatchChange(pClass, inputKeys, options, Modifier.PRIVATE, Modifier.STATIC);
+        }
+    }
+
+    /**
+     * Adds {@code dispatchChange()}, which notifies the observers of the given key, or all of them for a null key.
+     */
+    private static void addDispatchChange(TypeSpec.Builder owner, List<PrefEntry> inputKeys, final GenerationOptions options, Modifier... modifiers) {
+        MethodSpec.Builder dispatch = MethodSpec.methodBuilder("dispatchChange")
+                .addModifiers(modifiers)
+                .addParameter(String.class, "key");
+        if (options.cacheValues) {
+            // Listeners are called in no particular order, observers must not see a stale cached value
+            dispatch.addStatement("invalidateCachedValues(key)");
+        }
+        addChunked(owner, dispatch, "dispatchChange", true, Collections.singletonList(ParameterSpec.builder(String.class, "key").build()),
+                cacheableEntries(inputKeys), new ChunkWriter() {
+                    @Override
+                    public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                        addKeyDispatch(method, entries, new EntryStatement() {
+                            @Override
+                            public String of(PrefEntry entry) {
+                                return notifyStmt(entry, options);
+                            }
+                        });
+                    }
+                });
+        owner.addMethod(dispatch.build());
+    }
+
+    private static String notifyStmt(PrefEntry entry, GenerationOptions options) {
+        return options.flat ? "notify" + flatName(entry) + "Observers()" : camelCaseKey(entry.key) + ".notifyObservers()";
+    }
+
+    private static String listenerName(Class<?> observedType) {
+        return "On" + StringUtils.capitalize(observedType.getSimpleName()) + "ChangeListener";
+    }
+
+    /**
+     * Adds the weakly held observers of an entry, with methods to (un)register them and to notify them
+     * all of the current value, which is read once and passed to each without boxing.
+     *
+     * @param suffix Appended to the generated member names, empty in a nested block
+     */
+    private static void addObserverMembers(TypeSpec.Builder owner, PrefEntry entry, String packageName, String className, String suffix) {
+        Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
+        ClassName listenerType = ClassName.get(packageName, className, listenerName(prefType));
+        String observersField = "observers" + suffix;
+        owner.addField(FieldSpec.builder(ParameterizedTypeName.get(ClassName.get(Set.class), listenerType), observersField, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("$T.newSetFromMap(new $T<$T, $T>())", Collections.class, WeakHashMap.class, listenerType, Boolean.class)
+                        .build()
+        );
+
+        owner.addMethod(MethodSpec.methodBuilder("observe" + suffix)
+                        .addModifiers(MODIFIERS)
+                        .addJavadoc("Calls the listener whenever this preference changes. It's only weakly referenced, so keep a reference to it.\n")
+                        .addParameter(ParameterSpec.builder(listenerType, "listener", Modifier.FINAL).build())
+                        .beginControlFlow("synchronized ($N)", observersField)
+                        .addStatement("$N.add(listener)", observersField)
+                        .endControlFlow()
+                        .build()
+        );
+        owner.addMethod(MethodSpec.methodBuilder("stopObserving" + suffix)
+                        .addModifiers(MODIFIERS)
+                        .addParameter(ParameterSpec.builder(listenerType, "listener", Modifier.FINAL).build())
+                        .beginControlFlow("synchronized ($N)", observersField)
+                        .addStatement("$N.remove(listener)", observersField)
+                        .endControlFlow()
+                        .build()
+        );
+        owner.addMethod(MethodSpec.methodBuilder(suffix.isEmpty() ? "notifyObservers" : "notify" + suffix + "Observers")
+                        .addModifiers(suffix.isEmpty() ? new Modifier[]{Modifier.STATIC} : new Modifier[]{Modifier.PRIVATE, Modifier.STATIC})
+                        .addStatement("$T[] listeners", listenerType)
+                        .beginControlFlow("synchronized ($N)", observersField)
+                        .beginControlFlow("if ($N.isEmpty())", observersField)
+                        .addStatement("return")
+                        .endControlFlow()
+                        .addCode("// Sized by toArray() itself, a listener may be collected meanwhile\n")
+                        .addStatement("listeners = $N.toArray(new $T[0])", observersField, listenerType)
+                        .endControlFlow()
+                        .addStatement("$T value = get$L()", prefType, suffix)
+                        .beginControlFlow("for ($T listener : listeners)", listenerType)
+                        .addStatement("listener.onChanged(value)")
+                        .endControlFlow()
+                        .build()
+        );
+    }
+
+    private static String invalidateStmt(PrefEntry entry, GenerationOptions options) {
+        return options.flat ? "hasCached" + flatName(entry) + " = false" : camelCaseKey(entry.key) + ".invalidate()";
+    }
+
+    /**
+     * Adds {@code edit()} and the Editor it returns, which chains typed setters for every typed entry
+     * onto a single {@link SharedPreferences.Editor} so a batch of changes is written out once.
+     */
+    private static void generateEditor(TypeSpec.Builder pClass, String packageName, String className, List<PrefEntry> inputKeys, final GenerationOptions options, String state) {
+        ClassName editorName = ClassName.get(packageName, className, "Editor");
+        TypeName sharedEditorName = storeEditorType(options);
+
+        pClass.addMethod(MethodSpec.methodBuilder("edit")
+                        .addModifiers(MODIFIERS)
+                        .addJavadoc("Starts a batch of changes, written out together by {@link Editor#apply()} or {@link Editor#commit()}.\n")
+                        .returns(editorName)
+                        .addStatement("return new $T($L.edit())", editorName, preferences(options, state))
+                        .build()
+        );
+
+        TypeSpec.Builder editor = TypeSpec.classBuilder("Editor")
+                .addModifiers(MODIFIERS)
+                .addField(FieldSpec.builder(sharedEditorName, "delegate", Modifier.PRIVATE, Modifier.FINAL).build())
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addModifiers(Modifier.PRIVATE)
+                        .addParameter(ParameterSpec.builder(sharedEditorName, "delegate", Modifier.FINAL).build())
+                        .addStatement("this.delegate = delegate")
+                        .build());
+        if (options.cacheValues) {
+            // What this editor wrote goes straight into the cache once it's written out, null for a removed key
+            editor.addField(FieldSpec.builder(ParameterizedTypeName.get(Map.class, String.class, Object.class), "writtenValues", Modifier.PRIVATE, Modifier.FINAL)
+                    .initializer("new $T<$T, $T>()", HashMap.class, String.class, Object.class)
+                    .build());
+        }
+
+        // Separate preference files get their own editor, only opened once something is written to them
+        Set<String> preferenceFiles = preferenceFiles(inputKeys, options);
+        for (String preferenceFile : preferenceFiles) {
+            String delegateName = "delegate" + preferenceFileName(preferenceFile);
+            editor.addField(FieldSpec.builder(sharedEditorName, delegateName, Modifier.PRIVATE).build());
+            editor.addMethod(MethodSpec.methodBuilder(delegateName)
+                            .addModifiers(Modifier.PRIVATE)
+                            .returns(sharedEditorName)
+                            .beginControlFlow("if ($N == null)", delegateName)
+                            .addStatement("$N = $Lpreferences$L().edit()", delegateName, state, preferenceFileName(preferenceFile))
+                            .endControlFlow()
+                            .addStatement("return $N", delegateName)
+                            .build()
+            );
+        }
+
+        for (PrefEntry entry : inputKeys) {
+            if (entry.valueType == null && entry.defaultType == null) {
+                continue;
+            }
+
+            Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
+            String blockName = camelCaseKey(entry.key);
+            MethodSpec.Builder setter = MethodSpec.methodBuilder(blockName)
+                    .addModifiers(Modifier.PUBLIC)
+                    .returns(editorName)
+                    .addParameter(ParameterSpec.builder(prefType, "val", Modifier.FINAL).build())
+                    .addStatement("$L.put$N($L, val)", editorDelegate(entry, options), StringUtils.capitalize(entry.valueType.getSimpleName()), keyReference(className, entry, options));
+            if (options.cacheValues && isCacheable(entry)) {
+                setter.addStatement("writtenValues.put($L, val)", keyReference(className, entry, options));
+            }
+            editor.addMethod(setter.addStatement("return this").build());
+        }
 
-        setUpContextAndPreferences(pClass, generateRx);
+        MethodSpec.Builder removeBuilder = MethodSpec.methodBuilder("remove")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(editorName)
+                .addParameter(ParameterSpec.builder(String.class, "key", Modifier.FINAL).build());
+        List<PrefEntry> separateEntries = new ArrayList<>();
+        for (PrefEntry entry : inputKeys) {
+            if (preferenceFile(entry, options) != null) {
+                separateEntries.add(entry);
+            }
+        }
+        if (separateEntries.isEmpty()) {
+            removeBuilder.addStatement("delegate.remove(key)");
+        } else if (separateEntries.size() <= ENTRIES_PER_METHOD) {
+            removeBuilder.beginControlFlow("switch (key)");
+            for (PrefEntry entry : separateEntries) {
+                removeBuilder.addCode("case $S:\n$>", entry.key)
+                        .addStatement("$L.remove(key)", editorDelegate(entry, options))
+                        .addStatement("break")
+                        .addCode("$<");
+            }
+            removeBuilder.addCode("default:\n$>")
+                    .addStatement("delegate.remove(key)")
+                    .addCode("$<")
+                    .endControlFlow();
+        } else {
+            // Each helper removes the keys it knows from their own file, and tells whether it did
+            List<String> removeCalls = addChunkHelpers(editor, "removeFromPreferenceFile", TypeName.BOOLEAN, false,
+                    Collections.singletonList(ParameterSpec.builder(String.class, "key", Modifier.FINAL).build()), separateEntries,
+                    new ChunkWriter() {
+                        @Override
+                        public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                            method.beginControlFlow("switch (key)");
+                            for (PrefEntry entry : entries) {
+                                method.addCode("case $S:\n$>", entry.key)
+                                        .addStatement("$L.remove(key)", editorDelegate(entry, options))
+                                        .addStatement("return true")
+                                        .addCode("$<");
+                            }
+                            method.endControlFlow()
+                                    .addStatement("return false");
+                        }
+                    });
+            removeBuilder.beginControlFlow("if (!($L))", Joiner.on(" || ").join(removeCalls))
+                    .addStatement("delegate.remove(key)")
+                    .endControlFlow();
+        }
+        if (options.cacheValues) {
+            removeBuilder.addStatement("writtenValues.put(key, null)");
+        }
+        editor.addMethod(removeBuilder.addStatement("return this").build());
 
-        pClass.addMethod(MethodSpec.constructorBuilder()
-                        .addModifiers(Modifier.PRIVATE)
-                        .addStatement("throw new $T($S)", AssertionError.class, "No instances.")
-                        .build()
-        );
+        MethodSpec.Builder applyBuilder = MethodSpec.methodBuilder("apply")
+                .addModifiers(Modifier.PUBLIC)
+                .addStatement("delegate.apply()");
+        MethodSpec.Builder commitBuilder = MethodSpec.methodBuilder("commit")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .addStatement("boolean committed = delegate.commit()");
+        for (String preferenceFile : preferenceFiles) {
+            String delegateName = "delegate" + preferenceFileName(preferenceFile);
+            applyBuilder.beginControlFlow("if ($N != null)", delegateName)
+                    .addStatement("$N.apply()", delegateName)
+                    .endControlFlow();
+            commitBuilder.beginControlFlow("if ($N != null)", delegateName)
+                    .addStatement("committed &= $N.commit()", delegateName)
+                    .endControlFlow();
+        }
+        if (options.cacheValues) {
+            // The in-memory map is up to date once these return, so the written values can be cached right
+            // away. A failed commit may have written only some of them, so those are read again instead.
+            TypeName writtenValueType = ParameterizedTypeName.get(Map.Entry.class, String.class, Object.class);
+            applyBuilder.beginControlFlow("for ($T written : writtenValues.entrySet())", writtenValueType)
+                    .addStatement("cacheWrittenValue(written.getKey(), written.getValue())")
+                    .endControlFlow()
+                    .addStatement("writtenValues.clear()");
+            commitBuilder.beginControlFlow("for ($T written : writtenValues.entrySet())", writtenValueType)
+                    .addStatement("cacheWrittenValue(written.getKey(), committed ? written.getValue() : null)")
+                    .endControlFlow()
+                    .addStatement("writtenValues.clear()");
+        }
+        editor.addMethod(applyBuilder.build());
+        editor.addMethod(commitBuilder.addStatement("return committed").build());
 
-        for (PrefEntry entry : inputKeys) {
-            pClass.addType(generatePrefBlock(entry, packageName, generateRx));
+        if (options.generateRx) {
+            TypeName observableOfBoolean = ParameterizedTypeName.get(CN_RX_OBSERVABLE, TypeName.get(Boolean.class));
+            TypeSpec deferredCommit = TypeSpec.anonymousClassBuilder("")
+                    .addSuperinterface(ParameterizedTypeName.get(CN_RX_FUNC0, observableOfBoolean))
+                    .addMethod(MethodSpec.methodBuilder("call")
+                            .addAnnotation(Override.class)
+                            .addModifiers(Modifier.PUBLIC)
+                            .returns(observableOfBoolean)
+                            .addStatement("return $T.just(commit())", CN_RX_OBSERVABLE)
+                            .build())
+                    .build();
+            editor.addMethod(MethodSpec.methodBuilder("rxCommit")
+                            .addModifiers(Modifier.PUBLIC)
+                            .addJavadoc("Commits the changes when subscribed to, emitting whether they were written successfully.\n")
+                            .returns(observableOfBoolean)
+                            .addStatement("return $T.defer($L)", CN_RX_OBSERVABLE, deferredCommit)
+                            .build()
+            );
         }
 
-        JavaFile javaFile = JavaFile.builder(packageName, pClass.build()).build();
-        javaFile.writeTo(outputDir);
+        pClass.addType(editor.build());
     }
 
-    private static void setUpContextAndPreferences(TypeSpec.Builder pClass, boolean generateRx) {
-        pClass.addField(FieldSpec.builder(Resources.class, "RESOURCES", Modifier.PRIVATE, Modifier.STATIC)
-                        .initializer("null")
-                        .build()
-        );
+    /**
+     * @return the Editor field or method that writes the given entry
+     */
+    private static String editorDelegate(PrefEntry entry, GenerationOptions options) {
+        String preferenceFile = preferenceFile(entry, options);
+        return preferenceFile == null ? "delegate" : "delegate" + preferenceFileName(preferenceFile) + "()";
+    }
 
-        pClass.addField(FieldSpec.builder(SharedPreferences.class, "PREFERENCES", Modifier.PRIVATE, Modifier.STATIC)
-                        .initializer("null")
+    /**
+     * Adds {@code snapshot()}, which reads every typed entry out of a single {@code getAll()} into an
+     * immutable Snapshot, and {@code restore()}, which writes one back through a single Editor.
+     */
+    private static void generateSnapshot(TypeSpec.Builder pClass, String packageName, final String className, List<PrefEntry> inputKeys, final GenerationOptions options, String state) {
+        ClassName snapshotName = ClassName.get(packageName, className, "Snapshot");
+        ClassName editorName = ClassName.get(packageName, className, "Editor");
+        TypeName allType = ParameterizedTypeName.get(ClassName.get(Map.class), TypeName.get(String.class), WildcardTypeName.subtypeOf(Object.class));
+
+        pClass.addMethod(MethodSpec.methodBuilder("snapshot")
+                        .addModifiers(MODIFIERS)
+                        .addJavadoc("Captures the current value of every typed preference at once.\n")
+                        .returns(snapshotName)
+                        .addStatement("return new $T($L.getAll())", snapshotName, preferences(options, state))
                         .build()
         );
 
-        if (generateRx) {
-            pClass.addField(FieldSpec.builder(CN_RX_PREFERENCES, "RX_PREFERENCES", Modifier.PRIVATE, Modifier.STATIC)
-                            .initializer("null")
+        TypeSpec.Builder snapshot = TypeSpec.classBuilder("Snapshot")
+                .addModifiers(MODIFIERS)
+                .addJavadoc("Values of every typed preference at the time of {@link $N#snapshot()}. Preferences that weren't set\n"
+                        + "(or were set to a value of the wrong type) hold their default value and aren't marked as set.\n", className)
+                .addField(FieldSpec.builder(BitSet.class, "presentKeys", Modifier.PRIVATE, Modifier.FINAL).build());
+
+        List<PrefEntry> snapshotEntries = new ArrayList<>();
+        for (PrefEntry entry : inputKeys) {
+            if (entry.valueType != null && entry.defaultType != null) {
+                snapshotEntries.add(entry);
+            }
+        }
+
+        // Values are read in chunks past ENTRIES_PER_METHOD, so the fields can't be final. Nothing outside
+        // the generated classes can write them though.
+        for (PrefEntry entry : snapshotEntries) {
+            String blockName = camelCaseKey(entry.key);
+            snapshot.addField(FieldSpec.builder(entry.valueType, blockName, Modifier.PRIVATE).build());
+            snapshot.addMethod(MethodSpec.methodBuilder(blockName)
+                            .addModifiers(Modifier.PUBLIC)
+                            .returns(entry.valueType)
+                            .addStatement("return $N", blockName)
                             .build()
             );
         }
 
-        pClass.addMethod(MethodSpec.methodBuilder("init")
-                        .addModifiers(MODIFIERS)
-                        .addJavadoc("Initializer that takes a {@link Context} for resource resolution. This should be an Application context instance, and will retrieve default shared preferences.\n")
-                        .addParameter(ParameterSpec.builder(Context.class, "applicationContext", Modifier.FINAL).build())
-                        .beginControlFlow("if (applicationContext == null)")
-                        .addStatement("throw new $T($S)", IllegalStateException.class, "applicationContext cannot be null!")
-                        .endControlFlow()
-                        .beginControlFlow("if (!(applicationContext instanceof $T))", Application.class)
-                        .addStatement("throw new $T($S)", IllegalArgumentException.class, "You may only use an Application instance as context!")
-                        .endControlFlow()
-                        .addStatement("RESOURCES = applicationContext.getResources()")
-                        .addStatement("// Sensible default")
-                        .addStatement("setSharedPreferences($T.getDefaultSharedPreferences(applicationContext))", PreferenceManager.class)
-                        .build()
-        );
+        MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(ParameterSpec.builder(allType, "all", Modifier.FINAL).build())
+                .addStatement("presentKeys = new $T($L)", BitSet.class, inputKeys.size());
+        // Entries in separate preference files are read from one getAll() per file
+        List<ParameterSpec> allMaps = new ArrayList<>();
+        allMaps.add(ParameterSpec.builder(allType, "all", Modifier.FINAL).build());
+        for (String preferenceFile : preferenceFiles(inputKeys, options)) {
+            String allName = "all" + preferenceFileName(preferenceFile);
+            constructor.addStatement("$T $N = $Lpreferences$L().getAll()", allType, allName, state, preferenceFileName(preferenceFile));
+            allMaps.add(ParameterSpec.builder(allType, allName, Modifier.FINAL).build());
+        }
+        addChunked(snapshot, constructor, "readValues", false, allMaps, snapshotEntries, new ChunkWriter() {
+            @Override
+            public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                method.addStatement("$T value", Object.class);
+                for (int i = 0; i < entries.size(); i++) {
+                    PrefEntry entry = entries.get(i);
+                    String blockName = camelCaseKey(entry.key);
+                    Class<?> boxedType = Primitives.wrap(entry.valueType);
 
-        MethodSpec.Builder setSharedPreferencesBuilder = MethodSpec.methodBuilder("setSharedPreferences")
-                .addModifiers(MODIFIERS)
-                .addParameter(ParameterSpec.builder(SharedPreferences.class, "sharedPreferences", Modifier.FINAL).build())
-                .beginControlFlow("if (sharedPreferences == null)")
-                .addStatement("throw new $T($S)", IllegalStateException.class, "sharedPreferences cannot be null!")
-                .endControlFlow()
-                .addStatement("PREFERENCES = sharedPreferences");
+                    // Fields shadow the block classes in here, so blocks are always qualified with the outer class
+                    String preferenceFile = preferenceFile(entry, options);
+                    method.addStatement("value = $N.get($L)", preferenceFile == null ? "all" : "all" + preferenceFileName(preferenceFile), keyReference(className, entry, options))
+                            .beginControlFlow("if (value instanceof $T)", boxedType)
+                            .addStatement("this.$N = ($T) value", blockName, boxedType)
+                            .addStatement("presentKeys.set($L)", first + i)
+                            .nextControlFlow("else")
+                            .addStatement("this.$N = $L", blockName, defaultValueReference(className, entry, options))
+                            .endControlFlow();
+                }
+            }
+        });
+        snapshot.addMethod(constructor.build());
 
-        if (generateRx) {
-            setSharedPreferencesBuilder.addStatement("RX_PREFERENCES = $T.create(PREFERENCES)", CN_RX_PREFERENCES);
+        ChunkWriter isSetWriter = new ChunkWriter() {
+            @Override
+            public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                method.beginControlFlow("switch (key)");
+                for (int i = 0; i < entries.size(); i++) {
+                    method.addCode("case $S:\n$>", entries.get(i).key)
+                            .addStatement("return presentKeys.get($L)", first + i)
+                            .addCode("$<");
+                }
+                method.endControlFlow()
+                        .addStatement("return false");
+            }
+        };
+        MethodSpec.Builder isSet = MethodSpec.methodBuilder("isSet")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .addParameter(ParameterSpec.builder(String.class, "key", Modifier.FINAL).build());
+        if (snapshotEntries.size() <= ENTRIES_PER_METHOD) {
+            isSetWriter.write(isSet, snapshotEntries, 0);
+        } else {
+            List<String> isSetCalls = addChunkHelpers(snapshot, "isSet", TypeName.BOOLEAN, false,
+                    Collections.singletonList(ParameterSpec.builder(String.class, "key", Modifier.FINAL).build()), snapshotEntries, isSetWriter);
+            isSet.addStatement("return $L", Joiner.on(" || ").join(isSetCalls));
         }
+        snapshot.addMethod(isSet.build());
 
-        pClass.addMethod(setSharedPreferencesBuilder.build());
+        MethodSpec.Builder toString = MethodSpec.methodBuilder("toString")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(String.class)
+                .addStatement("$T builder = new $T($S)", StringBuilder.class, StringBuilder.class, "Snapshot{");
+        addChunked(snapshot, toString, "appendValues", false,
+                Collections.singletonList(ParameterSpec.builder(StringBuilder.class, "builder", Modifier.FINAL).build()), snapshotEntries, new ChunkWriter() {
+                    @Override
+                    public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                        for (int i = 0; i < entries.size(); i++) {
+                            PrefEntry entry = entries.get(i);
+                            method.addStatement("builder.append($S).append(this.$N)", (first + i == 0 ? "" : ", ") + entry.key + "=", camelCaseKey(entry.key));
+                        }
+                    }
+                });
+        snapshot.addMethod(toString.addStatement("return builder.append('}').toString()").build());
+
+        MethodSpec.Builder restoreBuilder = MethodSpec.methodBuilder("restore")
+                .addModifiers(MODIFIERS)
+                .addJavadoc("Writes back every value in the snapshot, and removes the preferences that weren't set, in a single commit.\n")
+                .returns(boolean.class)
+                .addParameter(ParameterSpec.builder(snapshotName, "snapshot", Modifier.FINAL).build())
+                .addStatement("$T editor = edit()", editorName);
+        addChunked(pClass, restoreBuilder, "restoreValues", true,
+                Arrays.asList(ParameterSpec.builder(snapshotName, "snapshot", Modifier.FINAL).build(), ParameterSpec.builder(editorName, "editor", Modifier.FINAL).build()),
+                snapshotEntries, new ChunkWriter() {
+                    @Override
+                    public void write(MethodSpec.Builder method, List<PrefEntry> entries, int first) {
+                        for (int i = 0; i < entries.size(); i++) {
+                            PrefEntry entry = entries.get(i);
+                            String blockName = camelCaseKey(entry.key);
+                            method.beginControlFlow("if (snapshot.presentKeys.get($L))", first + i)
+                                    .addStatement("editor.$N(snapshot.$N)", blockName, blockName)
+                                    .nextControlFlow("else")
+                                    .addStatement("editor.remove($L)", keyReference(className, entry, options))
+                                    .endControlFlow();
+                        }
+                    }
+                });
+        pClass.addMethod(restoreBuilder.addStatement("return editor.commit()").build());
+        pClass.addType(snapshot.build());
+    }
+
+    /**
+     * Adds everything generated for an entry to the class owning it: a nested block class, or with
+     * {@link GenerationOptions#flat} the members that block would have had, prefixed with its name.
+     */
+    private static void addPrefMembers(TypeSpec.Builder owner, PrefEntry entry, String packageName, String className, GenerationOptions options, String state) {
+        if (options.flat) {
+            generateFlatPrefMembers(owner, entry, packageName, className, options, state);
+        } else {
+            owner.addType(generatePrefBlock(entry, packageName, className, options, state));
+        }
     }
 
-    private static TypeSpec generatePrefBlock(PrefEntry entry, String packageName, boolean generateRx) {
+    /**
+     * @param state Qualifier for the shared state (PREFERENCES and friends), empty when it's in the enclosing class
+     */
+    private static TypeSpec generatePrefBlock(PrefEntry entry, String packageName, String className, GenerationOptions options, String state) {
         TypeSpec.Builder entryClass = TypeSpec.classBuilder(camelCaseKey(entry.key)).addModifiers(MODIFIERS);
         entryClass.addField(FieldSpec.builder(String.class, "key", MODIFIERS).initializer("$S", entry.key).build());
 
         if (entry.defaultType != null) {
             if (entry.isResource) {
                 entryClass.addField(FieldSpec.builder(int.class, "defaultResId", MODIFIERS).initializer("$T.$N.$N", ClassName.get(packageName, "R"), entry.resType, entry.defaultValue).build());
-                entryClass.addMethod(generateResolveDefaultResMethod(entry));
+            }
+            if (entry.isResource && entry.inlinedDefaultValue != null) {
+                entryClass.addMethod(MethodSpec.methodBuilder("defaultValue")
+                        .addModifiers(MODIFIERS)
+                        .returns(entry.valueType)
+                        .addStatement("return $L", inlinedDefault(entry))
+                        .build());
+            } else if (entry.isResource) {
+                entryClass.addField(FieldSpec.builder(entry.valueType, "resolvedDefaultValue", Modifier.PRIVATE, Modifier.STATIC).build());
+                entryClass.addField(FieldSpec.builder(boolean.class, "hasResolvedDefaultValue", Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build());
+                entryClass.addMethod(generateResolveDefaultResMethod(entry, state));
             } else {
                 boolean isString = entry.defaultType == String.class;
                 entryClass.addMethod(MethodSpec.methodBuilder("defaultValue")
@@ -134,30 +1455,56 @@ public final class PClassGenerator {
             }
         }
 
+        boolean cacheValue = options.cacheValues && isCacheable(entry);
+
         // Add getter
         if (entry.valueType != null || entry.defaultType != null) {
             Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
-            entryClass.addMethod(MethodSpec.methodBuilder("get")
-                            .addModifiers(MODIFIERS)
-                            .returns(prefType)
-                            .addStatement("return PREFERENCES.$N", resolvePreferenceStmt(entry, true))
-                            .build()
-            );
+            if (cacheValue) {
+                entryClass.addField(FieldSpec.builder(prefType, "cachedValue", Modifier.PRIVATE, Modifier.STATIC).build());
+                entryClass.addField(FieldSpec.builder(boolean.class, "hasCachedValue", Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build());
+                entryClass.addMethod(MethodSpec.methodBuilder("get")
+                                .addModifiers(MODIFIERS)
+                                .returns(prefType)
+                                .beginControlFlow("if (!hasCachedValue)")
+                                .beginControlFlow("synchronized ($LCACHE_LOCK)", state)
+                                .beginControlFlow("if (!hasCachedValue)")
+                                .addStatement("cachedValue = $L.$N", preferences(entry, options, state), resolvePreferenceStmt(entry, true, "key", "defaultValue()"))
+                                .addStatement("hasCachedValue = true")
+                                .endControlFlow()
+                                .endControlFlow()
+                                .endControlFlow()
+                                .addStatement("return cachedValue")
+                                .build()
+                );
+            } else {
+                entryClass.addMethod(MethodSpec.methodBuilder("get")
+                                .addModifiers(MODIFIERS)
+                                .returns(prefType)
+                                .addStatement("return $L.$N", preferences(entry, options, state), resolvePreferenceStmt(entry, true, "key", "defaultValue()"))
+                                .build()
+                );
+            }
 
-            entryClass.addMethod(MethodSpec.methodBuilder("put")
-                            .addModifiers(MODIFIERS)
-                            .returns(SharedPreferences.Editor.class)
-                            .addParameter(ParameterSpec.builder(prefType, "val", Modifier.FINAL).build())
-                            .addStatement("return PREFERENCES.edit().$N", resolvePreferenceStmt(entry, false))
+            MethodSpec.Builder putBuilder = MethodSpec.methodBuilder("put")
+                    .addModifiers(MODIFIERS)
+                    .returns(storeEditorType(options))
+                    .addParameter(ParameterSpec.builder(prefType, "val", Modifier.FINAL).build());
+            if (cacheValue) {
+                // The returned editor may never be applied, so drop the cached value rather than trusting val
+                putBuilder.addStatement("invalidate()");
+            }
+            entryClass.addMethod(putBuilder
+                            .addStatement("return $L.edit().$N", preferences(entry, options, state), resolvePreferenceStmt(entry, false, "key", "defaultValue()"))
                             .build()
             );
 
             Class<?> referenceType = resolveReferenceType(prefType);
-            if (generateRx && referenceType != null) {
+            if (options.generateRx && referenceType != null) {
                 entryClass.addMethod(MethodSpec.methodBuilder("rx")
                                 .addModifiers(MODIFIERS)
                                 .returns(ParameterizedTypeName.get(CN_RX_PREFERENCE, TypeName.get(referenceType)))
-                                .addStatement("return RX_PREFERENCES.get$N(key)", referenceType.getSimpleName())
+                                .addStatement("return $L.get$N(key)", rxPreferences(entry, options, state), referenceType.getSimpleName())
                                 .build()
                 );
             }
@@ -168,7 +1515,7 @@ public final class PClassGenerator {
                 entryClass.addMethod(MethodSpec.methodBuilder("entries")
                                 .addModifiers(MODIFIERS)
                                 .returns(CharSequence[].class)
-                                .addStatement("return RESOURCES." + entry.entriesGetterStmt)
+                                .addStatement("return $LRESOURCES.$L", state, entry.entriesGetterStmt)
                                 .build()
                 );
             }
@@ -176,15 +1523,399 @@ public final class PClassGenerator {
                 entryClass.addMethod(MethodSpec.methodBuilder("entryValues")
                                 .addModifiers(MODIFIERS)
                                 .returns(CharSequence[].class)
-                                .addStatement("return RESOURCES." + entry.entryValuesGetterStmt)
+                                .addStatement("return $LRESOURCES.$L", state, entry.entryValuesGetterStmt)
                                 .build()
                 );
             }
         }
 
+        if (hasResourceDefault(entry)) {
+            entryClass.addMethod(MethodSpec.methodBuilder("clearResolvedDefault")
+                            .addModifiers(Modifier.STATIC)
+                            .addStatement("hasResolvedDefaultValue = false")
+                            .build()
+            );
+        }
+
+        if (options.generateObservers && isCacheable(entry)) {
+            addObserverMembers(entryClass, entry, packageName, className, "");
+        }
+
+        if (cacheValue) {
+            entryClass.addMethod(MethodSpec.methodBuilder("invalidate")
+                            .addModifiers(Modifier.STATIC)
+                            .beginControlFlow("synchronized ($LCACHE_LOCK)", state)
+                            .addStatement("hasCachedValue = false")
+                            .endControlFlow()
+                            .build()
+            );
+            Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
+            entryClass.addMethod(MethodSpec.methodBuilder("cache")
+                            .addModifiers(Modifier.STATIC)
+                            .addParameter(ParameterSpec.builder(prefType, "val", Modifier.FINAL).build())
+                            .beginControlFlow("synchronized ($LCACHE_LOCK)", state)
+                            .addStatement("cachedValue = val")
+                            .addStatement("hasCachedValue = true")
+                            .endControlFlow()
+                            .build()
+            );
+        }
+
         return entryClass.build();
     }
 
+    /**
+     * Flat counterpart of {@link #generatePrefBlock}. Every entry costs a class (and its constructor) in
+     * the nested layout, which adds up in the dex with hundreds of keys. Here the key becomes a
+     * {@code KEY_} constant and the block's methods become static methods of the owner, so
+     * {@code P.numRows.get()} is {@code P.getNumRows()} and {@code P.numRows.key} is {@code P.KEY_NUM_ROWS}.
+     */
+    private static void generateFlatPrefMembers(TypeSpec.Builder owner, PrefEntry entry, String packageName, String className, GenerationOptions options, String state) {
+        String name = flatName(entry);
+        String keyConstant = "KEY_" + flatConstant(entry);
+        String defaultValue = "default" + name + "()";
+        owner.addField(FieldSpec.builder(String.class, keyConstant, MODIFIERS).initializer("$S", entry.key).build());
+
+        if (entry.defaultType != null) {
+            String defaultResIdConstant = "DEFAULT_RES_ID_" + flatConstant(entry);
+            if (entry.isResource) {
+                owner.addField(FieldSpec.builder(int.class, defaultResIdConstant, MODIFIERS).initializer("$T.$N.$N", ClassName.get(packageName, "R"), entry.resType, entry.defaultValue).build());
+            }
+            if (entry.isResource && entry.inlinedDefaultValue != null) {
+                owner.addMethod(MethodSpec.methodBuilder("default" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(entry.valueType)
+                                .addStatement("return $L", inlinedDefault(entry))
+                                .build()
+                );
+            } else if (entry.isResource) {
+                String resolvedField = "resolvedDefault" + name;
+                String hasResolvedField = "hasResolvedDefault" + name;
+                owner.addField(FieldSpec.builder(entry.valueType, resolvedField, Modifier.PRIVATE, Modifier.STATIC).build());
+                owner.addField(FieldSpec.builder(boolean.class, hasResolvedField, Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build());
+                // The getter statement is written against the nested block's defaultResId field
+                owner.addMethod(MethodSpec.methodBuilder("default" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(entry.valueType)
+                                .beginControlFlow("if (!$N)", hasResolvedField)
+                                .addStatement("$N = $LRESOURCES.$L", resolvedField, state, entry.resourceDefaultValueGetterStmt.replace("defaultResId", defaultResIdConstant))
+                                .addStatement("$N = true", hasResolvedField)
+                                .endControlFlow()
+                                .addStatement(returnResolvedDefaultStmt(entry), resolvedField)
+                                .build()
+                );
+            } else {
+                boolean isString = entry.defaultType == String.class;
+                owner.addMethod(MethodSpec.methodBuilder("default" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(entry.defaultType)
+                                .addStatement("return " + (isString ? "$S" : "$N"), isString ? entry.defaultValue : entry.defaultValue.toString())
+                                .build()
+                );
+            }
+        }
+
+        if (entry.valueType != null || entry.defaultType != null) {
+            Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
+            MethodSpec.Builder getBuilder = MethodSpec.methodBuilder("get" + name)
+                    .addModifiers(MODIFIERS)
+                    .returns(prefType);
+            MethodSpec.Builder putBuilder = MethodSpec.methodBuilder("put" + name)
+                    .addModifiers(MODIFIERS)
+                    .returns(storeEditorType(options))
+                    .addParameter(ParameterSpec.builder(prefType, "val", Modifier.FINAL).build());
+
+            if (options.cacheValues && isCacheable(entry)) {
+                String cachedField = "cached" + name;
+                String hasCachedField = "hasCached" + name;
+                owner.addField(FieldSpec.builder(prefType, cachedField, Modifier.PRIVATE, Modifier.STATIC).build());
+                owner.addField(FieldSpec.builder(boolean.class, hasCachedField, Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build());
+                getBuilder.beginControlFlow("if (!$N)", hasCachedField)
+                        .beginControlFlow("synchronized ($LCACHE_LOCK)", state)
+                        .beginControlFlow("if (!$N)", hasCachedField)
+                        .addStatement("$N = $L.$L", cachedField, preferences(entry, options, state), resolvePreferenceStmt(entry, true, keyConstant, defaultValue))
+                        .addStatement("$N = true", hasCachedField)
+                        .endControlFlow()
+                        .endControlFlow()
+                        .endControlFlow()
+                        .addStatement("return $N", cachedField);
+                // The returned editor may never be applied, so drop the cached value rather than trusting val
+                putBuilder.beginControlFlow("synchronized ($LCACHE_LOCK)", state)
+                        .addStatement("$N = false", hasCachedField)
+                        .endControlFlow();
+            } else {
+                getBuilder.addStatement("return $L.$L", preferences(entry, options, state), resolvePreferenceStmt(entry, true, keyConstant, defaultValue));
+            }
+            owner.addMethod(getBuilder.build());
+            owner.addMethod(putBuilder
+                            .addStatement("return $L.edit().$L", preferences(entry, options, state), resolvePreferenceStmt(entry, false, keyConstant, defaultValue))
+                            .build()
+            );
+
+            Class<?> referenceType = resolveReferenceType(prefType);
+            if (options.generateRx && referenceType != null) {
+                owner.addMethod(MethodSpec.methodBuilder("rx" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(ParameterizedTypeName.get(CN_RX_PREFERENCE, TypeName.get(referenceType)))
+                                .addStatement("return $L.get$N($N)", rxPreferences(entry, options, state), referenceType.getSimpleName(), keyConstant)
+                                .build()
+                );
+            }
+        }
+
+        if (entry.hasListAttributes) {
+            if (entry.entriesGetterStmt != null) {
+                owner.addMethod(MethodSpec.methodBuilder("entries" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(CharSequence[].class)
+                                .addStatement("return $LRESOURCES.$L", state, entry.entriesGetterStmt)
+                                .build()
+                );
+            }
+            if (entry.entryValuesGetterStmt != null) {
+                owner.addMethod(MethodSpec.methodBuilder("entryValues" + name)
+                                .addModifiers(MODIFIERS)
+                                .returns(CharSequence[].class)
+                                .addStatement("return $LRESOURCES.$L", state, entry.entryValuesGetterStmt)
+                                .build()
+                );
+            }
+        }
+
+        if (options.generateObservers && isCacheable(entry)) {
+            addObserverMembers(owner, entry, packageName, className, name);
+        }
+    }
+
+    /**
+     * @return the entry's name as used in the members generated for it in flat mode, e.g. NumRows
+     */
+    static String flatName(PrefEntry entry) {
+        return StringUtils.capitalize(camelCaseKey(entry.key));
+    }
+
+    /**
+     * @return the entry's name as used in the constants generated for it in flat mode, e.g. NUM_ROWS
+     */
+    static String flatConstant(PrefEntry entry) {
+        return CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, camelCaseKey(entry.key));
+    }
+
+    private static TypeName storeType(GenerationOptions options) {
+        return GenerationOptions.BACKEND_MAPPED.equals(options.backend) ? CN_PREF_STORE : ClassName.get(SharedPreferences.class);
+    }
+
+    private static TypeName storeEditorType(GenerationOptions options) {
+        return GenerationOptions.BACKEND_MAPPED.equals(options.backend) ? CN_PREF_STORE_EDITOR : ClassName.get(SharedPreferences.Editor.class);
+    }
+
+    private static TypeName storeListenerType(GenerationOptions options) {
+        return GenerationOptions.BACKEND_MAPPED.equals(options.backend) ? CN_PREF_STORE_LISTENER : ClassName.get(SharedPreferences.OnSharedPreferenceChangeListener.class);
+    }
+
+    /**
+     * Opens the default store into a {@code preferences} local and makes sure it's loaded, which is
+     * the part of init() that touches the disk.
+     */
+    private static CodeBlock openStore(GenerationOptions options) {
+        CodeBlock.Builder open = CodeBlock.builder();
+        if (!GenerationOptions.BACKEND_MAPPED.equals(options.backend)) {
+            return open.addStatement("final $T preferences = $T.getDefaultSharedPreferences(applicationContext)", SharedPreferences.class, PreferenceManager.class)
+                    .add("// Blocks until the file has been read from disk\n")
+                    .addStatement("preferences.contains($S)", "")
+                    .build();
+        }
+
+        // The first time around, carry over whatever is in the default SharedPreferences
+        return open.addStatement("final $T storeFile = new $T(applicationContext.getFilesDir(), applicationContext.getPackageName() + $S)", File.class, File.class, "_preferences.store")
+                .addStatement("final $T preferences", CN_PREF_STORE)
+                .beginControlFlow("try")
+                .addStatement("preferences = storeFile.exists()\n$>? $T.open(storeFile)\n: $T.migrate(storeFile, $T.getDefaultSharedPreferences(applicationContext).getAll())$<",
+                        CN_MAPPED_PREF_STORE, CN_MAPPED_PREF_STORE, PreferenceManager.class)
+                .nextControlFlow("catch ($T e)", IOException.class)
+                .addStatement("throw new $T($S + storeFile, e)", IllegalStateException.class, "Could not open ")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * @return an expression for the current SharedPreferences, which waits for them with {@link GenerationOptions#asyncInit}
+     */
+    private static String preferences(GenerationOptions options, String state) {
+        return state + (options.asyncInit ? "preferences()" : "PREFERENCES");
+    }
+
+    private static String rxPreferences(GenerationOptions options, String state) {
+        return state + (options.asyncInit ? "rxPreferences()" : "RX_PREFERENCES");
+    }
+
+    /**
+     * @return an expression for the SharedPreferences holding the given entry
+     */
+    private static String preferences(PrefEntry entry, GenerationOptions options, String state) {
+        String preferenceFile = preferenceFile(entry, options);
+        return preferenceFile == null ? preferences(options, state) : state + "preferences" + preferenceFileName(preferenceFile) + "()";
+    }
+
+    private static String rxPreferences(PrefEntry entry, GenerationOptions options, String state) {
+        String preferenceFile = preferenceFile(entry, options);
+        return preferenceFile == null ? rxPreferences(options, state) : state + "rxPreferences" + preferenceFileName(preferenceFile) + "()";
+    }
+
+    /**
+     * @return the name of the SharedPreferences file holding the entry, or null for the default one.
+     * A tools:preferenceFile attribute wins over {@link GenerationOptions#preferenceFiles}.
+     */
+    static String preferenceFile(PrefEntry entry, GenerationOptions options) {
+        if (!StringUtils.isEmpty(entry.preferenceFile)) {
+            return entry.preferenceFile;
+        }
+        if (entry.sourceFile == null) {
+            return null;
+        }
+
+        String fileName = new File(entry.sourceFile).getName();
+        int extension = fileName.lastIndexOf('.');
+        String preferenceFile = options.preferenceFiles.get(extension > 0 ? fileName.substring(0, extension) : fileName);
+        return StringUtils.isEmpty(preferenceFile) ? null : preferenceFile;
+    }
+
+    /**
+     * @return every separate preference file the entries use, sorted
+     */
+    static Set<String> preferenceFiles(List<PrefEntry> inputKeys, GenerationOptions options) {
+        Set<String> preferenceFiles = new TreeSet<>();
+        for (PrefEntry entry : inputKeys) {
+            String preferenceFile = preferenceFile(entry, options);
+            if (preferenceFile != null) {
+                preferenceFiles.add(preferenceFile);
+            }
+        }
+        return preferenceFiles;
+    }
+
+    /**
+     * @return the preference file name as used in generated member names, e.g. ColdSettings
+     */
+    private static String preferenceFileName(String preferenceFile) {
+        String identifier = preferenceFile.replaceAll("[^A-Za-z0-9]", "_").toLowerCase(Locale.US);
+        return CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, identifier);
+    }
+
+    private static String preferenceFileConstant(String preferenceFile) {
+        return CaseFormat.UPPER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, preferenceFileName(preferenceFile));
+    }
+
+    /**
+     * @return an expression for the entry's key from anywhere in the package
+     */
+    private static String keyReference(String className, PrefEntry entry, GenerationOptions options) {
+        return options.flat
+                ? className + ".KEY_" + flatConstant(entry)
+                : className + "." + camelCaseKey(entry.key) + ".key";
+    }
+
+    /**
+     * @return an expression for the entry's default value from anywhere in the package
+     */
+    private static String defaultValueReference(String className, PrefEntry entry, GenerationOptions options) {
+        return options.flat
+                ? className + ".default" + flatName(entry) + "()"
+                : className + "." + camelCaseKey(entry.key) + ".defaultValue()";
+    }
+
+    /**
+     * Writes the code for a run of entries into a generated method.
+     */
+    private interface ChunkWriter {
+
+        /**
+         * @param method Method to write into, either the one the entries belong to or one of its helpers
+         * @param entries The entries to write the code for
+         * @param first Index of the first of these entries among all of them
+         */
+        void write(MethodSpec.Builder method, List<PrefEntry> entries, int first);
+    }
+
+    /**
+     * Has the writer write the code for all the entries into the method itself, or if there are more than
+     * {@link #ENTRIES_PER_METHOD} of them, into void helpers that the method then calls in turn.
+     */
+    private static void addChunked(TypeSpec.Builder owner, MethodSpec.Builder method, String helperName, boolean isStatic,
+                                   List<ParameterSpec> parameters, List<PrefEntry> entries, ChunkWriter writer) {
+        if (entries.size() <= ENTRIES_PER_METHOD) {
+            writer.write(method, entries, 0);
+            return;
+        }
+        for (String call : addChunkHelpers(owner, helperName, TypeName.VOID, isStatic, parameters, entries, writer)) {
+            method.addStatement(call);
+        }
+    }
+
+    /**
+     * Adds a private helper per {@link #ENTRIES_PER_METHOD} entries, named helperName0, helperName1... and
+     * taking the given parameters, with the writer writing each one's body.
+     *
+     * @return a call to each helper, with the parameters passed through
+     */
+    private static List<String> addChunkHelpers(TypeSpec.Builder owner, String helperName, TypeName returns, boolean isStatic,
+                                                List<ParameterSpec> parameters, List<PrefEntry> entries, ChunkWriter writer) {
+        List<String> parameterNames = new ArrayList<>();
+        for (ParameterSpec parameter : parameters) {
+            parameterNames.add(parameter.name);
+        }
+
+        List<String> calls = new ArrayList<>();
+        int first = 0;
+        for (List<PrefEntry> chunk : Lists.partition(entries, ENTRIES_PER_METHOD)) {
+            String name = helperName + calls.size();
+            MethodSpec.Builder helper = MethodSpec.methodBuilder(name)
+                    .addModifiers(isStatic ? new Modifier[]{Modifier.PRIVATE, Modifier.STATIC} : new Modifier[]{Modifier.PRIVATE})
+                    .returns(returns)
+                    .addParameters(parameters);
+            writer.write(helper, chunk, first);
+            owner.addMethod(helper.build());
+            calls.add(name + "(" + Joiner.on(", ").join(parameterNames) + ")");
+            first += chunk.size();
+        }
+        return calls;
+    }
+
+    /**
+     * @return true if this entry's value can be kept in a cache field, which is the case for the
+     * types SharedPreferences can read directly
+     */
+    static boolean isCacheable(PrefEntry entry) {
+        Class<?> prefType = entry.valueType != null ? entry.valueType : entry.defaultType;
+        return prefType == boolean.class || prefType == int.class || prefType == String.class;
+    }
+
+    /**
+     * @return true if this entry's default value comes from a resource at runtime, and so gets memoized
+     */
+    static boolean hasResourceDefault(PrefEntry entry) {
+        return entry.defaultType != null && entry.isResource && entry.inlinedDefaultValue == null;
+    }
+
+    /**
+     * @return the entry's default resource value resolved at build time, as a Java literal
+     */
+    private static CodeBlock inlinedDefault(PrefEntry entry) {
+        Object value = entry.inlinedDefaultValue;
+        return value instanceof String
+                ? CodeBlock.builder().add("$S", value).build()
+                : CodeBlock.builder().add("$L", value).build();
+    }
+
+    private static boolean hasResourceDefaults(List<PrefEntry> inputKeys) {
+        for (PrefEntry entry : inputKeys) {
+            if (hasResourceDefault(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     static String camelCaseKey(String input) {
 
         // Default to lower_underscore, as this is the platform convention
@@ -205,14 +1936,32 @@ public final class PClassGenerator {
         return format == CaseFormat.LOWER_CAMEL ? input : format.to(CaseFormat.LOWER_CAMEL, input);
     }
 
-    private static MethodSpec generateResolveDefaultResMethod(PrefEntry entry) {
+    /**
+     * Resolving a resource means a table lookup, and a new instance for strings, every time. The value
+     * only changes with the configuration, so it's resolved once and kept until {@code init} runs again.
+     * Racing threads at worst both resolve the same value.
+     */
+    private static MethodSpec generateResolveDefaultResMethod(PrefEntry entry, String state) {
         return MethodSpec.methodBuilder("defaultValue")
                 .addModifiers(MODIFIERS)
                 .returns(entry.valueType)
-                .addCode(CodeBlock.builder().addStatement("return RESOURCES.$N", entry.resourceDefaultValueGetterStmt).build())
+                .addCode(CodeBlock.builder()
+                        .beginControlFlow("if (!hasResolvedDefaultValue)")
+                        .addStatement("resolvedDefaultValue = $LRESOURCES.$N", state, entry.resourceDefaultValueGetterStmt)
+                        .addStatement("hasResolvedDefaultValue = true")
+                        .endControlFlow()
+                        .addStatement(returnResolvedDefaultStmt(entry), "resolvedDefaultValue")
+                        .build())
                 .build();
     }
 
+    /**
+     * Arrays are handed out as copies, so a caller changing one can't change every later default.
+     */
+    private static String returnResolvedDefaultStmt(PrefEntry entry) {
+        return entry.valueType.isArray() ? "return $N.clone()" : "return $N";
+    }
+
     private static Class<?> resolveReferenceType(Class<?> clazz) {
         if (!clazz.isPrimitive()) {
             return clazz;
@@ -230,8 +1979,11 @@ public final class PClassGenerator {
         }
     }
 
-    private static String resolvePreferenceStmt(PrefEntry entry, boolean isGetter) {
-        String defaultValue = "defaultValue()";
+    /**
+     * @param key Expression for the key
+     * @param defaultValue Expression for the default value, only used if the entry has one
+     */
+    private static String resolvePreferenceStmt(PrefEntry entry, boolean isGetter, String key, String defaultValue) {
         String simpleName = StringUtils.capitalize(entry.valueType.getSimpleName());
         if (entry.defaultType == null) {
             // No defaultValue() method will be available
@@ -252,9 +2004,9 @@ public final class PClassGenerator {
         }
 
         if (isGetter) {
-            return "get" + simpleName + "(key, " + defaultValue + ")";
+            return "get" + simpleName + "(" + key + ", " + defaultValue + ")";
         } else {
-            return "put" + simpleName + "(key, val)";
+            return "put" + simpleName + "(" + key + ", val)";
         }
     }
 
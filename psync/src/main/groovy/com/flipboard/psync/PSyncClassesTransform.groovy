@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Flipboard Inc
+ */
+
+package com.flipboard.psync
+
+import com.android.build.api.transform.Context
+import com.android.build.api.transform.DirectoryInput
+import com.android.build.api.transform.Format
+import com.android.build.api.transform.JarInput
+import com.android.build.api.transform.QualifiedContent
+import com.android.build.api.transform.Transform
+import com.android.build.api.transform.TransformException
+import com.android.build.api.transform.TransformInput
+import com.android.build.api.transform.TransformOutputProvider
+import com.google.common.collect.ImmutableSet
+import com.google.common.io.Files
+import groovy.io.FileType
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Adds the classes a {@link PSyncTask} compiled to the ones the variant dexes and packages, next to
+ * the output of its javac instead of in it. Only registered with {@link PSyncPluginExtension#generateBytecode}.
+ */
+@CompileStatic
+class PSyncClassesTransform extends Transform {
+
+    /**
+     * Classes directory of each variant's PSync task, keyed by the path of that variant's transform task
+     */
+    final Map<String, File> classesDirs = new ConcurrentHashMap<>()
+
+    @Override
+    String getName() {
+        return "psyncClasses"
+    }
+
+    @Override
+    Set<QualifiedContent.ContentType> getInputTypes() {
+        return ImmutableSet.<QualifiedContent.ContentType>of(QualifiedContent.DefaultContentType.CLASSES)
+    }
+
+    @Override
+    Set<QualifiedContent.Scope> getScopes() {
+        return EnumSet.of(QualifiedContent.Scope.PROJECT)
+    }
+
+    @Override
+    boolean isIncremental() {
+        return false
+    }
+
+    @Override
+    void transform(Context context, Collection<TransformInput> inputs, Collection<TransformInput> referencedInputs,
+                   TransformOutputProvider outputProvider, boolean isIncremental) throws IOException, TransformException, InterruptedException {
+        outputProvider.deleteAll()
+
+        // The project's own classes go through untouched
+        inputs.each { TransformInput input ->
+            input.directoryInputs.each { DirectoryInput directory ->
+                copyDirectory(directory.file, outputProvider.getContentLocation(directory.name, directory.contentTypes, directory.scopes, Format.DIRECTORY))
+            }
+            input.jarInputs.each { JarInput jar ->
+                File output = outputProvider.getContentLocation(jar.name, jar.contentTypes, jar.scopes, Format.JAR)
+                Files.createParentDirs(output)
+                Files.copy(jar.file, output)
+            }
+        }
+
+        // Test variants run this too, but the P classes come with the variant they test
+        File classesDir = classesDirs.get(context.path)
+        if (classesDir != null) {
+            copyDirectory(classesDir, outputProvider.getContentLocation(name, inputTypes, scopes, Format.DIRECTORY))
+        }
+    }
+
+    private static void copyDirectory(File from, File into) {
+        if (!from.isDirectory()) {
+            return
+        }
+
+        String root = from.absolutePath
+        from.eachFileRecurse(FileType.FILES) { File file ->
+            File target = new File(into, file.absolutePath.substring(root.length() + 1))
+            Files.createParentDirs(target)
+            Files.copy(file, target)
+        }
+    }
+}
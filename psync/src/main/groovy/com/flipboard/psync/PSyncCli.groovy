@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 Flipboard Inc
+ */
+
+package com.flipboard.psync
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+/**
+ * Command line entry point, for builds that don't use Gradle.
+ *
+ * Takes the preference xml files and generation options as arguments (see {@link #USAGE}) and generates
+ * what a {@link PSyncTask} would. Arguments can also be read from a file, one per line, by passing
+ * {@code @path/to/file}.
+ *
+ * With {@code --persistent_worker} it keeps running as a persistent worker instead: it reads one JSON work
+ * request per line from stdin, like {@code {"arguments": ["--package-name", ...], "requestId": 1}}, and
+ * answers each with a line of JSON on stdout, like {@code {"exitCode": 0, "output": "", "requestId": 1}}.
+ * Files whose contents didn't change since an earlier request aren't parsed again.
+ */
+class PSyncCli {
+
+    static final String PERSISTENT_WORKER_FLAG = "--persistent_worker"
+
+    static final int EXIT_OK = 0
+    static final int EXIT_FAILED = 1
+    static final int EXIT_USAGE = 2
+
+    static final String USAGE = """\
+Usage: psync [options] <preference xml file>...
+
+Files come in increasing priority, the first declaration of a key wins.
+
+  --package-name <name>         Package to generate in (required)
+  --output-dir <dir>            Source directory to generate into (required)
+  --class-name <name>           Name of the generated class, P by default
+  --cache-file <file>           Keeps parsed files between runs, so only changed ones are parsed again
+  --report-file <file>          Writes a JSON report of the run
+  --values-file <file>          Values resource file to inline resource defaults from, in increasing
+                                priority, can be repeated
+  --generate-rx                 See the plugin options of the same names
+  --cache-values
+  --shard-by-file
+  --flat
+  --async-init
+  --generate-observers
+  --backend <name>
+  --preference-file <xml>=<name>  Can be repeated
+  --classes-dir <dir>           Also compiles the generated sources into this directory
+  --classpath <path>            What they're compiled against, like Rx-Preferences or psync-runtime
+  --bootclasspath <path>        The android.jar they're compiled against
+  --sourcepath <path>           Sources they're compiled against without compiling them, like the
+                                directory R.java is generated in
+  --sources-jar <file>          Also puts the generated sources in a jar, along with --classes-dir
+  --parallelism <count>         Maximum number of files to parse at once
+  --persistent_worker           Handle JSON work requests from stdin until it's closed
+"""
+
+    static void main(String[] args) {
+        if (args.contains(PERSISTENT_WORKER_FLAG)) {
+            PrintStream responses = System.out
+            // Anything else printed to stdout would corrupt the responses
+            System.setOut(System.err)
+            runWorker(System.in, responses, new PrefEntryParseService())
+        } else {
+            System.exit(run(args as List<String>, System.out, null))
+        }
+    }
+
+    /**
+     * Handles work requests until the input is closed, all sharing the given parse service.
+     *
+     * @param requests One JSON work request per line
+     * @param responses Where the JSON response to each request is written, one per line
+     * @param parseService Cache kept across requests
+     */
+    static void runWorker(InputStream requests, PrintStream responses, PrefEntryParseService parseService) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(requests, "UTF-8"))
+        JsonSlurper slurper = new JsonSlurper()
+        String line
+        while ((line = reader.readLine()) != null) {
+            if (!line.trim()) {
+                continue
+            }
+
+            Map request = null
+            ByteArrayOutputStream output = new ByteArrayOutputStream()
+            PrintStream out = new PrintStream(output, true, "UTF-8")
+            int exitCode
+            try {
+                request = slurper.parseText(line) as Map
+                exitCode = run((request.arguments ?: []) as List<String>, out, parseService)
+            } catch (Exception e) {
+                // A bad request fails on its own, the worker keeps serving the next ones
+                out.println("PSync: ${e}")
+                exitCode = EXIT_FAILED
+            } finally {
+                // Generated sources are only worth sharing within a request
+                parseService.clearGeneratedSources()
+            }
+
+            out.flush()
+            responses.println(JsonOutput.toJson([exitCode: exitCode, output: output.toString("UTF-8"), requestId: request?.requestId ?: 0]))
+            responses.flush()
+        }
+    }
+
+    /**
+     * Generates for a single command line.
+     *
+     * @param args The arguments, without the program name
+     * @param out Where warnings and errors are printed
+     * @param parseService Cache to share parsed files through, may be null
+     * @return the exit code, {@link #EXIT_OK} if it worked
+     */
+    static int run(List<String> args, PrintStream out, PrefEntryParseService parseService) {
+        PSyncWorkParameters parameters
+        try {
+            parameters = parseArguments(expandArgumentFiles(args))
+        } catch (IllegalArgumentException e) {
+            out.println("PSync: ${e.message}")
+            out.print(USAGE)
+            return EXIT_USAGE
+        }
+
+        PSyncWorkAction action = new PSyncWorkAction(parameters, parseService)
+        try {
+            action.run()
+        } catch (RuntimeException e) {
+            out.println("PSync: ${e.message}")
+            if (e.cause != null) {
+                out.println("Caused by: ${e.cause}")
+            }
+            return EXIT_FAILED
+        }
+        action.warnings.each { String warning -> out.println("PSync: ${warning}") }
+        return EXIT_OK
+    }
+
+    /**
+     * Replaces every {@code @file} argument with the lines of that file.
+     */
+    static List<String> expandArgumentFiles(List<String> args) {
+        List<String> expanded = []
+        for (String arg : args) {
+            if (!arg.startsWith("@")) {
+                expanded.add(arg)
+                continue
+            }
+
+            File file = new File(arg.substring(1))
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("Argument file ${file} doesn't exist")
+            }
+            file.readLines("UTF-8").each { String line ->
+                if (line.trim()) {
+                    expanded.add(line.trim())
+                }
+            }
+        }
+        return expanded
+    }
+
+    /**
+     * @throws IllegalArgumentException for anything missing or malformed
+     */
+    static PSyncWorkParameters parseArguments(List<String> args) {
+        PSyncWorkParameters parameters = new PSyncWorkParameters()
+        parameters.className = "P"
+        parameters.parallelism = PrefEntryParser.DEFAULT_PARALLELISM
+        GenerationOptions options = GenerationOptions.create(false)
+        parameters.options = options
+
+        Iterator<String> iterator = args.iterator()
+        while (iterator.hasNext()) {
+            String arg = iterator.next()
+            switch (arg) {
+                case "--package-name":
+                    parameters.packageName = value(iterator, arg)
+                    break
+                case "--output-dir":
+                    parameters.outputDir = new File(value(iterator, arg))
+                    break
+                case "--class-name":
+                    parameters.className = value(iterator, arg)
+                    break
+                case "--cache-file":
+                    parameters.cacheFile = new File(value(iterator, arg))
+                    break
+                case "--report-file":
+                    parameters.reportFile = new File(value(iterator, arg))
+                    break
+                case "--values-file":
+                    parameters.valuesFiles.add(new File(value(iterator, arg)))
+                    break
+                case "--classes-dir":
+                    parameters.classesDir = new File(value(iterator, arg))
+                    break
+                case "--classpath":
+                    parameters.compileClasspath.addAll(splitPath(value(iterator, arg)))
+                    break
+                case "--bootclasspath":
+                    parameters.bootClasspath.addAll(splitPath(value(iterator, arg)))
+                    break
+                case "--sourcepath":
+                    parameters.sourcepath.addAll(splitPath(value(iterator, arg)))
+                    break
+                case "--sources-jar":
+                    parameters.sourcesJar = new File(value(iterator, arg))
+                    break
+                case "--generate-rx":
+                    options.generateRx = true
+                    break
+                case "--cache-values":
+                    options.cacheValues = true
+                    break
+                case "--shard-by-file":
+                    options.shardByFile = true
+                    break
+                case "--flat":
+                    options.flat = true
+                    break
+                case "--async-init":
+                    options.asyncInit = true
+                    break
+                case "--generate-observers":
+                    options.generateObservers = true
+                    break
+                case "--backend":
+                    options.backend = value(iterator, arg)
+                    break
+                case "--preference-file":
+                    String mapping = value(iterator, arg)
+                    int separator = mapping.indexOf('=')
+                    if (separator <= 0 || separator == mapping.length() - 1) {
+                        throw new IllegalArgumentException("Expected <xml>=<name> after ${arg}, got '${mapping}'")
+                    }
+                    options.preferenceFiles.put(mapping.substring(0, separator), mapping.substring(separator + 1))
+                    break
+                case "--parallelism":
+                    String count = value(iterator, arg)
+                    if (!count.isInteger()) {
+                        throw new IllegalArgumentException("Expected a number after ${arg}, got '${count}'")
+                    }
+                    parameters.parallelism = count.toInteger()
+                    break
+                case PERSISTENT_WORKER_FLAG:
+                    break
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option ${arg}")
+                    }
+                    parameters.sources.add(new File(arg))
+            }
+        }
+
+        if (!parameters.packageName) {
+            throw new IllegalArgumentException("--package-name is required")
+        }
+        if (parameters.outputDir == null) {
+            throw new IllegalArgumentException("--output-dir is required")
+        }
+        if (parameters.sources.isEmpty()) {
+            throw new IllegalArgumentException("No preference xml files given")
+        }
+
+        parameters.taskPath = "${parameters.packageName}.${parameters.className}".toString()
+        // Nothing to inline from without them
+        parameters.inlineResourceDefaults = !parameters.valuesFiles.isEmpty()
+        // Every file is checked against the cache by its contents, and the output directory is never wiped
+        parameters.incremental = true
+        parameters.outOfDate = new ArrayList<>(parameters.sources)
+        // There's no telling whether R or the classpath changed, so whatever is compiled is compiled again
+        parameters.compileInputsChanged = true
+        return parameters
+    }
+
+    private static List<File> splitPath(String path) {
+        return path.split(File.pathSeparator).findAll { it }.collect { new File(it) }
+    }
+
+    private static String value(Iterator<String> iterator, String option) {
+        if (!iterator.hasNext()) {
+            throw new IllegalArgumentException("Missing value after ${option}")
+        }
+        return iterator.next()
+    }
+}
@@ -5,13 +5,28 @@
 package com.flipboard.psync
 
 import com.android.build.gradle.api.BaseVariant
+import com.android.build.gradle.tasks.ProcessAndroidResources
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.Task
+import org.gradle.api.file.FileCollection
+import org.gradle.api.plugins.ExtraPropertiesExtension
+import org.gradle.api.tasks.compile.JavaCompile
 
 class PSyncPlugin implements Plugin<Project> {
 
+    static final String PARSE_SERVICE_EXTENSION_NAME = "psyncParseService"
+
     void apply(Project project) {
-        project.extensions.create('psync', PSyncPluginExtension)
+        PSyncClassesTransform classesTransform = new PSyncClassesTransform()
+        PSyncPluginExtension psyncExtension = project.extensions.create('psync', PSyncPluginExtension)
+        psyncExtension.onGenerateBytecode = {
+            // The android plugin creates the variants' tasks right after the build script runs, so what
+            // they dex can only be extended before that
+            if (project.hasProperty('android') && !project.android.transforms.contains(classesTransform)) {
+                project.android.registerTransform(classesTransform)
+            }
+        }
 
         project.afterEvaluate {
 
@@ -44,7 +59,28 @@ class PSyncPlugin implements Plugin<Project> {
 
             }
 
-            String includesPattern = project.psync.includesPattern
+            // Resolve everything the tasks need up front, so nothing holds on to the project or the
+            // extension once configuration is done
+            PSyncPluginExtension extension = project.psync
+            String includesPattern = extension.includesPattern
+            String resolvedClassName = extension.className
+            boolean resolvedGenerateRx = extension.generateRx
+            boolean resolvedCacheValues = extension.cacheValues
+            boolean resolvedShardByFile = extension.shardByFile
+            boolean resolvedFlat = extension.flat
+            boolean resolvedAsyncInit = extension.asyncInit
+            boolean resolvedGenerateObservers = extension.generateObservers
+            String resolvedBackend = extension.backend
+            Map<String, String> resolvedPreferenceFiles = new TreeMap<>(extension.preferenceFiles)
+            boolean resolvedInlineResourceDefaults = extension.inlineResourceDefaults
+            int resolvedParallelism = extension.parallelism
+            boolean resolvedGenerateBytecode = extension.generateBytecode
+            List<File> resolvedBootClasspath = resolvedGenerateBytecode ? new ArrayList<>(project.android.bootClasspath) : []
+            File generatedDir = new File(project.buildDir, 'generated/source/psync')
+            File classesDir = new File(project.buildDir, 'intermediates/classes/psync')
+            File sourcesJarDir = new File(project.buildDir, 'generated/source/psync-jars')
+            File reportsDir = new File(project.buildDir, 'reports/psync')
+            PrefEntryParseService parseService = parseServiceFor(project)
 
             // Register our task with the variant
             variants.all { BaseVariant variant ->
@@ -52,14 +88,82 @@ class PSyncPlugin implements Plugin<Project> {
                 PSyncTask psyncTask = (PSyncTask) project.task(type: PSyncTask, "generatePrefKeysFor${variant.name.capitalize()}") {
                     source = variant.getSourceSets().collect { it.getResDirectories() }
                     include includesPattern
-                    outputDir = project.file("$project.buildDir/generated/source/psync/$variant.flavorName/$variant.buildType.name/")
+                    // Stable per-variant layout, e.g. generated/source/psync/flavor/debug
+                    outputDir = new File(generatedDir, variant.dirName)
+                    reportFile = new File(reportsDir, "${variant.name}.json")
                     packageName = resolvedPackageName
-                    className = project.psync.className
-                    generateRx = project.psync.generateRx
+                    className = resolvedClassName
+                    generateRx = resolvedGenerateRx
+                    cacheValues = resolvedCacheValues
+                    shardByFile = resolvedShardByFile
+                    flat = resolvedFlat
+                    asyncInit = resolvedAsyncInit
+                    generateObservers = resolvedGenerateObservers
+                    backend = resolvedBackend
+                    preferenceFiles = resolvedPreferenceFiles
+                    inlineResourceDefaults = resolvedInlineResourceDefaults
+                    if (resolvedInlineResourceDefaults) {
+                        // Source sets come in increasing priority, like the values they override
+                        valuesFiles = project.files(variant.getSourceSets().collect { it.getResDirectories() }).asFileTree.matching {
+                            include 'values*/*.xml'
+                        }
+                    }
+                    parallelism = resolvedParallelism
+                    delegate.parseService = parseService
+                }
+
+                if (resolvedGenerateBytecode) {
+                    JavaCompile javaCompile = variant.javaCompile
+                    // Taken before the compiled classes are added to it
+                    FileCollection compileClasspath = javaCompile.classpath
+                    psyncTask.classesDir = new File(classesDir, variant.dirName)
+                    psyncTask.sourcesJar = new File(sourcesJarDir, "${variant.dirName}.jar")
+                    psyncTask.compileClasspath = compileClasspath
+                    psyncTask.bootClasspath = project.files(resolvedBootClasspath)
+                    // P refers to the variant's R, which isn't on the classpath but generated as a source
+                    ProcessAndroidResources processResources = variant.outputs.first().processResources
+                    psyncTask.sourcepath = project.files(processResources.sourceOutputDir)
+                    psyncTask.dependsOn processResources
+
+                    javaCompile.dependsOn psyncTask
+                    javaCompile.classpath = compileClasspath + project.files(psyncTask.classesDir)
+
+                    // Dexed and packaged along with the variant's own classes, see PSyncClassesTransform
+                    Task transformTask = project.tasks.findByName("transformClassesWith${classesTransform.name.capitalize()}For${variant.name.capitalize()}")
+                    if (transformTask == null) {
+                        throw new IllegalStateException('generateBytecode has to be set in the psync block, after applying the android plugin!')
+                    }
+                    transformTask.dependsOn psyncTask
+                    transformTask.inputs.dir psyncTask.classesDir
+                    classesTransform.classesDirs.put(transformTask.path, psyncTask.classesDir)
+                } else {
+                    variant.registerJavaGeneratingTask(psyncTask, (File) psyncTask.outputDir)
                 }
+            }
+        }
+    }
 
-                variant.registerJavaGeneratingTask(psyncTask, (File) psyncTask.outputDir)
+    /**
+     * Retrieves the parse service for the build the given project is part of, creating it if needed.
+     *
+     * The service lives on the root project, which is created fresh for every build, so nothing
+     * leaks across builds in a long lived daemon.
+     */
+    static PrefEntryParseService parseServiceFor(Project project) {
+        Project rootProject = project.rootProject
+        synchronized (rootProject) {
+            ExtraPropertiesExtension ext = rootProject.extensions.extraProperties
+            Object existing = ext.has(PARSE_SERVICE_EXTENSION_NAME) ? ext.get(PARSE_SERVICE_EXTENSION_NAME) : null
+            if (existing instanceof PrefEntryParseService) {
+                return existing
+            } else if (existing != null) {
+                // Loaded by another project's plugin classloader, we can't share with it
+                return new PrefEntryParseService()
             }
+
+            PrefEntryParseService service = new PrefEntryParseService()
+            ext.set(PARSE_SERVICE_EXTENSION_NAME, service)
+            return service
         }
     }
 }
@@ -41,4 +41,119 @@ class PSyncPluginExtension {
      */
     boolean generateRx = false;
 
+    /**
+     * Enable this to keep each preference's value in a field after the first get(), so that hot reads
+     * don't go through SharedPreferences at all. Values written through P.edit() are cached once the
+     * Editor is applied or committed. The editor a block's put() returns may never be applied, so put()
+     * drops the cached value instead, as does any change the backing SharedPreferences reports for that key.
+     *
+     * Default is false
+     */
+    boolean cacheValues = false
+
+    /**
+     * Enable this to generate a top level class per preference xml file instead of nesting everything
+     * in the P class, which then only holds the shared state and init(). A change to one file only
+     * changes its class, so only code using that class gets recompiled.
+     *
+     * Default is false
+     */
+    boolean shardByFile = false
+
+    /**
+     * Enable this to generate each preference as a KEY_ constant and static methods on the P class
+     * (P.getNumRows(), P.KEY_NUM_ROWS) instead of a nested class per preference (P.numRows.get(),
+     * P.numRows.key). This saves a class and a constructor per preference, which adds up in the dex
+     * for large preference sets. Combined with shardByFile, the members go on the per-file classes.
+     *
+     * Default is false
+     */
+    boolean flat = false
+
+    /**
+     * Enable this to have P.init() return right away and load the preferences file on a background
+     * executor instead of on the calling thread, usually the main thread during startup. Accessors
+     * block until the load is done, P.isReady() and P.awaitReady() tell when that is.
+     *
+     * Default is false
+     */
+    boolean asyncInit = false
+
+    /**
+     * Enable this to generate observe() and stopObserving() for every boolean, int and String
+     * preference, taking a listener specialized for its type that's only called when that preference
+     * changes. Listeners are held weakly, like SharedPreferences does.
+     *
+     * Default is false
+     */
+    boolean generateObservers = false
+
+    /**
+     * What stores the preference values:
+     *
+     * 'sharedPreferences' uses the default SharedPreferences.
+     *
+     * 'mapped' uses the MappedPrefStore from psync-runtime, a memory-mapped log that only appends the
+     * changed values on a write instead of rewriting a whole xml file. The first time it runs it copies
+     * over everything in the default SharedPreferences. It needs the psync-runtime dependency, and
+     * doesn't work with generateRx.
+     *
+     * Default is 'sharedPreferences'
+     */
+    String backend = GenerationOptions.BACKEND_SHARED_PREFERENCES
+
+    /**
+     * Puts the preferences of some xml files in their own SharedPreferences file instead of the default
+     * one, so writing them doesn't rewrite everything else and they aren't loaded until first used.
+     * Keys are xml file names without the extension, values are SharedPreferences names, e.g.
+     * ['prefs_counters': 'counters']. A tools:preferenceFile attribute on a PreferenceScreen or
+     * PreferenceCategory does the same for everything in it, and takes precedence.
+     *
+     * Default is to use the default SharedPreferences for everything
+     */
+    Map<String, String> preferenceFiles = [:]
+
+    /**
+     * Resolves @bool, @integer and @string defaults at build time where the variant's values
+     * resources say what they are, and no qualified values directory (values-land, values-fr...)
+     * overrides them. The generated defaultValue() then returns a constant instead of going through
+     * Resources. Resources that only come from libraries or resValue are still resolved at runtime,
+     * and a library or resValue overriding one of the app's own values isn't seen.
+     *
+     * Default is false
+     */
+    boolean inlineResourceDefaults = false
+
+    /**
+     * Enable this to compile the generated classes in the PSync task, and hand them to the variant as
+     * bytecode on its classpath instead of as sources for its javac. Changing preferences then only
+     * compiles the P classes themselves, and the variant's javac doesn't spend time on them at all.
+     * A jar of the generated sources is written to build/generated/source/psync-jars for IDEs to
+     * attach, since they aren't part of the variant's sources anymore. Has to be set in the psync
+     * block, after the android plugin is applied.
+     *
+     * Default is false
+     */
+    boolean generateBytecode = false
+
+    /**
+     * Called whenever {@link #generateBytecode} is enabled, while the build script runs
+     */
+    Closure onGenerateBytecode
+
+    void setGenerateBytecode(boolean generateBytecode) {
+        this.generateBytecode = generateBytecode
+        if (generateBytecode && onGenerateBytecode != null) {
+            onGenerateBytecode.call()
+        }
+    }
+
+    /**
+     * Maximum number of preference xml files to parse at the same time. This has no effect on the
+     * generated output.
+     *
+     * Default is the number of available processors
+     */
+    int parallelism = Runtime.runtime.availableProcessors()
+
 }
@@ -3,24 +3,22 @@
  */
 
 package com.flipboard.psync
-import com.google.common.collect.ImmutableList
-import groovy.xml.QName
-import org.apache.commons.lang3.StringUtils
-import org.apache.commons.lang3.math.NumberUtils
+import org.gradle.api.file.FileCollection
 import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.SourceTask
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.incremental.IncrementalTaskInputs
-import rx.Observable
+import org.gradle.api.tasks.incremental.InputFileDetails
 
 /**
  * Task that generates P.java source files
  */
 class PSyncTask extends SourceTask {
 
-    static final ImmutableList<String> BOOL_TYPES = ImmutableList.of("true", "false")
-
     /**
      * The output directory.
      */
@@ -36,119 +34,177 @@ class PSyncTask extends SourceTask {
     @Input
     boolean generateRx
 
-    @TaskAction
-    def generate(IncrementalTaskInputs inputs) {
+    @Input
+    boolean cacheValues
 
-        // If the whole thing isn't incremental, delete the build folder (if it exists)
-        // TODO If they change the className, we should probably delete the old one for good measure if it exists
-        if (!inputs.isIncremental() && outputDir.exists()) {
-            logger.debug("PSync generation is not incremental; deleting build folder and starting fresh!")
-            outputDir.deleteDir()
-        }
+    @Input
+    boolean shardByFile
 
-        if (!outputDir.exists()) {
-            outputDir.mkdirs()
-        }
+    @Input
+    boolean flat
 
-        List<PrefEntry> entries = getPrefEntriesFromFiles(getSource()).toBlocking().first()
+    @Input
+    boolean asyncInit
 
-        PClassGenerator.generate(entries, packageName, outputDir, className, generateRx)
-    }
+    @Input
+    boolean generateObservers
+
+    @Input
+    String backend = GenerationOptions.BACKEND_SHARED_PREFERENCES
+
+    @Input
+    Map<String, String> preferenceFiles = [:]
+
+    @Input
+    boolean inlineResourceDefaults
 
     /**
-     * Retrieves all the keys in the files in a given xml directory
-     *
-     * @param xmlDir Directory to search
-     * @param fileRegex Regex for matching the files you want
-     * @return Observable of all the distinct keys in this directory.
+     * The variant's values resource files, in increasing priority, to resolve resource defaults from.
      */
-    static Observable<List<PrefEntry>> getPrefEntriesFromFiles(Iterable<File> sources) {
-        Observable.from(sources)                                                // Fetch the keys from each file
-                .map {file -> new XmlParser().parse(file)}                      // Parse the file
-                .flatMap {rootNode -> Observable.from(rootNode.depthFirst())}   // Extract all the nodes
-                .map {Node node -> generatePrefEntry(node.attributes())}        // Generate PrefEntry objects from the attributes
-                .filter {PrefEntry entry -> !entry.isBlank()}                   // Filter out ones we can't use
-                .distinct()                                                     // Only want unique
-                .toSortedList()                                                 // Output the sorted list
-    }
+    @InputFiles
+    @Optional
+    FileCollection valuesFiles
 
     /**
-     * Generates a {@link PrefEntry} from the given attributes on a Node
-     *
-     * @param attributes attributes on the node to parse
-     * @return a generated PrefEntry, or {@link PrefEntry#BLANK} if we can't do anything with it
+     * Where the generated classes are compiled to. Optional, without it the sources are left to the
+     * variant's javac.
      */
-    static PrefEntry generatePrefEntry(Map<QName, String> attributes) {
-        PrefEntry entry
-        String key = null
-        String defaultValue = null
-
-        // These are present for list-type preferences
-        String entries = null
-        String entryValues = null
-
-        attributes.entrySet().each { Map.Entry<QName, String> attribute ->
-            String name = attribute.key.localPart
-            switch (name) {
-                case "key":
-                    key = attribute.value
-                    break
-                case "defaultValue":
-                    defaultValue = attribute.value
-                    break
-                case "entries":
-                    entries = attribute.value
-                    break
-                case "entryValues":
-                    entryValues = attribute.value
-                    break
-            }
-        }
+    @OutputDirectory
+    @Optional
+    File classesDir
 
-        if (StringUtils.isEmpty(key)) {
-            return PrefEntry.BLANK
-        }
+    /**
+     * What the generated classes are compiled against, along with {@link #bootClasspath}. Only used
+     * with {@link #classesDir}.
+     */
+    @InputFiles
+    @Optional
+    FileCollection compileClasspath
+
+    @InputFiles
+    @Optional
+    FileCollection bootClasspath
+
+    /**
+     * Source directories the generated classes are compiled against without compiling them, like the one
+     * the variant's R is generated in. Only used with {@link #classesDir}.
+     */
+    @InputFiles
+    @Optional
+    FileCollection sourcepath
+
+    /**
+     * Jar of the generated sources, for IDEs. Only written along with {@link #classesDir}.
+     */
+    @OutputFile
+    @Optional
+    File sourcesJar
+
+    /**
+     * Maximum number of files to parse at once. Doesn't affect the output, so it's not an input.
+     */
+    int parallelism = PrefEntryParser.DEFAULT_PARALLELISM
+
+    /**
+     * Where the JSON {@link GenerationReport} of each run is written. Optional, nothing is written without it.
+     */
+    @OutputFile
+    @Optional
+    File reportFile
 
-        boolean hasListAttributes = entries || entryValues
-
-        if (defaultValue == null || defaultValue.length() == 0) {
-            entry = PrefEntry.create(key, null)
-        } else if (BOOL_TYPES.contains(defaultValue)) {
-            entry = PrefEntry.create(key, Boolean.valueOf(defaultValue))
-        } else if (NumberUtils.isNumber(defaultValue)) {
-            entry = PrefEntry.create(key, Integer.valueOf(defaultValue))
-        } else if (defaultValue.startsWith('@')) {
-            entry = generateResourcePrefEntry(key, defaultValue)
-            if (hasListAttributes && entry.resType == "string") {
-                // Only string resource entries can be list preferences
-                entry.markAsListPreference(entries, entryValues)
+    /**
+     * Report of the last run of this task in this build, or null if it didn't run.
+     */
+    GenerationReport lastReport
+
+    /**
+     * Build-scoped cache shared with the other variants' tasks. Optional, files are parsed directly without it.
+     */
+    PrefEntryParseService parseService
+
+    @TaskAction
+    def generate(IncrementalTaskInputs inputs) {
+        PSyncWorkAction action = new PSyncWorkAction(createWorkParameters(inputs), parseService)
+        action.run()
+        action.warnings.each { String warning -> logger.warn("PSync: ${warning}") }
+
+        GenerationReport report = action.report
+        lastReport = report
+        logger.info("PSync ${path}: parsed ${report.parsedFiles} of ${report.sourceFiles} files, wrote ${report.writtenClasses} of ${report.generatedClasses} classes, compiled ${report.compiledClasses}")
+    }
+
+    /**
+     * Resolves everything the generation needs from this task and the incremental inputs, which
+     * can't leave the task themselves.
+     */
+    PSyncWorkParameters createWorkParameters(IncrementalTaskInputs inputs) {
+        PSyncWorkParameters parameters = new PSyncWorkParameters()
+        parameters.taskPath = path
+        parameters.sources = new ArrayList<>(getSource().files)
+        parameters.incremental = inputs.isIncremental()
+        if (valuesFiles != null) {
+            parameters.valuesFiles = new ArrayList<>(valuesFiles.files)
+        }
+        if (inputs.isIncremental()) {
+            // Changes to every other input file show up here too, like values files or classpath jars,
+            // only the preference files are parsed. The rest is what the classes are compiled against.
+            Set<File> sourceFileSet = new HashSet<>(parameters.sources)
+            Set<File> valuesFileSet = new HashSet<>(parameters.valuesFiles)
+            inputs.outOfDate { InputFileDetails change ->
+                if (sourceFileSet.contains(change.file)) {
+                    parameters.outOfDate.add(change.file)
+                } else if (!valuesFileSet.contains(change.file)) {
+                    parameters.compileInputsChanged = true
+                }
             }
-        } else {
-            entry = PrefEntry.create(key, defaultValue)
-            if (hasListAttributes) {
-                entry.markAsListPreference(entries, entryValues)
+            // Removed files aren't inputs any more, so there's no telling what they were. The cache only
+            // drops the ones it parsed.
+            inputs.removed { InputFileDetails change ->
+                parameters.removed.add(change.file)
+                parameters.compileInputsChanged = true
             }
         }
+        parameters.inlineResourceDefaults = inlineResourceDefaults
+        parameters.packageName = packageName
+        parameters.className = className
+        parameters.options = createGenerationOptions()
+        parameters.outputDir = outputDir
+        parameters.cacheFile = getCacheFile()
+        parameters.reportFile = reportFile
+        parameters.parallelism = parallelism
+        if (classesDir != null) {
+            parameters.classesDir = classesDir
+            parameters.compileClasspath = compileClasspath != null ? new ArrayList<>(compileClasspath.files) : []
+            parameters.bootClasspath = bootClasspath != null ? new ArrayList<>(bootClasspath.files) : []
+            parameters.sourcepath = sourcepath != null ? new ArrayList<>(sourcepath.files) : []
+            parameters.sourcesJar = sourcesJar
+        }
+        return parameters
+    }
 
-        return entry
+    GenerationOptions createGenerationOptions() {
+        GenerationOptions options = GenerationOptions.create(generateRx)
+        options.cacheValues = cacheValues
+        options.shardByFile = shardByFile
+        options.flat = flat
+        options.asyncInit = asyncInit
+        options.generateObservers = generateObservers
+        options.backend = backend
+        options.preferenceFiles = new TreeMap<>(preferenceFiles)
+        return options
     }
 
     /**
-     * Resource PrefEntries are special, because we need to retrieve their resource ID.
-     *
-     * @param key Preference key
-     * @param defaultValue String representation of the default value (e.g. "@string/hello")
-     * @return PrefEntry object representing this, or {@link PrefEntry#BLANK} if we couldn't resolve its resource ID
+     * @return the file the per-file {@link PrefEntry} cache is persisted to between runs
      */
-    static PrefEntry generateResourcePrefEntry(String key, String defaultValue) {
-        String[] split = defaultValue.split('/')
-
-        if (split == null || split.length < 2) {
-            return PrefEntry.BLANK;
-        }
+    File getCacheFile() {
+        return new File(getTemporaryDir(), "prefEntries.cache")
+    }
 
-        String resType = split[0].substring(1)
-        String resId = split[1]
-        return PrefEntry.create(key, resId, resType)
+    /**
+     * @return the P.java file this task generates
+     */
+    File getGeneratedFile() {
+        return new File(outputDir, "${packageName.replace('.', '/')}/${className}.java")
     }
 }
@@ -0,0 +1,254 @@
+package com.flipboard.psync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Parses, merges and generates the P class of one variant, as described by its {@link PSyncWorkParameters}.
+ * <p>
+ * This is what {@link PSyncTask} does, minus anything tied to Gradle, so {@link PSyncCli} can run the
+ * same thing outside of it. Both run it on their own thread. Gradle 2.6 has no way for a task to hand
+ * its work off and let other tasks of the project run meanwhile, so a project's variants are still
+ * generated one after another. Only the files within a variant are parsed in parallel.
+ */
+public final class PSyncWorkAction implements Runnable {
+
+    private final PSyncWorkParameters parameters;
+    private final PrefEntryParseService parseService;
+
+    private final List<String> warnings = new ArrayList<>();
+    private GenerationReport report;
+
+    public PSyncWorkAction(PSyncWorkParameters parameters) {
+        this(parameters, null);
+    }
+
+    /**
+     * @param parseService Build-scoped cache to share parsed files and generated sources through, may be null
+     */
+    public PSyncWorkAction(PSyncWorkParameters parameters, PrefEntryParseService parseService) {
+        this.parameters = parameters;
+        this.parseService = parseService;
+    }
+
+    @Override
+    public void run() {
+        long startNanos = System.nanoTime();
+        report = new GenerationReport(parameters.taskPath, parameters.incremental);
+        try {
+            generate(report);
+            report.setTotalNanos(System.nanoTime() - startNanos);
+            if (parameters.reportFile != null) {
+                report.write(parameters.reportFile);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // Besides IOException, the Groovy parser rethrows checked exceptions like XMLStreamException undeclared
+            throw new IllegalStateException("PSync generation failed for " + parameters.taskPath, e);
+        }
+    }
+
+    /**
+     * @return the report of the last run, or null if it didn't run yet
+     */
+    public GenerationReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return problems found in the preference files during the last run, such as conflicting declarations
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    private void generate(GenerationReport report) throws IOException {
+        long phaseStart = System.nanoTime();
+        File outputDir = parameters.outputDir;
+
+        PrefEntryCache cache;
+        if (!parameters.incremental) {
+            // Start fresh, nothing from an earlier run can be trusted
+            deleteRecursively(outputDir);
+            cache = new PrefEntryCache();
+        } else {
+            cache = parameters.cacheFile != null ? PrefEntryCache.load(parameters.cacheFile) : new PrefEntryCache();
+        }
+
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create " + outputDir);
+        }
+
+        // Files that need parsing, mapped to the hash of their contents
+        Map<File, String> pending = new LinkedHashMap<>();
+        if (parameters.incremental) {
+            for (File file : parameters.outOfDate) {
+                queueIfChanged(cache, pending, file);
+            }
+            for (File file : parameters.removed) {
+                if (cache.contains(file)) {
+                    cache.remove(file);
+                    report.removedFiles++;
+                }
+            }
+        }
+
+        // Anything we still don't know about (fresh or lost cache) has to be parsed as well
+        for (File file : parameters.sources) {
+            if (!cache.contains(file) && !pending.containsKey(file)) {
+                queueIfChanged(cache, pending, file);
+            }
+        }
+        report.sourceFiles = parameters.sources.size();
+        phaseStart = report.endPhase(GenerationReport.SCAN, phaseStart);
+
+        List<File> files = new ArrayList<>(pending.keySet());
+        List<List<PrefEntry>> parsed;
+        if (parseService != null) {
+            parsed = parseService.parse(files, new ArrayList<>(pending.values()), parameters.parallelism, report);
+        } else {
+            parsed = PrefEntryParser.parseFiles(files, parameters.parallelism);
+            report.parsedFiles = files.size();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            cache.put(files.get(i), pending.get(files.get(i)), parsed.get(i));
+        }
+        phaseStart = report.endPhase(GenerationReport.PARSE, phaseStart);
+
+        PrefEntryMerger merger = new PrefEntryMerger();
+        List<PrefEntry> merged = cache.merge(parameters.sources, merger);
+        warnings.addAll(merger.getConflicts());
+        report.entries = merged.size();
+        report.conflicts = merger.getConflicts().size();
+        phaseStart = report.endPhase(GenerationReport.MERGE, phaseStart);
+
+        // Cached entries may be shared with other variants, which can have other values, so this works on copies
+        final List<PrefEntry> entries = parameters.inlineResourceDefaults
+                ? ResourceValues.parse(parameters.valuesFiles, ResourceValues.wantedBy(merged)).inline(merged)
+                : merged;
+        for (PrefEntry entry : entries) {
+            if (entry.inlinedDefaultValue != null) {
+                report.inlinedDefaults++;
+            }
+        }
+        // Resolved values end up in the signature, so changing one regenerates, and so does changing
+        // what they're generated into, for callers like the command line that always run incrementally
+        String outputKey = parameters.packageName + ":" + parameters.className + ":" + parameters.options;
+        boolean changed = cache.updateSignature(entries, outputKey);
+        if (parameters.cacheFile != null) {
+            cache.save(parameters.cacheFile);
+        }
+        report.entriesChanged = changed;
+        phaseStart = report.endPhase(GenerationReport.RESOLVE, phaseStart);
+
+        if (!changed && parameters.getGeneratedFile().exists() && (parameters.classesDir == null || !needsCompiling())) {
+            return;
+        }
+
+        if (entries.size() > PClassGenerator.maxEntriesPerClass(parameters.options)) {
+            // Too big to hold every class in memory at once, let alone share them with other variants
+            Map<String, List<PrefEntry>> entryClasses = PClassGenerator.groupByClass(entries, parameters.className, parameters.options);
+            report.streamed = true;
+            report.generatedClasses = entryClasses != null ? 1 + entryClasses.size() : 1;
+            List<File> written = PClassGenerator.writeSources(entries, parameters.packageName, parameters.className, parameters.options, outputDir);
+            phaseStart = report.endPhase(GenerationReport.GENERATE, phaseStart);
+            countWritten(report, written);
+            compile(report, written, phaseStart);
+            return;
+        }
+
+        Map<String, String> generated;
+        if (parseService != null) {
+            // Variants that end up with the same entries share one generated output
+            String key = PrefEntryCache.signatureOf(entries) + ":" + outputKey;
+            final boolean[] reused = {true};
+            generated = parseService.generatedSources(key, new Callable<Map<String, String>>() {
+                @Override
+                public Map<String, String> call() {
+                    reused[0] = false;
+                    return generateSources(entries);
+                }
+            });
+            report.generatedSourcesReused = reused[0];
+        } else {
+            generated = generateSources(entries);
+        }
+        report.generatedClasses = generated.size();
+        phaseStart = report.endPhase(GenerationReport.GENERATE, phaseStart);
+
+        // Unchanged classes aren't rewritten, so only code using the ones that changed gets recompiled
+        List<File> written = PClassGenerator.writeSources(generated, parameters.packageName, outputDir);
+        countWritten(report, written);
+        phaseStart = report.endPhase(GenerationReport.WRITE, phaseStart);
+        compile(report, written, phaseStart);
+    }
+
+    /**
+     * Compiles the generated classes if they're meant to be compiled here, and changed since the last time.
+     */
+    private void compile(GenerationReport report, List<File> written, long phaseStart) throws IOException {
+        if (parameters.classesDir == null || (written.isEmpty() && !needsCompiling())) {
+            return;
+        }
+
+        List<File> compiled = PClassCompiler.compile(parameters.packageName, parameters.outputDir, parameters.classesDir,
+                parameters.compileClasspath, parameters.bootClasspath, parameters.sourcepath);
+        report.compiledClasses = compiled.size();
+        if (parameters.sourcesJar != null) {
+            PClassCompiler.writeSourcesJar(parameters.packageName, parameters.outputDir, parameters.sourcesJar);
+        }
+        report.endPhase(GenerationReport.COMPILE, phaseStart);
+    }
+
+    /**
+     * @return true if the classes have to be compiled even though their sources didn't change, because
+     * they're missing or what they're compiled against changed, like constants in R they inline
+     */
+    private boolean needsCompiling() {
+        return !parameters.incremental || parameters.compileInputsChanged || !parameters.getCompiledFile().exists();
+    }
+
+    private static void countWritten(GenerationReport report, List<File> written) {
+        report.writtenClasses = written.size();
+        for (File file : written) {
+            report.bytesWritten += file.length();
+        }
+    }
+
+    private Map<String, String> generateSources(List<PrefEntry> entries) {
+        return PClassGenerator.generateSources(entries, parameters.packageName, parameters.className, parameters.options);
+    }
+
+    /**
+     * Queues the given file for parsing, unless the cache already has entries for its current contents.
+     */
+    private static void queueIfChanged(PrefEntryCache cache, Map<File, String> pending, File file) throws IOException {
+        if (!file.isFile()) {
+            cache.remove(file);
+            return;
+        }
+
+        String hash = PrefEntryCache.hash(file);
+        if (!cache.isCurrent(file, hash)) {
+            pending.put(file, hash);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
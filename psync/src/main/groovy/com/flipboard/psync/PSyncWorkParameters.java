@@ -0,0 +1,103 @@
+package com.flipboard.psync;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything a {@link PSyncWorkAction} needs to generate a variant's P class, resolved beforehand by
+ * the task or read from the command line.
+ */
+public final class PSyncWorkParameters {
+
+    /**
+     * Path of the task this work is for, for reporting
+     */
+    public String taskPath;
+
+    /**
+     * Every preference xml file of the variant, in source set order
+     */
+    public List<File> sources = new ArrayList<>();
+
+    /**
+     * Whether {@link #outOfDate} and {@link #removed} are known. Otherwise everything starts over.
+     */
+    public boolean incremental = false;
+
+    public List<File> outOfDate = new ArrayList<>();
+    public List<File> removed = new ArrayList<>();
+
+    /**
+     * Files in the variant's values directories, in increasing priority, to resolve resource defaults from
+     */
+    public List<File> valuesFiles = new ArrayList<>();
+
+    /**
+     * Inline resource defaults that can be resolved from {@link #valuesFiles}
+     */
+    public boolean inlineResourceDefaults = false;
+
+    public String packageName;
+    public String className;
+    public GenerationOptions options;
+
+    public File outputDir;
+
+    /**
+     * Where the per-file {@link PrefEntry} cache is kept between runs, or null to parse everything every time
+     */
+    public File cacheFile;
+
+    /**
+     * Where the generated classes are compiled to, or null to leave compiling them to the variant
+     */
+    public File classesDir;
+
+    /**
+     * What the generated classes are compiled against, only used with {@link #classesDir}
+     */
+    public List<File> compileClasspath = new ArrayList<>();
+    public List<File> bootClasspath = new ArrayList<>();
+
+    /**
+     * Source directories, like the one the variant's R is generated in, that the generated classes are
+     * compiled against without being compiled themselves. Only used with {@link #classesDir}.
+     */
+    public List<File> sourcepath = new ArrayList<>();
+
+    /**
+     * Whether anything the generated classes are compiled against changed since the last run, so they
+     * have to be compiled again even if their sources didn't change. Only used with {@link #classesDir}.
+     */
+    public boolean compileInputsChanged = false;
+
+    /**
+     * Jar of the generated sources for IDEs, written along with {@link #classesDir}. May be null.
+     */
+    public File sourcesJar;
+
+    /**
+     * Where the JSON report is written, or null to skip it
+     */
+    public File reportFile;
+
+    /**
+     * Maximum number of files to parse at once
+     */
+    public int parallelism = 1;
+
+    /**
+     * @return the P.java file this work generates
+     */
+    public File getGeneratedFile() {
+        return new File(outputDir, packageName.replace('.', '/') + "/" + className + ".java");
+    }
+
+    /**
+     * @return the P.class file this work compiles, or null if it doesn't compile
+     */
+    public File getCompiledFile() {
+        return classesDir != null ? new File(classesDir, packageName.replace('.', '/') + "/" + className + ".class") : null;
+    }
+}
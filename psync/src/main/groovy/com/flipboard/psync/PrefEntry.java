@@ -3,12 +3,16 @@ package com.flipboard.psync;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Serializable;
+
 /**
  * This represents a preference entry
  * <p>
  * T represents the type of value this preference is backed by, such as a boolean
  */
-public final class PrefEntry<T> implements Comparable<PrefEntry> {
+public final class PrefEntry<T> implements Comparable<PrefEntry>, Serializable {
+
+    private static final long serialVersionUID = 4L;
 
     public static final PrefEntry<Void> BLANK = new PrefEntry<>("", null, null);
 
@@ -34,6 +38,15 @@ public final class PrefEntry<T> implements Comparable<PrefEntry> {
     public String resType = null;
     public boolean isResource = false;
     public String resourceDefaultValueGetterStmt = null;
+    // The resource's value when it was resolved at build time, which makes it a plain constant
+    public Object inlinedDefaultValue = null;
+
+    // Name of the SharedPreferences file holding this, null for the default one
+    public String preferenceFile = null;
+
+    // Where this was declared, for reporting. Not part of the generated code, so not in toString()
+    public String sourceFile = null;
+    public int sourceLine = -1;
 
     private PrefEntry(String key, T defaultValue, String resType) {
         this.key = key;
@@ -97,7 +110,7 @@ public final class PrefEntry<T> implements Comparable<PrefEntry> {
             return false;
         }
 
-        return hashCode() == o.hashCode();
+        return key.equals(((PrefEntry) o).key);
     }
 
     @Override
@@ -127,9 +140,33 @@ public final class PrefEntry<T> implements Comparable<PrefEntry> {
                 + entriesGetterStmt
                 + ", entryValuesGetterStmt="
                 + entryValuesGetterStmt
+                + ", inlinedDefaultValue="
+                + inlinedDefaultValue
+                + ", preferenceFile="
+                + preferenceFile
                 + "}";
     }
 
+    /**
+     * @return a copy of this entry, for changes that mustn't show in cached entries shared with other variants
+     */
+    public PrefEntry<T> copy() {
+        PrefEntry<T> copy = new PrefEntry<>(key, defaultValue, resType);
+        copy.key = key;
+        copy.defaultType = defaultType;
+        copy.valueType = valueType;
+        copy.hasListAttributes = hasListAttributes;
+        copy.entriesGetterStmt = entriesGetterStmt;
+        copy.entryValuesGetterStmt = entryValuesGetterStmt;
+        copy.isResource = isResource;
+        copy.resourceDefaultValueGetterStmt = resourceDefaultValueGetterStmt;
+        copy.inlinedDefaultValue = inlinedDefaultValue;
+        copy.preferenceFile = preferenceFile;
+        copy.sourceFile = sourceFile;
+        copy.sourceLine = sourceLine;
+        return copy;
+    }
+
     public boolean isBlank() {
         return StringUtils.isEmpty(key);
     }
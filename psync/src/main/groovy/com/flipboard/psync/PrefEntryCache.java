@@ -0,0 +1,169 @@
+package com.flipboard.psync;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-file cache of parsed {@link PrefEntry}s, persisted between runs of {@link PSyncTask} so that
+ * only changed xml files have to be parsed again.
+ * <p>
+ * Files are keyed by their absolute path and validated against a hash of their contents.
+ */
+public final class PrefEntryCache implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, CachedFile> files = new HashMap<>();
+
+    /**
+     * Hash of the last merged entry list, used to tell if the generated class needs to change.
+     */
+    private String mergedSignature = null;
+
+    /**
+     * Loads a cache from the given file. Any problem reading it (missing, corrupt, or written by an
+     * incompatible version) results in an empty cache, which just means everything gets parsed.
+     *
+     * @param cacheFile File the cache was previously saved to
+     * @return the loaded cache, or an empty one
+     */
+    public static PrefEntryCache load(File cacheFile) {
+        if (!cacheFile.isFile()) {
+            return new PrefEntryCache();
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            return (PrefEntryCache) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return new PrefEntryCache();
+        }
+    }
+
+    /**
+     * @return a hash of the given file's contents
+     */
+    public static String hash(File file) throws IOException {
+        return Files.asByteSource(file).hash(Hashing.sha1()).toString();
+    }
+
+    public void save(File cacheFile) throws IOException {
+        File parent = cacheFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+            out.writeObject(this);
+        }
+    }
+
+    public boolean contains(File file) {
+        return files.containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * @return true if the entries for this file are cached and were parsed from contents matching the given hash
+     */
+    public boolean isCurrent(File file, String hash) {
+        CachedFile cached = files.get(file.getAbsolutePath());
+        return cached != null && cached.hash.equals(hash);
+    }
+
+    public void put(File file, String hash, List<PrefEntry> entries) {
+        files.put(file.getAbsolutePath(), new CachedFile(hash, entries));
+    }
+
+    public void remove(File file) {
+        files.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Rebuilds the distinct, sorted entry list from the cached files. Files are visited in the
+     * order given so that the first file declaring a key wins, same as a full parse would. Any
+     * cached file that isn't in the given sources anymore is dropped from the cache.
+     *
+     * @param sources All the current source files, in task order
+     * @return the merged entries
+     */
+    public List<PrefEntry> merge(Iterable<File> sources) {
+        return merge(sources, new PrefEntryMerger());
+    }
+
+    /**
+     * Same as {@link #merge(Iterable)}, merging into the given merger so its conflicts can be reported.
+     */
+    public List<PrefEntry> merge(Iterable<File> sources, PrefEntryMerger merger) {
+        Set<String> livePaths = new HashSet<>();
+        for (File source : sources) {
+            String path = source.getAbsolutePath();
+            livePaths.add(path);
+            CachedFile cached = files.get(path);
+            if (cached != null) {
+                merger.addAll(cached.entries);
+            }
+        }
+        files.keySet().retainAll(livePaths);
+        return merger.getEntries();
+    }
+
+    /**
+     * Records the signature of the given merged entries, along with what they're generated into.
+     *
+     * @param merged Merged entries, as returned by {@link #merge(Iterable)}
+     * @param outputKey Everything else the generated code depends on, like the package, class name and options
+     * @return true if either differs from the last recorded ones
+     */
+    public boolean updateSignature(List<PrefEntry> merged, String outputKey) {
+        String signature = signatureOf(merged) + ":" + outputKey;
+        boolean changed = !signature.equals(mergedSignature);
+        mergedSignature = signature;
+        return changed;
+    }
+
+    /**
+     * @return a hash covering everything about the given entries that ends up in generated code
+     */
+    public static String signatureOf(List<PrefEntry> entries) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (PrefEntry entry : entries) {
+            // PrefEntry equality only considers the key, toString() covers everything we generate from
+            hasher.putString(entry.toString(), Charsets.UTF_8);
+            // Which file a key comes from decides its class when sharding
+            if (entry.sourceFile != null) {
+                hasher.putString(new File(entry.sourceFile).getName(), Charsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    private static final class CachedFile implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String hash;
+        final ArrayList<PrefEntry> entries;
+
+        CachedFile(String hash, List<PrefEntry> entries) {
+            this.hash = hash;
+            this.entries = new ArrayList<>(entries);
+        }
+    }
+}
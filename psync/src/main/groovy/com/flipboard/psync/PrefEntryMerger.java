@@ -0,0 +1,93 @@
+package com.flipboard.psync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the entries of several files into a single list with one entry per key, sorted by key.
+ * <p>
+ * Entries are indexed by their exact key and kept in key order as they're added, so nothing has to be
+ * sorted again at the end. The first entry added for a key wins. A later entry for the same key that
+ * disagrees on its type is recorded as a conflict, with the locations of both declarations.
+ */
+public final class PrefEntryMerger {
+
+    private final TreeMap<String, PrefEntry> entries = new TreeMap<>();
+    private final List<String> conflicts = new ArrayList<>();
+
+    /**
+     * Adds entries, in declaration order.
+     */
+    public void addAll(Iterable<PrefEntry> toAdd) {
+        for (PrefEntry entry : toAdd) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Adds an entry, unless one with the same key was already added.
+     *
+     * @return true if the entry was added
+     */
+    public boolean add(PrefEntry entry) {
+        PrefEntry existing = entries.get(entry.key);
+        if (existing == null) {
+            entries.put(entry.key, entry);
+            return true;
+        }
+
+        if (!sameDeclaration(existing, entry)) {
+            conflicts.add("Preference key '" + entry.key + "' is declared as " + describeType(existing)
+                    + " at " + describeLocation(existing) + " and as " + describeType(entry)
+                    + " at " + describeLocation(entry) + ", using the first one");
+        }
+        return false;
+    }
+
+    /**
+     * @return the merged entries, sorted by key
+     */
+    public List<PrefEntry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return descriptions of every conflicting declaration found so far, in the order they were found
+     */
+    public List<String> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static boolean sameDeclaration(PrefEntry first, PrefEntry second) {
+        return first.defaultType == second.defaultType
+                && first.valueType == second.valueType
+                && (first.resType == null ? second.resType == null : first.resType.equals(second.resType))
+                && (first.preferenceFile == null ? second.preferenceFile == null : first.preferenceFile.equals(second.preferenceFile));
+    }
+
+    private static String describeType(PrefEntry entry) {
+        String type;
+        if (entry.isResource) {
+            type = "@" + entry.resType;
+        } else if (entry.defaultType == null) {
+            type = "untyped";
+        } else {
+            type = entry.defaultType.getSimpleName();
+        }
+        return entry.preferenceFile != null ? type + " in '" + entry.preferenceFile + "'" : type;
+    }
+
+    private static String describeLocation(PrefEntry entry) {
+        if (entry.sourceFile == null) {
+            return "<unknown>";
+        }
+        return entry.sourceLine > 0 ? entry.sourceFile + ":" + entry.sourceLine : entry.sourceFile;
+    }
+}
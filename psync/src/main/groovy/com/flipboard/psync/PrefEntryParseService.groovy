@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Flipboard Inc
+ */
+
+package com.flipboard.psync
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Build-scoped cache shared by every {@link PSyncTask} in the build, see {@link PSyncPlugin#parseServiceFor}.
+ *
+ * Most variants share the main resource directories, so each file is parsed once per build and every
+ * other variant only has to parse its own overlay files. Generated sources are memoized the same way,
+ * so variants that end up with identical entries reuse a single generated output.
+ *
+ * A {@link PSyncCli} worker keeps one for as long as it runs. Only the latest contents of each file
+ * are kept, so that doesn't grow with every change.
+ */
+class PrefEntryParseService {
+
+    // File path to the hash of the contents that were parsed and their entries
+    private final ConcurrentMap<String, ParsedFile> parsedFiles = new ConcurrentHashMap<>()
+    private final ConcurrentMap<String, Map<String, String>> generatedSources = new ConcurrentHashMap<>()
+
+    private final AtomicInteger parseCounter = new AtomicInteger()
+    private final AtomicInteger hitCounter = new AtomicInteger()
+
+    /**
+     * Parses the given files, reusing the results for any file already parsed with the same contents
+     * during this build.
+     *
+     * @param files Files to parse
+     * @param hashes Hashes of the contents of each file, in the same order
+     * @param parallelism Maximum number of files to parse at once
+     * @return The entries of each file, in the same order as the files
+     */
+    List<List<PrefEntry>> parse(List<File> files, List<String> hashes, int parallelism) {
+        return parse(files, hashes, parallelism, null)
+    }
+
+    /**
+     * Same as {@link #parse(List, List, int)}, also counting the reused results in the given report.
+     *
+     * @param report Report of the calling task, may be null
+     */
+    List<List<PrefEntry>> parse(List<File> files, List<String> hashes, int parallelism, GenerationReport report) {
+        List<List<PrefEntry>> results = new ArrayList<>(Collections.nCopies(files.size(), (List<PrefEntry>) null))
+        List<Integer> misses = []
+        files.eachWithIndex { File file, int i ->
+            ParsedFile cached = parsedFiles.get(file.absolutePath)
+            if (cached != null && cached.hash == hashes.get(i)) {
+                hitCounter.incrementAndGet()
+                if (report != null) {
+                    report.sharedCacheHits++
+                }
+                results.set(i, cached.entries)
+            } else {
+                misses.add(i)
+            }
+        }
+
+        List<List<PrefEntry>> parsed = PrefEntryParser.parseFiles(misses.collect { int i -> files.get(i) }, parallelism)
+        parseCounter.addAndGet(misses.size())
+        if (report != null) {
+            report.parsedFiles += misses.size()
+        }
+        misses.eachWithIndex { int fileIndex, int i ->
+            List<PrefEntry> entries = Collections.unmodifiableList(parsed.get(i))
+            parsedFiles.put(files.get(fileIndex).absolutePath, new ParsedFile(hashes.get(fileIndex), entries))
+            results.set(fileIndex, entries)
+        }
+        return results
+    }
+
+    /**
+     * Returns the generated sources for the given key, only running the generator the first time a
+     * key is seen in this build.
+     *
+     * @param key Key that uniquely identifies the generated output (entries and generation options)
+     * @param generator Generates the sources, keyed by class name, if they're not known yet
+     */
+    Map<String, String> generatedSources(String key, Callable<Map<String, String>> generator) {
+        Map<String, String> sources = generatedSources.get(key)
+        if (sources == null) {
+            sources = Collections.unmodifiableMap(generator.call())
+            Map<String, String> existing = generatedSources.putIfAbsent(key, sources)
+            if (existing != null) {
+                sources = existing
+            }
+        }
+        return sources
+    }
+
+    /**
+     * @return How many files were actually parsed during this build
+     */
+    int getParseCount() {
+        return parseCounter.get()
+    }
+
+    /**
+     * @return How many file parses were avoided by reusing an earlier result during this build
+     */
+    int getHitCount() {
+        return hitCounter.get()
+    }
+
+    /**
+     * Forgets all generated sources. They're only reused within a build, a long lived process calls
+     * this once it's done with one so they don't pile up.
+     */
+    void clearGeneratedSources() {
+        generatedSources.clear()
+    }
+
+    private static final class ParsedFile {
+
+        final String hash
+        final List<PrefEntry> entries
+
+        ParsedFile(String hash, List<PrefEntry> entries) {
+            this.hash = hash
+            this.entries = entries
+        }
+    }
+}
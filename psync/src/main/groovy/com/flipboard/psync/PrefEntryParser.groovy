@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Flipboard Inc
+ */
+
+package com.flipboard.psync
+import com.google.common.collect.ImmutableList
+import org.apache.commons.lang3.StringUtils
+import org.apache.commons.lang3.math.NumberUtils
+import rx.Observable
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
+
+/**
+ * Parses preference xml files into {@link PrefEntry PrefEntries}. Doesn't depend on Gradle, so it's
+ * shared by {@link PSyncTask} and {@link PSyncCli}.
+ */
+class PrefEntryParser {
+
+    static final ImmutableList<String> BOOL_TYPES = ImmutableList.of("true", "false")
+
+    static final int DEFAULT_PARALLELISM = Runtime.runtime.availableProcessors()
+
+    /**
+     * Namespace of the preferenceFile attribute. aapt strips tools attributes, so they're free to use.
+     */
+    static final String TOOLS_NAMESPACE = "http://schemas.android.com/tools"
+
+    // Factories aren't guaranteed to be thread safe and are costly to look up, so keep one per thread
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance()
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+            return factory
+        }
+    }
+
+    private PrefEntryParser() {
+        throw new AssertionError("No instances.")
+    }
+
+    /**
+     * Retrieves all the keys in the given files, parsing several of them at once.
+     *
+     * Files are merged back in source order whatever order they finish parsing in, so when two files declare
+     * the same key the one that comes first in {@code sources} wins.
+     *
+     * @param sources Preference xml files to parse, in source order
+     * @return Observable of all the distinct keys in these files, sorted by key.
+     */
+    static Observable<List<PrefEntry>> getPrefEntriesFromFiles(Iterable<File> sources) {
+        getPrefEntriesFromFiles(sources, DEFAULT_PARALLELISM)
+    }
+
+    /**
+     * Retrieves all the keys in the given files, parsing up to {@code parallelism} files at once.
+     *
+     * The output doesn't depend on the parallelism, since parsed files are merged back in source order.
+     *
+     * @param sources Files to parse
+     * @param parallelism Maximum number of files to parse at once
+     * @return Observable of all the distinct keys in these files, sorted by key.
+     */
+    static Observable<List<PrefEntry>> getPrefEntriesFromFiles(Iterable<File> sources, int parallelism) {
+        Observable.from(sources)                                                // Fetch the keys from each file
+                .toList()                                                       // Gather them up to fan out
+                .map {List<File> files -> mergeEntries(parseFiles(files, parallelism)).entries} // Parse and merge, in source order
+    }
+
+    /**
+     * Merges the entries of several files, first declaration of a key wins.
+     *
+     * @param parsed The entries of each file, in source order
+     * @return the merger holding the sorted entries and any conflicting declarations
+     */
+    static PrefEntryMerger mergeEntries(List<List<PrefEntry>> parsed) {
+        PrefEntryMerger merger = new PrefEntryMerger()
+        parsed.each { List<PrefEntry> entries -> merger.addAll(entries) }
+        return merger
+    }
+
+    /**
+     * Parses the given files on a bounded pool of worker threads.
+     *
+     * @param files Files to parse
+     * @param parallelism Maximum number of files to parse at once
+     * @return The entries of each file, in the same order as the files
+     */
+    static List<List<PrefEntry>> parseFiles(List<File> files, int parallelism) {
+        int threads = Math.min(Math.max(parallelism, 1), files.size())
+        if (threads <= 1) {
+            return files.collect { File file -> getPrefEntriesFromFile(file) }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads)
+        try {
+            List<Future<List<PrefEntry>>> futures = files.collect { File file ->
+                executor.submit({ getPrefEntriesFromFile(file) } as Callable<List<PrefEntry>>)
+            }
+            return futures.collect { Future<List<PrefEntry>> future ->
+                try {
+                    return future.get()
+                } catch (ExecutionException e) {
+                    throw e.cause
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Retrieves all the usable entries in a single xml file, in document order.
+     *
+     * This streams through the file and only looks at the attributes of each start element, so no
+     * DOM is ever built.
+     *
+     * @param file File to parse
+     * @return List of the non-blank entries in this file
+     */
+    static List<PrefEntry> getPrefEntriesFromFile(File file) {
+        List<PrefEntry> result = new ArrayList<>()
+        InputStream stream = new BufferedInputStream(new FileInputStream(file))
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.get().createXMLStreamReader(stream)
+            try {
+                // A tools:preferenceFile on a screen or category applies to everything inside it
+                Deque<String> enclosingFiles = new ArrayDeque<>()
+                while (reader.hasNext()) {
+                    int event = reader.next()
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String preferenceFile = reader.getAttributeValue(TOOLS_NAMESPACE, "preferenceFile") ?: enclosingFiles.peek()
+                        // ArrayDeque can't hold nulls, so "" stands for the default file
+                        enclosingFiles.push(preferenceFile ?: "")
+
+                        PrefEntry entry = generatePrefEntry(reader)
+                        if (!entry.isBlank()) {
+                            entry.sourceFile = file.path
+                            entry.sourceLine = reader.location.lineNumber
+                            entry.preferenceFile = preferenceFile ?: null
+                            result.add(entry)
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        enclosingFiles.pop()
+                    }
+                }
+            } finally {
+                reader.close()
+            }
+        } finally {
+            stream.close()
+        }
+        return result
+    }
+
+    /**
+     * Generates a {@link PrefEntry} from the attributes of the start element the reader is currently on
+     *
+     * @param element reader positioned on a start element
+     * @return a generated PrefEntry, or {@link PrefEntry#BLANK} if we can't do anything with it
+     */
+    static PrefEntry generatePrefEntry(XMLStreamReader element) {
+        String key = null
+        String defaultValue = null
+
+        // These are present for list-type preferences
+        String entries = null
+        String entryValues = null
+
+        int attributeCount = element.attributeCount
+        for (int i = 0; i < attributeCount; i++) {
+            switch (element.getAttributeLocalName(i)) {
+                case "key":
+                    key = element.getAttributeValue(i)
+                    break
+                case "defaultValue":
+                    defaultValue = element.getAttributeValue(i)
+                    break
+                case "entries":
+                    entries = element.getAttributeValue(i)
+                    break
+                case "entryValues":
+                    entryValues = element.getAttributeValue(i)
+                    break
+            }
+        }
+
+        return generatePrefEntry(key, defaultValue, entries, entryValues)
+    }
+
+    /**
+     * Generates a {@link PrefEntry} from the attribute values of a preference element
+     *
+     * @param key the key attribute
+     * @param defaultValue the defaultValue attribute, if any
+     * @param entries the entries attribute of list preferences, if any
+     * @param entryValues the entryValues attribute of list preferences, if any
+     * @return a generated PrefEntry, or {@link PrefEntry#BLANK} if we can't do anything with it
+     */
+    static PrefEntry generatePrefEntry(String key, String defaultValue, String entries, String entryValues) {
+        PrefEntry entry
+
+        if (StringUtils.isEmpty(key)) {
+            return PrefEntry.BLANK
+        }
+
+        boolean hasListAttributes = entries || entryValues
+
+        if (defaultValue == null || defaultValue.length() == 0) {
+            entry = PrefEntry.create(key, null)
+        } else if (BOOL_TYPES.contains(defaultValue)) {
+            entry = PrefEntry.create(key, Boolean.valueOf(defaultValue))
+        } else if (NumberUtils.isNumber(defaultValue)) {
+            entry = PrefEntry.create(key, Integer.valueOf(defaultValue))
+        } else if (defaultValue.startsWith('@')) {
+            entry = generateResourcePrefEntry(key, defaultValue)
+            if (hasListAttributes && entry.resType == "string") {
+                // Only string resource entries can be list preferences
+                entry.markAsListPreference(entries, entryValues)
+            }
+        } else {
+            entry = PrefEntry.create(key, defaultValue)
+            if (hasListAttributes) {
+                entry.markAsListPreference(entries, entryValues)
+            }
+        }
+
+        return entry
+    }
+
+    /**
+     * Resource PrefEntries are special, because we need to retrieve their resource ID.
+     *
+     * @param key Preference key
+     * @param defaultValue String representation of the default value (e.g. "@string/hello")
+     * @return PrefEntry object representing this, or {@link PrefEntry#BLANK} if we couldn't resolve its resource ID
+     */
+    static PrefEntry generateResourcePrefEntry(String key, String defaultValue) {
+        String[] split = defaultValue.split('/')
+
+        if (split == null || split.length < 2) {
+            return PrefEntry.BLANK;
+        }
+
+        String resType = split[0].substring(1)
+        String resId = split[1]
+        return PrefEntry.create(key, resId, resType)
+    }
+}
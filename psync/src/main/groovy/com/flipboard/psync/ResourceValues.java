@@ -0,0 +1,233 @@
+package com.flipboard.psync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The bool, integer and string values declared in a variant's {@code values*} resource files, as far
+ * as they can be known at build time.
+ * <p>
+ * A value can only be resolved when it's declared in an unqualified {@code values} directory and in no
+ * qualified one ({@code values-land}, {@code values-fr}, {@code values-v21}...), since those can
+ * change it at runtime. Values that would need aapt's processing to be read right, like references,
+ * escapes, quotes, markup or collapsible whitespace, aren't resolved either.
+ */
+public final class ResourceValues {
+
+    /**
+     * Resource types that can be resolved, as named in {@link PrefEntry#resType}
+     */
+    static final Set<String> RESOLVABLE_TYPES = new HashSet<>(Arrays.asList("bool", "integer", "string"));
+
+    private static final Pattern DECIMAL = Pattern.compile("-?[0-9]+");
+    private static final Pattern HEX = Pattern.compile("0[xX][0-9a-fA-F]{1,8}");
+
+    // Only the single spaces between words survive aapt untouched
+    private static final Pattern PLAIN_STRING = Pattern.compile("[^\\s\\\\\"'@?]([^\\s\\\\\"']| (?! ))*(?<! )|");
+
+    /**
+     * Marks a value that's known to exist but can't be resolved
+     */
+    private static final Object UNRESOLVABLE = new Object();
+
+    private final Map<String, Object> values = new HashMap<>();
+    private final Set<String> qualified = new HashSet<>();
+
+    /**
+     * Reads the given values files. Where the same resource is declared in several unqualified
+     * directories, the last file wins, like resource merging does for source sets in increasing priority.
+     *
+     * @param valuesFiles xml files in values directories, in increasing priority
+     * @param wanted Keys ({@code type/name}) of the resources to look for, everything else is skipped
+     */
+    public static ResourceValues parse(Collection<File> valuesFiles, Set<String> wanted) throws IOException {
+        ResourceValues resourceValues = new ResourceValues();
+        if (wanted.isEmpty()) {
+            return resourceValues;
+        }
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        for (File file : valuesFiles) {
+            File dir = file.getParentFile();
+            if (dir == null || !dir.getName().startsWith("values") || !file.isFile()) {
+                continue;
+            }
+            boolean isQualified = !dir.getName().equals("values");
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                XMLStreamReader reader = factory.createXMLStreamReader(stream);
+                try {
+                    resourceValues.read(reader, wanted, isQualified);
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Could not parse " + file, e);
+            }
+        }
+        return resourceValues;
+    }
+
+    /**
+     * @return the key of a resource as used by {@link #parse}
+     */
+    public static String key(String type, String name) {
+        return type + "/" + name;
+    }
+
+    /**
+     * @return the build time value of the given resource (a Boolean, Integer or String), or null if it
+     * has to be resolved at runtime
+     */
+    public Object resolve(String type, String name) {
+        String key = key(type, name);
+        Object value = values.get(key);
+        return value == UNRESOLVABLE || qualified.contains(key) ? null : value;
+    }
+
+    /**
+     * @return copies of the entries whose resource default could be resolved, with it inlined, and the
+     * other entries as they were
+     */
+    public List<PrefEntry> inline(List<PrefEntry> entries) {
+        List<PrefEntry> inlined = new ArrayList<>(entries.size());
+        for (PrefEntry entry : entries) {
+            Object value = entry.isResource && entry.defaultValue != null ? resolve(entry.resType, entry.defaultValue.toString()) : null;
+            if (value != null) {
+                PrefEntry copy = entry.copy();
+                copy.inlinedDefaultValue = value;
+                inlined.add(copy);
+            } else {
+                inlined.add(entry);
+            }
+        }
+        return inlined;
+    }
+
+    /**
+     * @return keys of the resources referenced as defaults by the given entries, which could be inlined
+     */
+    public static Set<String> wantedBy(List<PrefEntry> entries) {
+        Set<String> wanted = new HashSet<>();
+        for (PrefEntry entry : entries) {
+            if (entry.isResource && entry.defaultValue != null && RESOLVABLE_TYPES.contains(entry.resType)) {
+                wanted.add(key(entry.resType, entry.defaultValue.toString()));
+            }
+        }
+        return wanted;
+    }
+
+    private void read(XMLStreamReader reader, Set<String> wanted, boolean isQualified) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                // Resources are the direct children of <resources>
+                if (depth != 2) {
+                    continue;
+                }
+
+                String type = reader.getLocalName();
+                if (type.equals("item")) {
+                    type = reader.getAttributeValue(null, "type");
+                }
+                String name = reader.getAttributeValue(null, "name");
+                if (type == null || name == null || !wanted.contains(key(type, name))) {
+                    continue;
+                }
+
+                String key = key(type, name);
+                if (isQualified) {
+                    qualified.add(key);
+                    continue;
+                }
+
+                String text = readText(reader);
+                // readText() consumed the end tag
+                depth--;
+                Object value = text != null ? parseValue(type, text) : null;
+                values.put(key, value != null ? value : UNRESOLVABLE);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the text content of the current element, or null if it has anything but text in it
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        boolean plain = true;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    plain = false;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    break;
+                default:
+                    // CDATA and entity references get special treatment from aapt
+                    plain = false;
+                    break;
+            }
+        }
+        return plain ? text.toString() : null;
+    }
+
+    private static Object parseValue(String type, String text) {
+        switch (type) {
+            case "bool": {
+                String trimmed = text.trim();
+                return trimmed.equals("true") ? Boolean.TRUE : trimmed.equals("false") ? Boolean.FALSE : null;
+            }
+            case "integer": {
+                String trimmed = text.trim();
+                try {
+                    if (DECIMAL.matcher(trimmed).matches()) {
+                        return Integer.parseInt(trimmed);
+                    } else if (HEX.matcher(trimmed).matches()) {
+                        return (int) Long.parseLong(trimmed.substring(2), 16);
+                    }
+                } catch (NumberFormatException e) {
+                    // Out of range, let the runtime deal with it
+                }
+                return null;
+            }
+            case "string":
+                return PLAIN_STRING.matcher(text).matches() ? text : null;
+            default:
+                return null;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.flipboard.psync
+import com.android.build.api.transform.QualifiedContent
 import com.android.build.gradle.api.ApplicationVariant
 import com.android.build.gradle.api.LibraryVariant
+import com.android.build.gradle.tasks.ProcessAndroidResources
 import com.github.javaparser.JavaParser
 import com.github.javaparser.ast.CompilationUnit
 import com.github.javaparser.ast.body.BodyDeclaration
@@ -8,7 +10,11 @@ import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration
 import com.github.javaparser.ast.body.ConstructorDeclaration
 import com.github.javaparser.ast.body.FieldDeclaration
 import com.github.javaparser.ast.body.MethodDeclaration
+import com.github.javaparser.ast.stmt.IfStmt
 import com.github.javaparser.ast.stmt.ReturnStmt
+import com.github.javaparser.ast.stmt.SwitchStmt
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import org.gradle.api.Project
 import org.gradle.api.ProjectConfigurationException
 import org.gradle.api.Task
@@ -19,7 +25,12 @@ import org.junit.Test
 import rx.Observable
 
 import java.lang.reflect.Modifier
+import java.util.concurrent.Callable
+import java.util.jar.JarFile
 
+import static com.flipboard.psync.TestHelper.findField
+import static com.flipboard.psync.TestHelper.findMethod
+import static com.flipboard.psync.TestHelper.findType
 import static com.flipboard.psync.TestHelper.isPSF
 import static com.google.common.truth.Truth.assertThat
 
@@ -66,6 +77,55 @@ class PsyncTest {
         assertThat(entry).isNotEqualTo that
     }
 
+    @Test
+    void testPrefEntryEqualityComparesKeys() {
+        // Same hashCode, different keys
+        assertThat("Aa".hashCode()).isEqualTo "BB".hashCode()
+        assertThat(PrefEntry.create("Aa", true)).isNotEqualTo PrefEntry.create("BB", true)
+    }
+
+    @Test
+    void testPrefEntryMerger() {
+        PrefEntryMerger merger = new PrefEntryMerger()
+        PrefEntry<Boolean> first = PrefEntry.create("show_images", true)
+        first.sourceFile = "prefs_a.xml"
+        first.sourceLine = 3
+        PrefEntry<Integer> conflicting = PrefEntry.create("show_images", 3)
+        conflicting.sourceFile = "prefs_b.xml"
+        conflicting.sourceLine = 12
+        PrefEntry<Boolean> duplicate = PrefEntry.create("show_images", false)
+
+        assertThat(merger.add(PrefEntry.create("Aa", true))).isTrue()
+        assertThat(merger.add(first)).isTrue()
+        assertThat(merger.add(PrefEntry.create("BB", true))).isTrue()
+        assertThat(merger.add(conflicting)).isFalse()
+        assertThat(merger.add(duplicate)).isFalse()
+
+        // Colliding hashes are both kept, entries come out sorted, first declaration wins
+        assertThat(merger.entries.collect {it.key}).containsExactly("Aa", "BB", "show_images").inOrder()
+        assertThat(merger.entries[2]).isSameAs first
+
+        // Same type with a different default isn't a conflict
+        assertThat(merger.conflicts).containsExactly(
+                "Preference key 'show_images' is declared as boolean at prefs_a.xml:3 and as int at prefs_b.xml:12, using the first one")
+    }
+
+    @Test
+    void testParsedEntriesHaveLocations() {
+        File prefs = new File("$RESOURCE_PATH/prefs.xml")
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFile(prefs)
+        entries.each {
+            assertThat(it.sourceFile).isEqualTo prefs.path
+            assertThat(it.sourceLine).isGreaterThan 0
+        }
+
+        // Locations don't affect what's generated
+        PrefEntry<Boolean> located = PrefEntry.create("show_images", true)
+        located.sourceFile = prefs.path
+        located.sourceLine = 10
+        assertThat(located.toString()).isEqualTo PrefEntry.create("show_images", true).toString()
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     void testThrowsOnUnsupportedType() {
         PrefEntry.create("myKey", Double.class)
@@ -73,14 +133,14 @@ class PsyncTest {
 
     @Test()
     void testUnsupportedResourceType() {
-        assertThat(PSyncTask.generateResourcePrefEntry("my_key", "@id/my_pref_value").isBlank())
-        assertThat(PSyncTask.generateResourcePrefEntry("my_key", "@dimen/my_pref_value").isBlank())
-        assertThat(PSyncTask.generateResourcePrefEntry("my_key", "@banana/my_pref_value").isBlank())
+        assertThat(PrefEntryParser.generateResourcePrefEntry("my_key", "@id/my_pref_value").isBlank())
+        assertThat(PrefEntryParser.generateResourcePrefEntry("my_key", "@dimen/my_pref_value").isBlank())
+        assertThat(PrefEntryParser.generateResourcePrefEntry("my_key", "@banana/my_pref_value").isBlank())
     }
 
     @Test
     void testGenerateResourcePrefEntry() {
-        PrefEntry entry = PSyncTask.generateResourcePrefEntry("my_key", "@string/my_pref_value")
+        PrefEntry entry = PrefEntryParser.generateResourcePrefEntry("my_key", "@string/my_pref_value")
         assertThat(entry.key).isEqualTo "my_key"
         assertThat(entry.isResource)
         assertThat(entry.defaultValue).isInstanceOf String
@@ -117,7 +177,7 @@ class PsyncTest {
     void testGetPrefEntriesFromFiles() {
         RecordingObserver<PrefEntry> o = new RecordingObserver<>()
         //noinspection GroovyAssignabilityCheck
-        PSyncTask.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml")))
+        PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml")))
                 .flatMap {List<PrefEntry> entries -> Observable.from(entries)}
                 .subscribe(o)
 
@@ -248,9 +308,36 @@ class PsyncTest {
         o.assertNoMoreEvents()
     }
 
+    @Test
+    void testParallelParsingMatchesSequential() {
+        File xmlDir = new File("$OUT_PATH/parallel")
+        xmlDir.mkdirs()
+        List<File> files = (0..<24).collect { int i ->
+            File file = new File(xmlDir, "prefs_${i}.xml")
+            // Every file shares some keys with its neighbours, with different defaults, so merge order matters
+            file.text = """<?xml version="1.0" encoding="utf-8"?>
+<PreferenceScreen xmlns:android="http://schemas.android.com/apk/res/android">
+    <Preference android:key="shared_${i % 4}" android:defaultValue="from_file_${i}" />
+    <Preference android:key="own_${i}" android:defaultValue="${i}" />
+    <CheckBoxPreference android:key="flag_${i}" android:defaultValue="true" />
+</PreferenceScreen>
+"""
+            return file
+        }
+
+        List<String> sequential = PrefEntryParser.getPrefEntriesFromFiles(files, 1).toBlocking().first().collect {it.toString()}
+        assertThat(sequential).hasSize 52
+        [2, 3, 8, 64].each { int parallelism ->
+            List<String> parallel = PrefEntryParser.getPrefEntriesFromFiles(files, parallelism).toBlocking().first().collect {it.toString()}
+            assertThat(parallel).isEqualTo sequential
+        }
+
+        xmlDir.deleteDir()
+    }
+
     @Test
     public void testGeneration() {
-        List<PrefEntry> entries = PSyncTask.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
         File outputDir = new File(OUT_PATH)
         PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", true)
         File generatedFile = new File("$OUT_PATH/com/flipboard/psync/test/P.java")
@@ -265,7 +352,7 @@ class PsyncTest {
         assertThat(Modifier.isPublic(pClass.modifiers))
         assertThat(Modifier.isFinal(pClass.modifiers))
         assertThat(pClass.name).isEqualTo "P"
-        assertThat(pClass.members).hasSize 15
+        assertThat(pClass.members).hasSize 21
 
         ConstructorDeclaration constructor = pClass.members.find {it instanceof ConstructorDeclaration} as ConstructorDeclaration
         assertThat(constructor).isNotNull()
@@ -273,7 +360,20 @@ class PsyncTest {
         assertThat(constructor.block.stmts[0].toString()).isEqualTo "throw new  AssertionError(\"No instances.\");"
         assertThat(pClass.members.find {it instanceof ConstructorDeclaration})
 
-        List<BodyDeclaration> typeMembers = pClass.members.subList(6, pClass.members.size())
+        MethodDeclaration init = findMethod(pClass, "init")
+        assertThat(init.body.stmts.collect {it.toString()}).contains "clearResolvedDefaults();"
+        MethodDeclaration clearResolvedDefaults = findMethod(pClass, "clearResolvedDefaults")
+        assertThat(Modifier.isPrivate(clearResolvedDefaults.modifiers))
+        assertThat(clearResolvedDefaults.body.stmts.collect {it.toString()}).containsExactly(
+                "numberOfRows.clearResolvedDefault();",
+                "primaryColor.clearResolvedDefault();",
+                "requestTypes.clearResolvedDefault();",
+                "serverUrl.clearResolvedDefault();",
+                "useInputs.clearResolvedDefault();").inOrder()
+
+        assertThat(pClass.members.subList(10, 12).collect {it.name}).containsExactly("Editor", "Snapshot").inOrder()
+
+        List<BodyDeclaration> typeMembers = pClass.members.subList(12, pClass.members.size())
         typeMembers.each {
             assertThat(it).isInstanceOf ClassOrInterfaceDeclaration
         }
@@ -326,7 +426,7 @@ class PsyncTest {
         ClassOrInterfaceDeclaration numRows = typeMembers[classCount++] as ClassOrInterfaceDeclaration
         assertThat(isPSF(numRows.modifiers))
         assertThat(numRows.name).isEqualTo "numberOfRows"
-        assertThat(numRows.members).hasSize 6
+        assertThat(numRows.members).hasSize 9
         FieldDeclaration numRowsKey = numRows.members[0] as FieldDeclaration
         assertThat(isPSF(numRowsKey.modifiers))
         assertThat(numRowsKey.type.toString()).isEqualTo "String"
@@ -337,21 +437,33 @@ class PsyncTest {
         assertThat(numRowsDefault.type.toString()).isEqualTo "int"
         assertThat(numRowsDefault.variables[0].id.name).isEqualTo "defaultResId"
         assertThat(numRowsDefault.variables[0].init.toString()).isEqualTo "R.integer.num_rows"
-        MethodDeclaration numRowsDefaultGetter = numRows.members[2] as MethodDeclaration
+        FieldDeclaration numRowsResolved = numRows.members[2] as FieldDeclaration
+        assertThat(Modifier.isPrivate(numRowsResolved.modifiers))
+        assertThat(numRowsResolved.type.toString()).isEqualTo "int"
+        assertThat(numRowsResolved.variables[0].id.name).isEqualTo "resolvedDefaultValue"
+        FieldDeclaration numRowsHasResolved = numRows.members[3] as FieldDeclaration
+        assertThat(Modifier.isVolatile(numRowsHasResolved.modifiers))
+        assertThat(numRowsHasResolved.variables[0].id.name).isEqualTo "hasResolvedDefaultValue"
+        MethodDeclaration numRowsDefaultGetter = numRows.members[4] as MethodDeclaration
         assertThat(isPSF(numRowsDefaultGetter.modifiers))
         assertThat(numRowsDefaultGetter.name).isEqualTo "defaultValue"
         assertThat(numRowsDefaultGetter.type.toString()).isEqualTo "int"
-        assertThat(numRowsDefaultGetter.body.stmts).hasSize(1)
-        assertThat(numRowsDefaultGetter.body.stmts[0]).isInstanceOf ReturnStmt
-        assertThat(numRowsDefaultGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getInteger(defaultResId)"
-        MethodDeclaration numRowsPrefGetter = numRows.members[3] as MethodDeclaration
+        assertThat(numRowsDefaultGetter.body.stmts).hasSize(2)
+        assertThat(numRowsDefaultGetter.body.stmts[0]).isInstanceOf IfStmt
+        assertThat(numRowsDefaultGetter.body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = RESOURCES.getInteger(defaultResId);"
+        assertThat(numRowsDefaultGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(numRowsDefaultGetter.body.stmts[1].expr.toString()).isEqualTo "resolvedDefaultValue"
+        MethodDeclaration numRowsClear = numRows.members[8] as MethodDeclaration
+        assertThat(numRowsClear.name).isEqualTo "clearResolvedDefault"
+        assertThat(numRowsClear.body.stmts[0].toString()).isEqualTo "hasResolvedDefaultValue = false;"
+        MethodDeclaration numRowsPrefGetter = numRows.members[5] as MethodDeclaration
         assertThat(isPSF(numRowsPrefGetter.modifiers))
         assertThat(numRowsPrefGetter.name).isEqualTo "get"
         assertThat(numRowsPrefGetter.type.toString()).isEqualTo "int"
         assertThat(numRowsPrefGetter.body.stmts).hasSize(1)
         assertThat(numRowsPrefGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(numRowsPrefGetter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.getInt(key, defaultValue())"
-        MethodDeclaration numRowsPrefPutter = numRows.members[4] as MethodDeclaration
+        MethodDeclaration numRowsPrefPutter = numRows.members[6] as MethodDeclaration
         assertThat(isPSF(numRowsPrefPutter.modifiers))
         assertThat(numRowsPrefPutter.name).isEqualTo "put"
         assertThat(numRowsPrefPutter.type.toString()).isEqualTo "SharedPreferences.Editor"
@@ -362,7 +474,7 @@ class PsyncTest {
         assertThat(numRowsPrefPutter.body.stmts).hasSize(1)
         assertThat(numRowsPrefPutter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(numRowsPrefPutter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.edit().putInt(key, val)"
-        MethodDeclaration numRowsRxGetter = numRows.members[5] as MethodDeclaration
+        MethodDeclaration numRowsRxGetter = numRows.members[7] as MethodDeclaration
         assertThat(isPSF(numRowsRxGetter.modifiers))
         assertThat(numRowsRxGetter.name).isEqualTo "rx"
         assertThat(numRowsRxGetter.type.toString()).isEqualTo "Preference<Integer>"
@@ -384,7 +496,7 @@ class PsyncTest {
         ClassOrInterfaceDeclaration primaryColor = typeMembers[classCount++] as ClassOrInterfaceDeclaration
         assertThat(isPSF(primaryColor.modifiers))
         assertThat(primaryColor.name).isEqualTo "primaryColor"
-        assertThat(primaryColor.members).hasSize 6
+        assertThat(primaryColor.members).hasSize 9
         FieldDeclaration primaryColorKey = primaryColor.members[0] as FieldDeclaration
         assertThat(isPSF(primaryColorKey.modifiers))
         assertThat(primaryColorKey.type.toString()).isEqualTo "String"
@@ -395,21 +507,33 @@ class PsyncTest {
         assertThat(primaryColorDefault.type.toString()).isEqualTo "int"
         assertThat(primaryColorDefault.variables[0].id.name).isEqualTo "defaultResId"
         assertThat(primaryColorDefault.variables[0].init.toString()).isEqualTo "R.color.flipboard_red"
-        MethodDeclaration primaryColorDefaultGetter = primaryColor.members[2] as MethodDeclaration
+        FieldDeclaration primaryColorResolved = primaryColor.members[2] as FieldDeclaration
+        assertThat(Modifier.isPrivate(primaryColorResolved.modifiers))
+        assertThat(primaryColorResolved.type.toString()).isEqualTo "int"
+        assertThat(primaryColorResolved.variables[0].id.name).isEqualTo "resolvedDefaultValue"
+        FieldDeclaration primaryColorHasResolved = primaryColor.members[3] as FieldDeclaration
+        assertThat(Modifier.isVolatile(primaryColorHasResolved.modifiers))
+        assertThat(primaryColorHasResolved.variables[0].id.name).isEqualTo "hasResolvedDefaultValue"
+        MethodDeclaration primaryColorDefaultGetter = primaryColor.members[4] as MethodDeclaration
         assertThat(isPSF(primaryColorDefaultGetter.modifiers))
         assertThat(primaryColorDefaultGetter.name).isEqualTo "defaultValue"
         assertThat(primaryColorDefaultGetter.type.toString()).isEqualTo "int"
-        assertThat(primaryColorDefaultGetter.body.stmts).hasSize(1)
-        assertThat(primaryColorDefaultGetter.body.stmts[0]).isInstanceOf ReturnStmt
-        assertThat(primaryColorDefaultGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getColor(defaultResId)"
-        MethodDeclaration primaryColorPrefGetter = primaryColor.members[3] as MethodDeclaration
+        assertThat(primaryColorDefaultGetter.body.stmts).hasSize(2)
+        assertThat(primaryColorDefaultGetter.body.stmts[0]).isInstanceOf IfStmt
+        assertThat(primaryColorDefaultGetter.body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = RESOURCES.getColor(defaultResId);"
+        assertThat(primaryColorDefaultGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(primaryColorDefaultGetter.body.stmts[1].expr.toString()).isEqualTo "resolvedDefaultValue"
+        MethodDeclaration primaryColorClear = primaryColor.members[8] as MethodDeclaration
+        assertThat(primaryColorClear.name).isEqualTo "clearResolvedDefault"
+        assertThat(primaryColorClear.body.stmts[0].toString()).isEqualTo "hasResolvedDefaultValue = false;"
+        MethodDeclaration primaryColorPrefGetter = primaryColor.members[5] as MethodDeclaration
         assertThat(isPSF(primaryColorPrefGetter.modifiers))
         assertThat(primaryColorPrefGetter.name).isEqualTo "get"
         assertThat(primaryColorPrefGetter.type.toString()).isEqualTo "int"
         assertThat(primaryColorPrefGetter.body.stmts).hasSize(1)
         assertThat(primaryColorPrefGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(primaryColorPrefGetter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.getInt(key, defaultValue())"
-        MethodDeclaration primaryColorPrefPutter = primaryColor.members[4] as MethodDeclaration
+        MethodDeclaration primaryColorPrefPutter = primaryColor.members[6] as MethodDeclaration
         assertThat(isPSF(primaryColorPrefPutter.modifiers))
         assertThat(primaryColorPrefPutter.name).isEqualTo "put"
         assertThat(primaryColorPrefPutter.type.toString()).isEqualTo "SharedPreferences.Editor"
@@ -420,7 +544,7 @@ class PsyncTest {
         assertThat(primaryColorPrefPutter.body.stmts).hasSize(1)
         assertThat(primaryColorPrefPutter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(primaryColorPrefPutter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.edit().putInt(key, val)"
-        MethodDeclaration primaryColorRxGetter = primaryColor.members[5] as MethodDeclaration
+        MethodDeclaration primaryColorRxGetter = primaryColor.members[7] as MethodDeclaration
         assertThat(isPSF(primaryColorRxGetter.modifiers))
         assertThat(primaryColorRxGetter.name).isEqualTo "rx"
         assertThat(primaryColorRxGetter.type.toString()).isEqualTo "Preference<Integer>"
@@ -473,7 +597,7 @@ class PsyncTest {
         ClassOrInterfaceDeclaration requestTypes = typeMembers[classCount++] as ClassOrInterfaceDeclaration
         assertThat(isPSF(requestTypes.modifiers))
         assertThat(requestTypes.name).isEqualTo "requestTypes"
-        assertThat(requestTypes.members).hasSize 8
+        assertThat(requestTypes.members).hasSize 11
         FieldDeclaration requestTypesKey = requestTypes.members[0] as FieldDeclaration
         assertThat(isPSF(requestTypesKey.modifiers))
         assertThat(requestTypesKey.type.toString()).isEqualTo "String"
@@ -484,21 +608,33 @@ class PsyncTest {
         assertThat(requestTypesDefault.type.toString()).isEqualTo "int"
         assertThat(requestTypesDefault.variables[0].id.name).isEqualTo "defaultResId"
         assertThat(requestTypesDefault.variables[0].init.toString()).isEqualTo "R.string.default_request_type"
-        MethodDeclaration requestTypesDefaultGetter = requestTypes.members[2] as MethodDeclaration
+        FieldDeclaration requestTypesResolved = requestTypes.members[2] as FieldDeclaration
+        assertThat(Modifier.isPrivate(requestTypesResolved.modifiers))
+        assertThat(requestTypesResolved.type.toString()).isEqualTo "String"
+        assertThat(requestTypesResolved.variables[0].id.name).isEqualTo "resolvedDefaultValue"
+        FieldDeclaration requestTypesHasResolved = requestTypes.members[3] as FieldDeclaration
+        assertThat(Modifier.isVolatile(requestTypesHasResolved.modifiers))
+        assertThat(requestTypesHasResolved.variables[0].id.name).isEqualTo "hasResolvedDefaultValue"
+        MethodDeclaration requestTypesDefaultGetter = requestTypes.members[4] as MethodDeclaration
         assertThat(isPSF(requestTypesDefaultGetter.modifiers))
         assertThat(requestTypesDefaultGetter.name).isEqualTo "defaultValue"
         assertThat(requestTypesDefaultGetter.type.toString()).isEqualTo "String"
-        assertThat(requestTypesDefaultGetter.body.stmts).hasSize(1)
-        assertThat(requestTypesDefaultGetter.body.stmts[0]).isInstanceOf ReturnStmt
-        assertThat(requestTypesDefaultGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getString(defaultResId)"
-        MethodDeclaration requestTypesPrefGetter = requestTypes.members[3] as MethodDeclaration
+        assertThat(requestTypesDefaultGetter.body.stmts).hasSize(2)
+        assertThat(requestTypesDefaultGetter.body.stmts[0]).isInstanceOf IfStmt
+        assertThat(requestTypesDefaultGetter.body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = RESOURCES.getString(defaultResId);"
+        assertThat(requestTypesDefaultGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(requestTypesDefaultGetter.body.stmts[1].expr.toString()).isEqualTo "resolvedDefaultValue"
+        MethodDeclaration requestTypesClear = requestTypes.members[10] as MethodDeclaration
+        assertThat(requestTypesClear.name).isEqualTo "clearResolvedDefault"
+        assertThat(requestTypesClear.body.stmts[0].toString()).isEqualTo "hasResolvedDefaultValue = false;"
+        MethodDeclaration requestTypesPrefGetter = requestTypes.members[5] as MethodDeclaration
         assertThat(isPSF(requestTypesPrefGetter.modifiers))
         assertThat(requestTypesPrefGetter.name).isEqualTo "get"
         assertThat(requestTypesPrefGetter.type.toString()).isEqualTo "String"
         assertThat(requestTypesPrefGetter.body.stmts).hasSize(1)
         assertThat(requestTypesPrefGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(requestTypesPrefGetter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.getString(key, defaultValue())"
-        MethodDeclaration requestTypesPrefPutter = requestTypes.members[4] as MethodDeclaration
+        MethodDeclaration requestTypesPrefPutter = requestTypes.members[6] as MethodDeclaration
         assertThat(isPSF(requestTypesPrefPutter.modifiers))
         assertThat(requestTypesPrefPutter.name).isEqualTo "put"
         assertThat(requestTypesPrefPutter.type.toString()).isEqualTo "SharedPreferences.Editor"
@@ -509,21 +645,21 @@ class PsyncTest {
         assertThat(requestTypesPrefPutter.body.stmts).hasSize(1)
         assertThat(requestTypesPrefPutter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(requestTypesPrefPutter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.edit().putString(key, val)"
-        MethodDeclaration requestTypesRxGetter = requestTypes.members[5] as MethodDeclaration
+        MethodDeclaration requestTypesRxGetter = requestTypes.members[7] as MethodDeclaration
         assertThat(isPSF(requestTypesRxGetter.modifiers))
         assertThat(requestTypesRxGetter.name).isEqualTo "rx"
         assertThat(requestTypesRxGetter.type.toString()).isEqualTo "Preference<String>"
         assertThat(requestTypesRxGetter.body.stmts).hasSize(1)
         assertThat(requestTypesRxGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(requestTypesRxGetter.body.stmts[0].expr.toString()).isEqualTo "RX_PREFERENCES.getString(key)"
-        MethodDeclaration entriesGetter = requestTypes.members[6] as MethodDeclaration
+        MethodDeclaration entriesGetter = requestTypes.members[8] as MethodDeclaration
         assertThat(isPSF(entriesGetter.modifiers))
         assertThat(entriesGetter.name).isEqualTo "entries"
         assertThat(entriesGetter.type.toString()).isEqualTo "CharSequence[]"
         assertThat(entriesGetter.body.stmts).hasSize(1)
         assertThat(entriesGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(entriesGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getTextArray(R.array.request_types_entries)"
-        MethodDeclaration entryValuesGetter = requestTypes.members[7] as MethodDeclaration
+        MethodDeclaration entryValuesGetter = requestTypes.members[9] as MethodDeclaration
         assertThat(isPSF(entryValuesGetter.modifiers))
         assertThat(entryValuesGetter.name).isEqualTo "entryValues"
         assertThat(entryValuesGetter.type.toString()).isEqualTo "CharSequence[]"
@@ -534,7 +670,7 @@ class PsyncTest {
         ClassOrInterfaceDeclaration serverUrl = typeMembers[classCount++] as ClassOrInterfaceDeclaration
         assertThat(isPSF(serverUrl.modifiers))
         assertThat(serverUrl.name).isEqualTo "serverUrl"
-        assertThat(serverUrl.members).hasSize 6
+        assertThat(serverUrl.members).hasSize 9
         FieldDeclaration serverUrlKey = serverUrl.members[0] as FieldDeclaration
         assertThat(isPSF(serverUrlKey.modifiers))
         assertThat(serverUrlKey.type.toString()).isEqualTo "String"
@@ -545,21 +681,33 @@ class PsyncTest {
         assertThat(serverUrlDefault.type.toString()).isEqualTo "int"
         assertThat(serverUrlDefault.variables[0].id.name).isEqualTo "defaultResId"
         assertThat(serverUrlDefault.variables[0].init.toString()).isEqualTo "R.string.server_url"
-        MethodDeclaration serverDefaultGetter = serverUrl.members[2] as MethodDeclaration
+        FieldDeclaration serverUrlResolved = serverUrl.members[2] as FieldDeclaration
+        assertThat(Modifier.isPrivate(serverUrlResolved.modifiers))
+        assertThat(serverUrlResolved.type.toString()).isEqualTo "String"
+        assertThat(serverUrlResolved.variables[0].id.name).isEqualTo "resolvedDefaultValue"
+        FieldDeclaration serverUrlHasResolved = serverUrl.members[3] as FieldDeclaration
+        assertThat(Modifier.isVolatile(serverUrlHasResolved.modifiers))
+        assertThat(serverUrlHasResolved.variables[0].id.name).isEqualTo "hasResolvedDefaultValue"
+        MethodDeclaration serverDefaultGetter = serverUrl.members[4] as MethodDeclaration
         assertThat(isPSF(serverDefaultGetter.modifiers))
         assertThat(serverDefaultGetter.name).isEqualTo "defaultValue"
         assertThat(serverDefaultGetter.type.toString()).isEqualTo "String"
-        assertThat(serverDefaultGetter.body.stmts).hasSize(1)
-        assertThat(serverDefaultGetter.body.stmts[0]).isInstanceOf ReturnStmt
-        assertThat(serverDefaultGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getString(defaultResId)"
-        MethodDeclaration serverUrlPrefGetter = serverUrl.members[3] as MethodDeclaration
+        assertThat(serverDefaultGetter.body.stmts).hasSize(2)
+        assertThat(serverDefaultGetter.body.stmts[0]).isInstanceOf IfStmt
+        assertThat(serverDefaultGetter.body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = RESOURCES.getString(defaultResId);"
+        assertThat(serverDefaultGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(serverDefaultGetter.body.stmts[1].expr.toString()).isEqualTo "resolvedDefaultValue"
+        MethodDeclaration serverUrlClear = serverUrl.members[8] as MethodDeclaration
+        assertThat(serverUrlClear.name).isEqualTo "clearResolvedDefault"
+        assertThat(serverUrlClear.body.stmts[0].toString()).isEqualTo "hasResolvedDefaultValue = false;"
+        MethodDeclaration serverUrlPrefGetter = serverUrl.members[5] as MethodDeclaration
         assertThat(isPSF(serverUrlPrefGetter.modifiers))
         assertThat(serverUrlPrefGetter.name).isEqualTo "get"
         assertThat(serverUrlPrefGetter.type.toString()).isEqualTo "String"
         assertThat(serverUrlPrefGetter.body.stmts).hasSize(1)
         assertThat(serverUrlPrefGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(serverUrlPrefGetter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.getString(key, defaultValue())"
-        MethodDeclaration serverUrlPrefPutter = serverUrl.members[4] as MethodDeclaration
+        MethodDeclaration serverUrlPrefPutter = serverUrl.members[6] as MethodDeclaration
         assertThat(isPSF(serverUrlPrefPutter.modifiers))
         assertThat(serverUrlPrefPutter.name).isEqualTo "put"
         assertThat(serverUrlPrefPutter.type.toString()).isEqualTo "SharedPreferences.Editor"
@@ -570,7 +718,7 @@ class PsyncTest {
         assertThat(serverUrlPrefPutter.body.stmts).hasSize(1)
         assertThat(serverUrlPrefPutter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(serverUrlPrefPutter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.edit().putString(key, val)"
-        MethodDeclaration serverUrlRxGetter = serverUrl.members[5] as MethodDeclaration
+        MethodDeclaration serverUrlRxGetter = serverUrl.members[7] as MethodDeclaration
         assertThat(isPSF(serverUrlRxGetter.modifiers))
         assertThat(serverUrlRxGetter.name).isEqualTo "rx"
         assertThat(serverUrlRxGetter.type.toString()).isEqualTo "Preference<String>"
@@ -624,7 +772,7 @@ class PsyncTest {
         ClassOrInterfaceDeclaration useInputs = typeMembers[classCount++] as ClassOrInterfaceDeclaration
         assertThat(isPSF(useInputs.modifiers))
         assertThat(useInputs.name).isEqualTo "useInputs"
-        assertThat(useInputs.members).hasSize 6
+        assertThat(useInputs.members).hasSize 9
         FieldDeclaration useInputsKey = useInputs.members[0] as FieldDeclaration
         assertThat(isPSF(useInputsKey.modifiers))
         assertThat(useInputsKey.type.toString()).isEqualTo "String"
@@ -635,21 +783,33 @@ class PsyncTest {
         assertThat(useInputsDefault.type.toString()).isEqualTo "int"
         assertThat(useInputsDefault.variables[0].id.name).isEqualTo "defaultResId"
         assertThat(useInputsDefault.variables[0].init.toString()).isEqualTo "R.bool.use_inputs"
-        MethodDeclaration useInputsDefaultGetter = useInputs.members[2] as MethodDeclaration
+        FieldDeclaration useInputsResolved = useInputs.members[2] as FieldDeclaration
+        assertThat(Modifier.isPrivate(useInputsResolved.modifiers))
+        assertThat(useInputsResolved.type.toString()).isEqualTo "boolean"
+        assertThat(useInputsResolved.variables[0].id.name).isEqualTo "resolvedDefaultValue"
+        FieldDeclaration useInputsHasResolved = useInputs.members[3] as FieldDeclaration
+        assertThat(Modifier.isVolatile(useInputsHasResolved.modifiers))
+        assertThat(useInputsHasResolved.variables[0].id.name).isEqualTo "hasResolvedDefaultValue"
+        MethodDeclaration useInputsDefaultGetter = useInputs.members[4] as MethodDeclaration
         assertThat(isPSF(useInputsDefaultGetter.modifiers))
         assertThat(useInputsDefaultGetter.name).isEqualTo "defaultValue"
         assertThat(useInputsDefaultGetter.type.toString()).isEqualTo "boolean"
-        assertThat(useInputsDefaultGetter.body.stmts).hasSize(1)
-        assertThat(useInputsDefaultGetter.body.stmts[0]).isInstanceOf ReturnStmt
-        assertThat(useInputsDefaultGetter.body.stmts[0].expr.toString()).isEqualTo "RESOURCES.getBoolean(defaultResId)"
-        MethodDeclaration useInputsPrefGetter = useInputs.members[3] as MethodDeclaration
+        assertThat(useInputsDefaultGetter.body.stmts).hasSize(2)
+        assertThat(useInputsDefaultGetter.body.stmts[0]).isInstanceOf IfStmt
+        assertThat(useInputsDefaultGetter.body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = RESOURCES.getBoolean(defaultResId);"
+        assertThat(useInputsDefaultGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(useInputsDefaultGetter.body.stmts[1].expr.toString()).isEqualTo "resolvedDefaultValue"
+        MethodDeclaration useInputsClear = useInputs.members[8] as MethodDeclaration
+        assertThat(useInputsClear.name).isEqualTo "clearResolvedDefault"
+        assertThat(useInputsClear.body.stmts[0].toString()).isEqualTo "hasResolvedDefaultValue = false;"
+        MethodDeclaration useInputsPrefGetter = useInputs.members[5] as MethodDeclaration
         assertThat(isPSF(useInputsPrefGetter.modifiers))
         assertThat(useInputsPrefGetter.name).isEqualTo "get"
         assertThat(useInputsPrefGetter.type.toString()).isEqualTo "boolean"
         assertThat(useInputsPrefGetter.body.stmts).hasSize(1)
         assertThat(useInputsPrefGetter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(useInputsPrefGetter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.getBoolean(key, defaultValue())"
-        MethodDeclaration useInputsPrefPutter = useInputs.members[4] as MethodDeclaration
+        MethodDeclaration useInputsPrefPutter = useInputs.members[6] as MethodDeclaration
         assertThat(isPSF(useInputsPrefPutter.modifiers))
         assertThat(useInputsPrefPutter.name).isEqualTo "put"
         assertThat(useInputsPrefPutter.type.toString()).isEqualTo "SharedPreferences.Editor"
@@ -660,7 +820,7 @@ class PsyncTest {
         assertThat(useInputsPrefPutter.body.stmts).hasSize(1)
         assertThat(useInputsPrefPutter.body.stmts[0]).isInstanceOf ReturnStmt
         assertThat(useInputsPrefPutter.body.stmts[0].expr.toString()).isEqualTo "PREFERENCES.edit().putBoolean(key, val)"
-        MethodDeclaration useInputsRxGetter = useInputs.members[5] as MethodDeclaration
+        MethodDeclaration useInputsRxGetter = useInputs.members[7] as MethodDeclaration
         assertThat(isPSF(useInputsRxGetter.modifiers))
         assertThat(useInputsRxGetter.name).isEqualTo "rx"
         assertThat(useInputsRxGetter.type.toString()).isEqualTo "Preference<Boolean>"
@@ -672,6 +832,1172 @@ class PsyncTest {
         outputDir.deleteDir()
     }
 
+    @Test
+    public void testPrefEntryCache() {
+        File prefsFile = new File("$RESOURCE_PATH/prefs.xml")
+        File cacheFile = new File("$OUT_PATH/cache/prefEntries.cache")
+        String hash = PrefEntryCache.hash(prefsFile)
+
+        PrefEntryCache cache = new PrefEntryCache()
+        assertThat(cache.isCurrent(prefsFile, hash)).isFalse()
+        cache.put(prefsFile, hash, PrefEntryParser.getPrefEntriesFromFile(prefsFile))
+        assertThat(cache.isCurrent(prefsFile, hash)).isTrue()
+        assertThat(cache.isCurrent(prefsFile, "stale")).isFalse()
+
+        List<PrefEntry> expected = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(prefsFile)).toBlocking().first()
+        List<PrefEntry> merged = cache.merge(Collections.singletonList(prefsFile))
+        assertThat(merged.collect {it.toString()}).isEqualTo expected.collect {it.toString()}
+        assertThat(cache.updateSignature(merged, "com.flipboard.psync.test:P")).isTrue()
+        cache.save(cacheFile)
+
+        PrefEntryCache loaded = PrefEntryCache.load(cacheFile)
+        assertThat(loaded.isCurrent(prefsFile, hash)).isTrue()
+        assertThat(loaded.merge(Collections.singletonList(prefsFile)).collect {it.toString()}).isEqualTo expected.collect {it.toString()}
+        assertThat(loaded.updateSignature(merged, "com.flipboard.psync.test:P")).isFalse()
+        // Same entries generated differently
+        assertThat(loaded.updateSignature(merged, "com.flipboard.psync.test:Prefs")).isTrue()
+
+        // Files no longer in the sources get dropped
+        assertThat(loaded.merge(Collections.emptyList())).isEmpty()
+        assertThat(loaded.contains(prefsFile)).isFalse()
+
+        // Garbage falls back to an empty cache
+        cacheFile.text = "banana"
+        assertThat(PrefEntryCache.load(cacheFile).contains(prefsFile)).isFalse()
+    }
+
+    @Test
+    public void testIncrementalGenerationSkipsUnchangedEntries() {
+        Project project = TestHelper.evaluatableAppProject()
+        PSyncPlugin plugin = new PSyncPlugin()
+        plugin.apply(project)
+        project.evaluate()
+
+        project.android.applicationVariants.all { ApplicationVariant variant ->
+            PSyncTask syncTask = project.tasks."generatePrefKeysFor${variant.name.capitalize()}" as PSyncTask
+            File xmlFile = syncTask.getSource().singleFile
+
+            syncTask.generate(TestHelper.getTaskInputs())
+            File generatedFile = syncTask.generatedFile
+            assertThat(generatedFile.exists()).isTrue()
+            assertThat(generatedFile.setLastModified(1000L)).isTrue()
+
+            // Nothing changed
+            syncTask.generate(TestHelper.getIncrementalTaskInputs([], []))
+            assertThat(generatedFile.lastModified()).isEqualTo 1000L
+
+            // Touched, but same contents
+            syncTask.generate(TestHelper.getIncrementalTaskInputs([xmlFile], []))
+            assertThat(generatedFile.lastModified()).isEqualTo 1000L
+
+            // Lost the generated file
+            generatedFile.delete()
+            syncTask.generate(TestHelper.getIncrementalTaskInputs([], []))
+            assertThat(generatedFile.exists()).isTrue()
+        }
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    public void testGenerationReport() {
+        Project project = TestHelper.evaluatableAppProject()
+        PSyncPlugin plugin = new PSyncPlugin()
+        plugin.apply(project)
+        project.evaluate()
+
+        PSyncTask syncTask = project.tasks.generatePrefKeysForDebug as PSyncTask
+        assertThat(syncTask.reportFile).isEqualTo new File(project.buildDir, "reports/psync/debug.json")
+
+        syncTask.generate(TestHelper.getTaskInputs())
+        Map report = new JsonSlurper().parse(syncTask.reportFile) as Map
+        assertThat(report.formatVersion).isEqualTo GenerationReport.FORMAT_VERSION
+        assertThat(report.task).isEqualTo syncTask.path
+        assertThat(report.durationsMs.keySet()).containsExactly("scan", "parse", "merge", "resolve", "generate", "write", "compile", "total").inOrder()
+        assertThat(report.files.sources).isEqualTo 1
+        assertThat(report.files.parsed).isEqualTo 1
+        assertThat(report.entries).isEqualTo syncTask.lastReport.entries
+        assertThat(report.entries as int).isGreaterThan 0
+        assertThat(report.output.writtenClasses).isEqualTo 1
+        assertThat(report.output.bytesWritten as long).isEqualTo syncTask.generatedFile.length()
+
+        // Nothing changed, nothing parsed or written
+        syncTask.generate(TestHelper.getIncrementalTaskInputs([], []))
+        report = new JsonSlurper().parse(syncTask.reportFile) as Map
+        assertThat(report.incremental).isEqualTo true
+        assertThat(report.files.parsed).isEqualTo 0
+        assertThat(report.files.skipped).isEqualTo 1
+        assertThat(report.output.entriesChanged).isEqualTo false
+        assertThat(report.output.writtenClasses).isEqualTo 0
+        assertThat(report.durationsMs.generate as double).isEqualTo 0d
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    void testResourceValues() {
+        File resDir = new File("$OUT_PATH/res")
+        new File(resDir, "values").mkdirs()
+        new File(resDir, "values-fr").mkdirs()
+        File values = new File(resDir, "values/values.xml")
+        values.text = """<?xml version="1.0" encoding="utf-8"?>
+<resources>
+    <string name="plain">Hello world 100%</string>
+    <string name="spaced">Hello  world</string>
+    <string name="escaped">Don\\'t</string>
+    <string name="styled">Hello <b>world</b></string>
+    <string name="reference">@string/plain</string>
+    <string name="translated">Hello</string>
+    <bool name="flag"> true </bool>
+    <integer name="count">42</integer>
+    <item type="integer" name="hex">0x10</item>
+    <integer name="invalid">twelve</integer>
+</resources>
+"""
+        File french = new File(resDir, "values-fr/values.xml")
+        french.text = """<resources><string name="translated">Bonjour</string></resources>"""
+
+        Set<String> wanted = ["plain", "spaced", "escaped", "styled", "reference", "translated"].collect { "string/$it" } as Set
+        wanted.addAll(["bool/flag", "integer/count", "integer/hex", "integer/invalid", "integer/missing"])
+        ResourceValues resourceValues = ResourceValues.parse([values, french], wanted)
+        assertThat(resourceValues.resolve("string", "plain")).isEqualTo "Hello world 100%"
+        assertThat(resourceValues.resolve("bool", "flag")).isEqualTo true
+        assertThat(resourceValues.resolve("integer", "count")).isEqualTo 42
+        assertThat(resourceValues.resolve("integer", "hex")).isEqualTo 16
+        // Anything aapt would have to process, or that varies by configuration, stays at runtime
+        ["spaced", "escaped", "styled", "reference", "translated"].each { String name ->
+            assertThat(resourceValues.resolve("string", name)).isNull()
+        }
+        assertThat(resourceValues.resolve("integer", "invalid")).isNull()
+        assertThat(resourceValues.resolve("integer", "missing")).isNull()
+
+        PrefEntry entry = PrefEntryParser.generateResourcePrefEntry("key", "@integer/count")
+        List<PrefEntry> inlined = resourceValues.inline([entry])
+        assertThat(inlined[0].inlinedDefaultValue).isEqualTo 42
+        // The original may be shared through the caches
+        assertThat(entry.inlinedDefaultValue).isNull()
+
+        resDir.deleteDir()
+    }
+
+    @Test
+    public void testGenerationWithInlinedResourceDefaults() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        entries = entries.collect { PrefEntry entry ->
+            if (entry.key == "number_of_rows") {
+                entry = entry.copy()
+                entry.inlinedDefaultValue = 3
+            }
+            return entry
+        }
+        GenerationOptions options = GenerationOptions.create(false)
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        ClassOrInterfaceDeclaration numberOfRows = findType(pClass, "numberOfRows")
+        assertThat(findField(numberOfRows, "defaultResId").variables[0].init.toString()).isEqualTo "R.integer.num_rows"
+        assertThat(findMethod(numberOfRows, "defaultValue").body.stmts[0].toString()).isEqualTo "return 3;"
+        assertThat(findField(numberOfRows, "resolvedDefaultValue")).isNull()
+        assertThat(findMethod(numberOfRows, "clearResolvedDefault")).isNull()
+        assertThat(findMethod(pClass, "clearResolvedDefaults").toString()).doesNotContain "numberOfRows"
+        // Still resolved at runtime
+        assertThat(findMethod(findType(pClass, "primaryColor"), "defaultValue").toString()).contains "RESOURCES.getColor(defaultResId)"
+
+        options.flat = true
+        source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findField(pClass, "DEFAULT_RES_ID_NUMBER_OF_ROWS")).isNotNull()
+        assertThat(findMethod(pClass, "defaultNumberOfRows").body.stmts[0].toString()).isEqualTo "return 3;"
+        assertThat(findField(pClass, "resolvedDefaultNumberOfRows")).isNull()
+    }
+
+    @Test
+    public void testPluginInlinesResourceDefaults() {
+        // Off by default, and then the values files aren't inputs either
+        Project project = TestHelper.evaluatableAppProject()
+        new PSyncPlugin().apply(project)
+        project.evaluate()
+        PSyncTask syncTask = project.tasks.generatePrefKeysForDebug as PSyncTask
+        assertThat(syncTask.inlineResourceDefaults).isFalse()
+        assertThat(syncTask.valuesFiles).isNull()
+        project.buildDir.deleteDir()
+
+        project = TestHelper.evaluatableAppProject()
+        new PSyncPlugin().apply(project)
+        project.psync {
+            inlineResourceDefaults = true
+        }
+        project.evaluate()
+
+        syncTask = project.tasks.generatePrefKeysForDebug as PSyncTask
+        assertThat(syncTask.inlineResourceDefaults).isTrue()
+        assertThat(syncTask.valuesFiles.files.collect { it.parentFile.name }).containsExactly("values", "values-land")
+
+        syncTask.generate(TestHelper.getTaskInputs())
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(syncTask.generatedFile).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findMethod(findType(pClass, "serverUrl"), "defaultValue").body.stmts[0].toString()).isEqualTo "return \"https://flipboard.com\";"
+        assertThat(findMethod(findType(pClass, "useInputs"), "defaultValue").body.stmts[0].toString()).isEqualTo "return true;"
+        // Overridden in values-land
+        assertThat(findMethod(findType(pClass, "numberOfRows"), "defaultValue").toString()).contains "RESOURCES.getInteger(defaultResId)"
+        assertThat(syncTask.lastReport.inlinedDefaults).isEqualTo 2
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    public void testBytecodeWorksLikeCompiledSource() {
+        List<File> classpath = System.getProperty("java.class.path").split(File.pathSeparator).collect { new File(it) }
+        // A copy, since it gets edited further down
+        File prefsFile = new File("$OUT_PATH/bytecode/prefs.xml")
+        prefsFile.parentFile.mkdirs()
+        prefsFile.text = new File("$RESOURCE_PATH/prefs.xml").text
+
+        PSyncWorkParameters parameters = new PSyncWorkParameters()
+        parameters.taskPath = ":bytecode"
+        parameters.sources = [prefsFile]
+        parameters.packageName = "com.flipboard.psync.test"
+        parameters.className = "P"
+        parameters.options = GenerationOptions.create(false)
+        parameters.options.cacheValues = true
+        parameters.options.generateObservers = true
+        parameters.outputDir = new File("$OUT_PATH/bytecode/source")
+        parameters.cacheFile = new File("$OUT_PATH/bytecode/cache")
+        parameters.classesDir = new File("$OUT_PATH/bytecode/classes")
+        parameters.compileClasspath = classpath
+        parameters.sourcesJar = new File("$OUT_PATH/bytecode/sources.jar")
+
+        // P refers to the app's R, which the variant generates as a source before compiling
+        File rDir = new File("$OUT_PATH/bytecode/r")
+        File rFile = new File(rDir, "com/flipboard/psync/test/R.java")
+        rFile.parentFile.mkdirs()
+        rFile.text = """\
+package com.flipboard.psync.test;
+
+public final class R {
+    public static final class array {
+        public static final int request_types_entries = 0x7f010000;
+        public static final int request_types_entry_values = 0x7f010001;
+    }
+    public static final class bool {
+        public static final int use_inputs = 0x7f020000;
+    }
+    public static final class color {
+        public static final int flipboard_red = 0x7f030000;
+    }
+    public static final class dimen {
+        public static final int should_also_not_show = 0x7f040000;
+    }
+    public static final class integer {
+        public static final int num_rows = 0x7f050000;
+    }
+    public static final class string {
+        public static final int default_request_type = 0x7f060000;
+        public static final int pref_cat_server = 0x7f060001;
+        public static final int server_url = 0x7f060002;
+    }
+}
+"""
+        parameters.sourcepath = [rDir]
+        PSyncWorkAction action = new PSyncWorkAction(parameters)
+        action.run()
+        assertThat(action.report.compiledClasses).isGreaterThan 1
+        assertThat(new JarFile(parameters.sourcesJar).entries().toList()*.name).containsExactly "com/flipboard/psync/test/P.java"
+        // R is only compiled against, the variant's javac compiles it
+        assertThat(new File(parameters.classesDir, "com/flipboard/psync/test/R.class").exists()).isFalse()
+
+        // The compiled P works without any of the generated source around
+        File packageClassesDir = new File(parameters.classesDir, "com/flipboard/psync/test")
+        Closure<Class<?>> loadBlock = { String block ->
+            new URLClassLoader([parameters.classesDir.toURI().toURL()] as URL[], getClass().classLoader).loadClass("com.flipboard.psync.test.P\$$block")
+        }
+        assertThat(loadBlock("showImages").getField("key").get(null)).isEqualTo "show_images"
+        assertThat(loadBlock("showImages").getMethod("defaultValue").invoke(null)).isEqualTo true
+        assertThat(loadBlock("numberOfColumns").getMethod("defaultValue").invoke(null)).isEqualTo 3
+        assertThat(loadBlock("numberOfColumns").getMethod("get").returnType).isEqualTo int
+        // Resource ids come from the R it was compiled against
+        assertThat(loadBlock("numberOfRows").getField("defaultResId").get(null)).isEqualTo 0x7f050000
+        assertThat(loadBlock("serverUrl").getField("defaultResId").get(null)).isEqualTo 0x7f060002
+        assertThat(loadBlock("useInputs").getField("defaultResId").get(null)).isEqualTo 0x7f020000
+
+        // Nothing changed, nothing to compile
+        parameters.incremental = true
+        action = new PSyncWorkAction(parameters)
+        action.run()
+        assertThat(action.report.compiledClasses).isEqualTo 0
+
+        // R's ids are inlined into P, so a changed R means compiling again
+        parameters.compileInputsChanged = true
+        action = new PSyncWorkAction(parameters)
+        action.run()
+        assertThat(action.report.compiledClasses).isGreaterThan 1
+
+        // Dropping a preference recompiles, and its class doesn't linger
+        assertThat(new File(packageClassesDir, "P\$showImages.class").exists()).isTrue()
+        prefsFile.text = prefsFile.text.replaceAll(/(?s)<CheckBoxPreference\s+android:key="show_images".*?\/>/, "")
+        parameters.compileInputsChanged = false
+        parameters.outOfDate = [prefsFile]
+        action = new PSyncWorkAction(parameters)
+        action.run()
+        assertThat(action.report.compiledClasses).isGreaterThan 1
+        assertThat(new File(packageClassesDir, "P\$showImages.class").exists()).isFalse()
+        assertThat(new File(packageClassesDir, "P\$numberOfColumns.class").exists()).isTrue()
+        assertThat(loadBlock("numberOfColumns").getMethod("defaultValue").invoke(null)).isEqualTo 3
+
+        new File("$OUT_PATH/bytecode").deleteDir()
+    }
+
+    @Test
+    public void testPluginHandsBytecodeToVariant() {
+        Project project = TestHelper.evaluatableAppProject()
+        PSyncPlugin plugin = new PSyncPlugin()
+        plugin.apply(project)
+        project.psync {
+            generateBytecode = true
+        }
+        project.evaluate()
+
+        PSyncClassesTransform classesTransform = project.android.transforms.find { it instanceof PSyncClassesTransform } as PSyncClassesTransform
+        assertThat(classesTransform).isNotNull()
+        assertThat(classesTransform.inputTypes).containsExactly QualifiedContent.DefaultContentType.CLASSES
+
+        project.android.applicationVariants.all { ApplicationVariant variant ->
+            PSyncTask syncTask = project.tasks."generatePrefKeysFor${variant.name.capitalize()}" as PSyncTask
+            assertThat(syncTask.classesDir).isEqualTo new File(project.buildDir, "intermediates/classes/psync/${variant.dirName}")
+            assertThat(syncTask.sourcesJar.name).isEqualTo "${variant.dirName}.jar".toString()
+            assertThat(syncTask.bootClasspath.files).isNotEmpty()
+            // Compiled against the variant's R
+            ProcessAndroidResources processResources = variant.outputs.first().processResources
+            assertThat(syncTask.sourcepath.files).containsExactly processResources.sourceOutputDir
+            assertThat(syncTask.dependsOn).contains processResources
+            assertThat(variant.javaCompile.dependsOn).contains syncTask
+            assertThat(variant.javaCompile.classpath.files).contains syncTask.classesDir
+            assertThat(syncTask.compileClasspath.files).doesNotContain syncTask.classesDir
+            // Dexed from where they were compiled to, javac's output is left alone
+            Task transformTask = project.tasks."transformClassesWithPsyncClassesFor${variant.name.capitalize()}"
+            assertThat(transformTask.dependsOn).contains syncTask
+            assertThat(classesTransform.classesDirs[transformTask.path]).isEqualTo syncTask.classesDir
+
+            PSyncWorkParameters parameters = syncTask.createWorkParameters(TestHelper.getTaskInputs())
+            assertThat(parameters.classesDir).isEqualTo syncTask.classesDir
+            assertThat(parameters.compiledFile.name).isEqualTo "P.class"
+
+            // A changed classpath jar is an input change too, but there's nothing to parse in it
+            File prefsFile = syncTask.source.files.first()
+            parameters = syncTask.createWorkParameters(TestHelper.getIncrementalTaskInputs([new File(project.buildDir, "libs/dependency.jar"), prefsFile], []))
+            assertThat(parameters.outOfDate).containsExactly prefsFile
+            assertThat(parameters.compileInputsChanged).isTrue()
+        }
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    public void testWorkActionGeneratesWhatTheTaskDoes() {
+        Project project = TestHelper.evaluatableAppProject()
+        PSyncPlugin plugin = new PSyncPlugin()
+        plugin.apply(project)
+        project.evaluate()
+
+        PSyncTask syncTask = project.tasks.generatePrefKeysForDebug as PSyncTask
+        PSyncWorkParameters parameters = syncTask.createWorkParameters(TestHelper.getTaskInputs())
+        assertThat(parameters.sources).containsExactlyElementsIn syncTask.source.files
+        assertThat(parameters.options.toString()).isEqualTo syncTask.createGenerationOptions().toString()
+
+        PSyncWorkAction action = new PSyncWorkAction(parameters)
+        action.run()
+        assertThat(parameters.generatedFile).isEqualTo syncTask.generatedFile
+        assertThat(syncTask.generatedFile.exists()).isTrue()
+        assertThat(action.report.parsedFiles).isEqualTo 1
+        assertThat(action.warnings).isEmpty()
+
+        String generated = syncTask.generatedFile.text
+        syncTask.generate(TestHelper.getTaskInputs())
+        assertThat(syncTask.generatedFile.text).isEqualTo generated
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    public void testParseServiceParsesEachFileOnce() {
+        File prefsFile = new File("$RESOURCE_PATH/prefs.xml")
+        String hash = PrefEntryCache.hash(prefsFile)
+        PrefEntryParseService service = new PrefEntryParseService()
+
+        List<List<PrefEntry>> first = service.parse([prefsFile], [hash], 1)
+        List<List<PrefEntry>> second = service.parse([prefsFile], [hash], 1)
+        assertThat(first).hasSize 1
+        assertThat(second[0]).isSameAs first[0]
+        assertThat(service.parseCount).isEqualTo 1
+        assertThat(service.hitCount).isEqualTo 1
+
+        // Different contents have to be parsed again
+        service.parse([prefsFile], ["different"], 1)
+        assertThat(service.parseCount).isEqualTo 2
+
+        int generations = 0
+        Callable<Map<String, String>> generator = { generations++; return [P: "source"] } as Callable<Map<String, String>>
+        assertThat(service.generatedSources("key", generator)).containsEntry("P", "source")
+        assertThat(service.generatedSources("key", generator)).containsEntry("P", "source")
+        assertThat(generations).isEqualTo 1
+    }
+
+    @Test
+    public void testCliGeneratesFromArguments() {
+        File outputDir = new File("$OUT_PATH/cli")
+        File argumentFile = new File("$OUT_PATH/cli.args")
+        argumentFile.text = "--cache-values\n$RESOURCE_PATH/prefs.xml\n"
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        int exitCode = PSyncCli.run(["--package-name", "com.flipboard.psync.test", "--output-dir", outputDir.path, "--class-name", "Prefs", "@$argumentFile".toString()], new PrintStream(output, true), null)
+        assertThat(exitCode).isEqualTo PSyncCli.EXIT_OK
+
+        CompilationUnit cu = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/Prefs.java"))
+        ClassOrInterfaceDeclaration pClass = cu.getTypes()[0] as ClassOrInterfaceDeclaration
+        assertThat(findType(pClass, "numberOfRows")).isNotNull()
+        assertThat(findField(pClass, "CACHE_LOCK")).isNotNull()
+
+        // The cache only keeps it from regenerating as long as the options stay the same
+        File cacheFile = new File("$OUT_PATH/cli.cache")
+        List<String> cachedArgs = ["--package-name", "com.flipboard.psync.test", "--output-dir", outputDir.path, "--cache-file", cacheFile.path, "$RESOURCE_PATH/prefs.xml".toString()]
+        assertThat(PSyncCli.run(cachedArgs, new PrintStream(output, true), null)).isEqualTo PSyncCli.EXIT_OK
+        File generatedFile = new File(outputDir, "com/flipboard/psync/test/P.java")
+        assertThat(findType(JavaParser.parse(generatedFile).types[0] as ClassOrInterfaceDeclaration, "numberOfRows")).isNotNull()
+        assertThat(PSyncCli.run(cachedArgs + ["--flat"], new PrintStream(output, true), null)).isEqualTo PSyncCli.EXIT_OK
+        pClass = JavaParser.parse(generatedFile).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findType(pClass, "numberOfRows")).isNull()
+        assertThat(findMethod(pClass, "getNumberOfRows")).isNotNull()
+
+        output.reset()
+        exitCode = PSyncCli.run(["--output-dir", outputDir.path, "$RESOURCE_PATH/prefs.xml".toString()], new PrintStream(output, true), null)
+        assertThat(exitCode).isEqualTo PSyncCli.EXIT_USAGE
+        assertThat(output.toString()).startsWith "PSync: --package-name is required"
+
+        outputDir.deleteDir()
+        argumentFile.delete()
+        cacheFile.delete()
+    }
+
+    @Test
+    public void testCliPersistentWorkerReusesParsedFiles() {
+        String requests = [1, 2].collect { int id ->
+            JsonOutput.toJson([arguments: ["--package-name", "com.flipboard.psync.test", "--output-dir", "$OUT_PATH/worker$id".toString(), "$RESOURCE_PATH/prefs.xml".toString()], requestId: id])
+        }.join("\n") + "\n" + JsonOutput.toJson([arguments: ["--bogus"], requestId: 3]) + "\n"
+        ByteArrayOutputStream responses = new ByteArrayOutputStream()
+        PrefEntryParseService service = new PrefEntryParseService()
+        PSyncCli.runWorker(new ByteArrayInputStream(requests.getBytes("UTF-8")), new PrintStream(responses, true), service)
+
+        List<Map> parsed = responses.toString("UTF-8").readLines().collect { new JsonSlurper().parseText(it) as Map }
+        assertThat(parsed*.requestId).containsExactly(1, 2, 3).inOrder()
+        assertThat(parsed*.exitCode).containsExactly(PSyncCli.EXIT_OK, PSyncCli.EXIT_OK, PSyncCli.EXIT_USAGE).inOrder()
+        assertThat(parsed[2].output as String).startsWith "PSync: Unknown option --bogus"
+        assertThat(new File("$OUT_PATH/worker2/com/flipboard/psync/test/P.java").text).isEqualTo new File("$OUT_PATH/worker1/com/flipboard/psync/test/P.java").text
+        assertThat(service.parseCount).isEqualTo 1
+        assertThat(service.hitCount).isEqualTo 1
+
+        new File("$OUT_PATH/worker1").deleteDir()
+        new File("$OUT_PATH/worker2").deleteDir()
+    }
+
+    @Test
+    public void testCliPersistentWorkerSurvivesBadRequests() {
+        File brokenFile = new File("$OUT_PATH/broken_prefs.xml")
+        brokenFile.parentFile.mkdirs()
+        brokenFile.text = "<PreferenceScreen><CheckBoxPreference android:key="
+        List<String> arguments = ["--package-name", "com.flipboard.psync.test", "--output-dir", "$OUT_PATH/worker_bad".toString()]
+        String requests = [
+                "{not json",
+                JsonOutput.toJson([arguments: arguments + brokenFile.path, requestId: 2]),
+                JsonOutput.toJson([arguments: arguments + "$RESOURCE_PATH/prefs.xml".toString(), requestId: 3])
+        ].join("\n") + "\n"
+        ByteArrayOutputStream responses = new ByteArrayOutputStream()
+        PSyncCli.runWorker(new ByteArrayInputStream(requests.getBytes("UTF-8")), new PrintStream(responses, true), new PrefEntryParseService())
+
+        List<Map> parsed = responses.toString("UTF-8").readLines().collect { new JsonSlurper().parseText(it) as Map }
+        assertThat(parsed*.requestId).containsExactly(0, 2, 3).inOrder()
+        assertThat(parsed*.exitCode).containsExactly(PSyncCli.EXIT_FAILED, PSyncCli.EXIT_FAILED, PSyncCli.EXIT_OK).inOrder()
+        assertThat(parsed[1].output as String).contains "XMLStreamException"
+        assertThat(new File("$OUT_PATH/worker_bad/com/flipboard/psync/test/P.java").exists()).isTrue()
+
+        brokenFile.delete()
+        new File("$OUT_PATH/worker_bad").deleteDir()
+    }
+
+    @Test
+    public void testVariantsShareParseService() {
+        Project project = TestHelper.evaluatableAppProject()
+        PSyncPlugin plugin = new PSyncPlugin()
+        plugin.apply(project)
+        project.evaluate()
+
+        PrefEntryParseService service = PSyncPlugin.parseServiceFor(project)
+        List<String> sources = []
+        project.android.applicationVariants.all { ApplicationVariant variant ->
+            PSyncTask syncTask = project.tasks."generatePrefKeysFor${variant.name.capitalize()}" as PSyncTask
+            assertThat(syncTask.parseService).isSameAs service
+
+            syncTask.generate(TestHelper.getTaskInputs())
+            sources.add(syncTask.generatedFile.text)
+        }
+
+        // debug and release both only have src/main/res/xml/prefs.xml
+        assertThat(sources).hasSize 2
+        assertThat(sources[1]).isEqualTo sources[0]
+        assertThat(service.parseCount).isEqualTo 1
+        assertThat(service.hitCount).isEqualTo 1
+
+        project.buildDir.deleteDir()
+    }
+
+    @Test
+    public void testGeneratedOutputIsDeterministic() {
+        List<File> files = [new File("$RESOURCE_PATH/prefs.xml"), new File("$FIXTURE_WORKING_DIR/src/main/res/xml/prefs.xml")]
+        List<PrefEntry> forward = PrefEntryParser.getPrefEntriesFromFiles(files, 1).toBlocking().first()
+        List<PrefEntry> parallel = PrefEntryParser.getPrefEntriesFromFiles(files, 4).toBlocking().first()
+
+        File firstDir = new File("$OUT_PATH/deterministic/first")
+        File secondDir = new File("$OUT_PATH/deterministic/second")
+        File first = PClassGenerator.writeSource(PClassGenerator.generateSource(forward, "com.flipboard.psync.test", "P", true), "com.flipboard.psync.test", firstDir, "P")
+        File second = PClassGenerator.writeSource(PClassGenerator.generateSource(parallel, "com.flipboard.psync.test", "P", true), "com.flipboard.psync.test", secondDir, "P")
+
+        assertThat(first).isEqualTo new File(firstDir, "com/flipboard/psync/test/P.java")
+        assertThat(second.bytes).isEqualTo first.bytes
+        assertThat(new String(first.bytes, "UTF-8")).isEqualTo PClassGenerator.generateSource(forward, "com.flipboard.psync.test", "P", true)
+
+        new File("$OUT_PATH/deterministic").deleteDir()
+    }
+
+    @Test
+    public void testGenerationEditor() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        File outputDir = new File("$OUT_PATH/editor")
+        PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", true)
+
+        CompilationUnit cu = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/P.java"))
+        ClassOrInterfaceDeclaration pClass = cu.getTypes()[0] as ClassOrInterfaceDeclaration
+
+        MethodDeclaration edit = findMethod(pClass, "edit")
+        assertThat(isPSF(edit.modifiers))
+        assertThat(edit.type.toString()).endsWith "Editor"
+        assertThat(edit.body.stmts[0].expr.toString()).endsWith "Editor(PREFERENCES.edit())"
+
+        ClassOrInterfaceDeclaration editor = findType(pClass, "Editor")
+        assertThat(isPSF(editor.modifiers))
+        FieldDeclaration delegate = findField(editor, "delegate")
+        assertThat(Modifier.isPrivate(delegate.modifiers))
+        assertThat(delegate.type.toString()).isEqualTo "SharedPreferences.Editor"
+
+        // One setter per typed entry, prefCatServer has no type
+        List<MethodDeclaration> setters = editor.members.findAll {
+            it instanceof MethodDeclaration && !(it.name in ["remove", "apply", "commit", "rxCommit"])
+        } as List<MethodDeclaration>
+        assertThat(setters.collect {it.name}).containsExactly("numberOfColumns", "numberOfRows", "primaryColor",
+                "requestAgent", "requestTypes", "serverUrl", "showImages", "useInputs").inOrder()
+
+        MethodDeclaration colNumSetter = setters[0]
+        assertThat(Modifier.isPublic(colNumSetter.modifiers))
+        assertThat(Modifier.isStatic(colNumSetter.modifiers)).isFalse()
+        assertThat(colNumSetter.type.toString()).endsWith "Editor"
+        assertThat(colNumSetter.parameters[0].type.toString()).isEqualTo "int"
+        assertThat(colNumSetter.body.stmts.collect {it.toString()}).containsExactly("delegate.putInt(P.numberOfColumns.key, val);", "return this;").inOrder()
+        MethodDeclaration serverUrlSetter = setters[5]
+        assertThat(serverUrlSetter.parameters[0].type.toString()).isEqualTo "String"
+        assertThat(serverUrlSetter.body.stmts[0].toString()).isEqualTo "delegate.putString(P.serverUrl.key, val);"
+
+        assertThat(findMethod(editor, "remove").body.stmts[0].toString()).isEqualTo "delegate.remove(key);"
+        MethodDeclaration apply = findMethod(editor, "apply")
+        assertThat(apply.type.toString()).isEqualTo "void"
+        assertThat(apply.body.stmts.collect {it.toString()}).containsExactly "delegate.apply();"
+        MethodDeclaration commit = findMethod(editor, "commit")
+        assertThat(commit.type.toString()).isEqualTo "boolean"
+        MethodDeclaration rxCommit = findMethod(editor, "rxCommit")
+        assertThat(rxCommit.type.toString()).isEqualTo "Observable<Boolean>"
+
+        outputDir.deleteDir()
+    }
+
+    @Test
+    public void testEditorSplitsLargeRemoveSwitch() {
+        List<PrefEntry> entries = []
+        for (int i = 0; i <= PClassGenerator.ENTRIES_PER_METHOD; i++) {
+            PrefEntry entry = PrefEntry.create("key_$i".toString(), i)
+            entry.preferenceFile = "other"
+            entries.add(entry)
+        }
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", GenerationOptions.create(false))
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        ClassOrInterfaceDeclaration editor = findType(pClass, "Editor")
+
+        // A helper per ENTRIES_PER_METHOD keys, the default file gets whatever none of them knows
+        MethodDeclaration remove = findMethod(editor, "remove")
+        assertThat(remove.body.stmts[0].toString()).startsWith "if (!(removeFromPreferenceFile0(key) || removeFromPreferenceFile1(key))) {"
+        assertThat(remove.body.stmts[0].toString()).contains "delegate.remove(key);"
+        MethodDeclaration first = findMethod(editor, "removeFromPreferenceFile0")
+        assertThat(Modifier.isPrivate(first.modifiers))
+        assertThat(first.type.toString()).isEqualTo "boolean"
+        assertThat((first.body.stmts[0] as SwitchStmt).entries).hasSize PClassGenerator.ENTRIES_PER_METHOD
+        assertThat((findMethod(editor, "removeFromPreferenceFile1").body.stmts[0] as SwitchStmt).entries).hasSize 1
+    }
+
+    @Test
+    public void testGenerationSnapshot() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        File outputDir = new File("$OUT_PATH/snapshot")
+        PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", false)
+
+        CompilationUnit cu = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/P.java"))
+        ClassOrInterfaceDeclaration pClass = cu.getTypes()[0] as ClassOrInterfaceDeclaration
+
+        MethodDeclaration snapshotMethod = findMethod(pClass, "snapshot")
+        assertThat(isPSF(snapshotMethod.modifiers))
+        assertThat(snapshotMethod.body.stmts).hasSize 1
+        assertThat(snapshotMethod.body.stmts[0].expr.toString()).endsWith "Snapshot(PREFERENCES.getAll())"
+
+        ClassOrInterfaceDeclaration snapshot = findType(pClass, "Snapshot")
+        assertThat(isPSF(snapshot.modifiers))
+        FieldDeclaration presentKeys = findField(snapshot, "presentKeys")
+        assertThat(Modifier.isPrivate(presentKeys.modifiers))
+        assertThat(presentKeys.type.toString()).isEqualTo "BitSet"
+
+        // One private field and public accessor per typed entry, prefCatServer has no type
+        List<FieldDeclaration> values = snapshot.members.findAll {
+            it instanceof FieldDeclaration && it.variables[0].id.name != "presentKeys"
+        } as List<FieldDeclaration>
+        assertThat(values.collect {it.variables[0].id.name}).containsExactly("numberOfColumns", "numberOfRows",
+                "primaryColor", "requestAgent", "requestTypes", "serverUrl", "showImages", "useInputs").inOrder()
+        assertThat(values.collect {it.type.toString()}).containsExactly("int", "int", "int", "String", "String",
+                "String", "boolean", "boolean").inOrder()
+        values.each {
+            assertThat(Modifier.isPrivate(it.modifiers))
+            assertThat(Modifier.isStatic(it.modifiers)).isFalse()
+        }
+        MethodDeclaration colNumAccessor = findMethod(snapshot, "numberOfColumns")
+        assertThat(Modifier.isPublic(colNumAccessor.modifiers))
+        assertThat(colNumAccessor.type.toString()).isEqualTo "int"
+        assertThat(colNumAccessor.body.stmts[0].toString()).isEqualTo "return numberOfColumns;"
+
+        ConstructorDeclaration constructor = snapshot.members.find {it instanceof ConstructorDeclaration} as ConstructorDeclaration
+        assertThat(Modifier.isPrivate(constructor.modifiers))
+        assertThat(constructor.parameters[0].type.toString()).isEqualTo "Map<String, ?>"
+        List<String> constructorStmts = constructor.block.stmts.collect {it.toString()}
+        assertThat(constructorStmts).contains "value = all.get(P.numberOfColumns.key);"
+        // Nothing else reads from SharedPreferences
+        assertThat(constructorStmts.findAll {it.contains("PREFERENCES")}).isEmpty()
+
+        MethodDeclaration isSet = findMethod(snapshot, "isSet")
+        assertThat(isSet.type.toString()).isEqualTo "boolean"
+        assertThat(findMethod(snapshot, "toString")).isNotNull()
+
+        MethodDeclaration restore = findMethod(pClass, "restore")
+        assertThat(isPSF(restore.modifiers))
+        assertThat(restore.type.toString()).isEqualTo "boolean"
+        assertThat(restore.parameters[0].type.toString()).endsWith "Snapshot"
+        // One editor, a put or remove per typed entry, one commit
+        assertThat(restore.body.stmts).hasSize 10
+        assertThat(restore.body.stmts[0].toString()).endsWith "Editor editor = edit();"
+        assertThat(restore.body.stmts[1]).isInstanceOf IfStmt
+        assertThat(restore.body.stmts[1].toString()).contains "editor.numberOfColumns(snapshot.numberOfColumns);"
+        assertThat(restore.body.stmts[1].toString()).contains "editor.remove(P.numberOfColumns.key);"
+        assertThat(restore.body.stmts[9].toString()).isEqualTo "return editor.commit();"
+
+        outputDir.deleteDir()
+    }
+
+    @Test
+    public void testLargeSnapshotIsReadInChunks() {
+        int count = PClassGenerator.ENTRIES_PER_METHOD * 2 + 1
+        List<PrefEntry> entries = []
+        for (int i = 0; i < count; i++) {
+            entries.add(PrefEntry.create("key_$i".toString(), i))
+        }
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", GenerationOptions.create(false))
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        ClassOrInterfaceDeclaration snapshot = findType(pClass, "Snapshot")
+
+        // Each method only calls a helper per ENTRIES_PER_METHOD entries
+        ConstructorDeclaration constructor = snapshot.members.find {it instanceof ConstructorDeclaration} as ConstructorDeclaration
+        assertThat(constructor.block.stmts.collect {it.toString()}).containsExactly("presentKeys = new BitSet($count);".toString(),
+                "readValues0(all);", "readValues1(all);", "readValues2(all);").inOrder()
+        assertThat(findMethod(snapshot, "readValues2").body.stmts.collect {it.toString()}).contains "presentKeys.set(${count - 1});".toString()
+        assertThat(findMethod(snapshot, "isSet").body.stmts[0].toString()).isEqualTo "return isSet0(key) || isSet1(key) || isSet2(key);"
+        assertThat(Modifier.isPrivate(findMethod(snapshot, "isSet0").modifiers))
+        assertThat(findMethod(snapshot, "toString").body.stmts).hasSize 5
+        assertThat(findMethod(snapshot, "appendValues1").body.stmts[0].toString()).startsWith 'builder.append(", key_'
+
+        MethodDeclaration restore = findMethod(pClass, "restore")
+        assertThat(restore.body.stmts.collect {it.toString()}.subList(1, 4)).containsExactly("restoreValues0(snapshot, editor);",
+                "restoreValues1(snapshot, editor);", "restoreValues2(snapshot, editor);").inOrder()
+        assertThat(findMethod(pClass, "restoreValues0").body.stmts).hasSize PClassGenerator.ENTRIES_PER_METHOD
+    }
+
+    @Test
+    public void testShardedGeneration() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        // Pretend the rows and columns came from another file
+        entries.findAll { it.key.startsWith("number_of_") }.each { it.sourceFile = "src/main/res/xml/prefs_grid.xml" }
+        GenerationOptions options = GenerationOptions.create(false)
+        options.shardByFile = true
+
+        Map<String, String> sources = PClassGenerator.generateSources(entries, "com.flipboard.psync.test", "P", options)
+        assertThat(sources.keySet()).containsExactly("P", "Prefs", "PrefsGrid").inOrder()
+
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(sources.P.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        assertThat(pClass.members.findAll { it instanceof ClassOrInterfaceDeclaration }).isEmpty()
+        FieldDeclaration preferences = findField(pClass, "PREFERENCES")
+        assertThat(Modifier.isPrivate(preferences.modifiers)).isFalse()
+        assertThat(Modifier.isStatic(preferences.modifiers))
+        assertThat(findMethod(pClass, "init")).isNotNull()
+        assertThat(findMethod(pClass, "clearResolvedDefaults").body.stmts.collect {it.toString()})
+                .containsExactly("Prefs.clearResolvedDefaults();", "PrefsGrid.clearResolvedDefaults();").inOrder()
+
+        ClassOrInterfaceDeclaration grid = JavaParser.parse(new ByteArrayInputStream(sources.PrefsGrid.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        assertThat(grid.name).isEqualTo "PrefsGrid"
+        assertThat(Modifier.isPublic(grid.modifiers))
+        List<String> gridBlocks = grid.members.findAll { it instanceof ClassOrInterfaceDeclaration }.collect { it.name }
+        assertThat(gridBlocks).containsExactly("Editor", "Snapshot", "numberOfColumns", "numberOfRows").inOrder()
+        ClassOrInterfaceDeclaration numRows = findType(grid, "numberOfRows")
+        assertThat(findMethod(numRows, "get").body.stmts[0].expr.toString()).isEqualTo "P.PREFERENCES.getInt(key, defaultValue())"
+        assertThat(findMethod(numRows, "defaultValue").body.stmts[0].thenStmt.stmts[0].toString()).isEqualTo "resolvedDefaultValue = P.RESOURCES.getInteger(defaultResId);"
+        assertThat(findMethod(grid, "clearResolvedDefaults").body.stmts.collect {it.toString()}).containsExactly "numberOfRows.clearResolvedDefault();"
+        assertThat(findMethod(grid, "edit").body.stmts[0].expr.toString()).endsWith "Editor(P.PREFERENCES.edit())"
+
+        ClassOrInterfaceDeclaration rest = JavaParser.parse(new ByteArrayInputStream(sources.Prefs.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findType(rest, "showImages")).isNotNull()
+        assertThat(findType(rest, "numberOfRows")).isNull()
+    }
+
+    @Test
+    public void testFlatGeneration() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        GenerationOptions options = GenerationOptions.create(true)
+        options.cacheValues = true
+        options.flat = true
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        List<String> nestedTypes = pClass.members.findAll { it instanceof ClassOrInterfaceDeclaration }.collect { it.name }
+        assertThat(nestedTypes).containsExactly("Editor", "Snapshot").inOrder()
+
+        assertThat(findField(pClass, "KEY_NUMBER_OF_ROWS").variables[0].init.toString()).isEqualTo "\"number_of_rows\""
+        assertThat(findField(pClass, "DEFAULT_RES_ID_NUMBER_OF_ROWS").variables[0].init.toString()).isEqualTo "R.integer.num_rows"
+        assertThat(findMethod(pClass, "defaultNumberOfRows").body.stmts[0].thenStmt.stmts[0].toString())
+                .isEqualTo "resolvedDefaultNumberOfRows = RESOURCES.getInteger(DEFAULT_RES_ID_NUMBER_OF_ROWS);"
+        assertThat(findMethod(pClass, "getNumberOfRows").toString())
+                .contains "cachedNumberOfRows = PREFERENCES.getInt(KEY_NUMBER_OF_ROWS, defaultNumberOfRows());"
+        assertThat(findMethod(pClass, "putNumberOfRows").body.stmts[1].toString())
+                .isEqualTo "return PREFERENCES.edit().putInt(KEY_NUMBER_OF_ROWS, val);"
+        assertThat(findMethod(pClass, "rxNumberOfRows").body.stmts[0].toString()).isEqualTo "return RX_PREFERENCES.getInteger(KEY_NUMBER_OF_ROWS);"
+        assertThat(findMethod(pClass, "entriesRequestTypes")).isNotNull()
+        assertThat(findMethod(pClass, "clearResolvedDefaults").body.stmts.collect { it.toString() }).contains "hasResolvedDefaultNumberOfRows = false;"
+
+        ClassOrInterfaceDeclaration editor = findType(pClass, "Editor")
+        assertThat(findMethod(editor, "numberOfRows").body.stmts[0].toString()).isEqualTo "delegate.putInt(P.KEY_NUMBER_OF_ROWS, val);"
+        ClassOrInterfaceDeclaration snapshot = findType(pClass, "Snapshot")
+        String snapshotSource = snapshot.toString()
+        assertThat(snapshotSource).contains "value = all.get(P.KEY_NUMBER_OF_ROWS);"
+        assertThat(snapshotSource).contains "this.numberOfRows = P.defaultNumberOfRows();"
+    }
+
+    @Test
+    public void testGenerationWithObservers() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        options.generateObservers = true
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        List<String> interfaces = pClass.members.findAll { it instanceof ClassOrInterfaceDeclaration && it.interface }.collect { it.name }
+        assertThat(interfaces).containsExactly("OnBooleanChangeListener", "OnIntChangeListener", "OnStringChangeListener")
+        assertThat(findMethod(findType(pClass, "OnIntChangeListener"), "onChanged").parameters[0].type.toString()).isEqualTo "int"
+
+        String setSharedPreferences = findMethod(pClass, "setSharedPreferences").toString()
+        assertThat(setSharedPreferences).contains "PREFERENCES.registerOnSharedPreferenceChangeListener(CACHE_INVALIDATOR);"
+        assertThat(setSharedPreferences).contains "PREFERENCES.registerOnSharedPreferenceChangeListener(CHANGE_DISPATCHER);"
+        String dispatchChange = findMethod(pClass, "dispatchChange").toString()
+        assertThat(dispatchChange).contains "invalidateCachedValues(key);"
+        assertThat(dispatchChange).contains "case \"number_of_rows\":"
+        assertThat(dispatchChange).contains "numberOfRows.notifyObservers();"
+
+        ClassOrInterfaceDeclaration numberOfRows = findType(pClass, "numberOfRows")
+        assertThat(findField(numberOfRows, "observers").type.toString()).isEqualTo "Set<OnIntChangeListener>"
+        assertThat(findMethod(numberOfRows, "observe").parameters[0].type.toString()).isEqualTo "OnIntChangeListener"
+        assertThat(findMethod(numberOfRows, "stopObserving")).isNotNull()
+        String notifyObservers = findMethod(numberOfRows, "notifyObservers").toString()
+        assertThat(notifyObservers).contains "int value = get();"
+        assertThat(notifyObservers).contains "listener.onChanged(value);"
+
+        options.flat = true
+        source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findMethod(pClass, "observeUseInputs").parameters[0].type.toString()).isEqualTo "OnBooleanChangeListener"
+        assertThat(findMethod(pClass, "notifyUseInputsObservers").toString()).contains "boolean value = getUseInputs();"
+        assertThat(findMethod(pClass, "dispatchChange").toString()).contains "notifyUseInputsObservers();"
+    }
+
+    @Test
+    public void testGenerationWithAsyncInit() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        GenerationOptions options = GenerationOptions.create(true)
+        options.asyncInit = true
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8"))).types[0] as ClassOrInterfaceDeclaration
+
+        assertThat(Modifier.isVolatile(findField(pClass, "PREFERENCES").modifiers)).isTrue()
+        assertThat(Modifier.isVolatile(findField(pClass, "RX_PREFERENCES").modifiers)).isTrue()
+        assertThat(findField(pClass, "READY").type.toString()).isEqualTo "CountDownLatch"
+
+        List<MethodDeclaration> inits = pClass.members.findAll { it instanceof MethodDeclaration && it.name == "init" }
+        assertThat(inits.collect { it.parameters.size() }).containsExactly(1, 2).inOrder()
+        assertThat(inits[0].body.stmts[0].toString()).isEqualTo "init(applicationContext, AsyncTask.THREAD_POOL_EXECUTOR);"
+        String asyncInit = inits[1].toString()
+        assertThat(asyncInit).contains "executor.execute("
+        assertThat(asyncInit).doesNotContain "setSharedPreferences(PreferenceManager"
+
+        assertThat(findMethod(pClass, "setSharedPreferences").toString()).contains "READY.countDown();"
+        MethodDeclaration isReady = findMethod(pClass, "isReady")
+        assertThat(Modifier.isPublic(isReady.modifiers)).isTrue()
+        assertThat(isReady.body.stmts[0].toString()).isEqualTo "return READY.getCount() == 0;"
+        MethodDeclaration awaitReady = findMethod(pClass, "awaitReady")
+        assertThat(awaitReady.parameters.collect { it.type.toString() }).containsExactly("long", "TimeUnit").inOrder()
+        assertThat(Modifier.isPrivate(findMethod(pClass, "preferences").modifiers)).isTrue()
+
+        // Everything reading the preferences waits for them
+        ClassOrInterfaceDeclaration colNum = findType(pClass, "numberOfColumns")
+        assertThat(findMethod(colNum, "get").body.stmts[0].toString()).isEqualTo "return preferences().getInt(key, defaultValue());"
+        assertThat(findMethod(colNum, "put").body.stmts[0].toString()).isEqualTo "return preferences().edit().putInt(key, val);"
+        assertThat(findMethod(colNum, "rx").body.stmts[0].toString()).isEqualTo "return rxPreferences().getInteger(key);"
+        assertThat(findMethod(pClass, "edit").body.stmts[0].toString()).endsWith "Editor(preferences().edit());"
+        assertThat(findMethod(pClass, "snapshot").body.stmts[0].toString()).endsWith "Snapshot(preferences().getAll());"
+    }
+
+    @Test
+    public void testGenerationWithMappedBackend() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        options.backend = GenerationOptions.BACKEND_MAPPED
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        CompilationUnit cu = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8")))
+        assertThat(cu.imports.collect { it.name.toString() }).containsAllOf("com.flipboard.psync.runtime.PrefStore", "com.flipboard.psync.runtime.MappedPrefStore")
+        ClassOrInterfaceDeclaration pClass = cu.types[0] as ClassOrInterfaceDeclaration
+
+        assertThat(findField(pClass, "PREFERENCES").type.toString()).isEqualTo "PrefStore"
+        assertThat(findField(pClass, "CACHE_INVALIDATOR").type.toString()).isEqualTo "PrefStore.OnSharedPreferenceChangeListener"
+        assertThat(findMethod(pClass, "setSharedPreferences").parameters[0].type.toString()).isEqualTo "PrefStore"
+        String init = findMethod(pClass, "init").toString()
+        assertThat(init).contains "MappedPrefStore.open(storeFile)"
+        assertThat(init).contains "MappedPrefStore.migrate(storeFile, PreferenceManager.getDefaultSharedPreferences(applicationContext).getAll())"
+        assertThat(init).contains "setSharedPreferences(preferences);"
+
+        ClassOrInterfaceDeclaration colNum = findType(pClass, "numberOfColumns")
+        assertThat(findMethod(colNum, "put").type.toString()).isEqualTo "PrefStore.Editor"
+        assertThat(findField(findType(pClass, "Editor"), "delegate").type.toString()).isEqualTo "PrefStore.Editor"
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGenerationRejectsUnknownBackend() {
+        GenerationOptions options = GenerationOptions.create(false)
+        options.backend = "sqlite"
+        PClassGenerator.generateSource(Collections.emptyList(), "com.flipboard.psync.test", "P", options)
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGenerationRejectsRxWithMappedBackend() {
+        // Rx-Preferences needs SharedPreferences
+        GenerationOptions options = GenerationOptions.create(true)
+        options.backend = GenerationOptions.BACKEND_MAPPED
+        PClassGenerator.generateSource(Collections.emptyList(), "com.flipboard.psync.test", "P", options)
+    }
+
+    @Test
+    void testPreferenceFileIsInherited() {
+        File xml = new File("$OUT_PATH/preference_files.xml")
+        xml.parentFile.mkdirs()
+        xml.text = """<?xml version="1.0" encoding="utf-8"?>
+<PreferenceScreen xmlns:android="http://schemas.android.com/apk/res/android"
+    xmlns:tools="http://schemas.android.com/tools">
+    <CheckBoxPreference android:key="hot_flag" android:defaultValue="true" />
+    <PreferenceCategory android:key="cold" tools:preferenceFile="cold_settings">
+        <Preference android:key="cold_name" android:defaultValue="name" />
+        <Preference android:key="debug_name" android:defaultValue="debug" tools:preferenceFile="debug" />
+    </PreferenceCategory>
+    <Preference android:key="hot_name" android:defaultValue="hot" />
+</PreferenceScreen>
+"""
+
+        Map<String, String> files = PrefEntryParser.getPrefEntriesFromFile(xml).collectEntries { [it.key, it.preferenceFile] }
+        assertThat(files).containsEntry("hot_flag", null)
+        assertThat(files).containsEntry("cold_name", "cold_settings")
+        assertThat(files).containsEntry("debug_name", "debug")
+        assertThat(files).containsEntry("hot_name", null)
+        xml.delete()
+    }
+
+    @Test
+    public void testGenerationWithPreferenceFiles() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        PrefEntry numberOfRows = entries.find { it.key == "number_of_rows" }
+        numberOfRows.preferenceFile = "layout_settings"
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        // Everything else from prefs.xml goes to another file, the attribute wins for number_of_rows
+        options.preferenceFiles = ["prefs": "other"]
+
+        String source = PClassGenerator.generateSource(entries, "com.flipboard.psync.test", "P", options)
+        CompilationUnit cu = JavaParser.parse(new ByteArrayInputStream(source.getBytes("UTF-8")))
+        ClassOrInterfaceDeclaration pClass = cu.types[0] as ClassOrInterfaceDeclaration
+
+        assertThat(findField(pClass, "PREFERENCES_LAYOUT_SETTINGS").type.toString()).isEqualTo "SharedPreferences"
+        assertThat(findField(pClass, "PREFERENCES_OTHER")).isNotNull()
+        assertThat(findMethod(pClass, "preferencesLayoutSettings").toString()).contains 'CONTEXT.getSharedPreferences("layout_settings", Context.MODE_PRIVATE)'
+        assertThat(findMethod(pClass, "init").toString()).contains "CONTEXT = applicationContext"
+
+        assertThat(findMethod(findType(pClass, "numberOfRows"), "get").toString()).contains "preferencesLayoutSettings()"
+        assertThat(findMethod(findType(pClass, "numberOfColumns"), "get").toString()).contains "preferencesOther()"
+
+        ClassOrInterfaceDeclaration editor = findType(pClass, "Editor")
+        assertThat(findMethod(editor, "numberOfRows").toString()).contains "delegateLayoutSettings().putInt"
+        assertThat(findMethod(editor, "commit").toString()).contains "committed &= delegateLayoutSettings.commit()"
+        assertThat(findMethod(editor, "remove").toString()).contains 'case "number_of_rows":'
+        assertThat(findType(pClass, "Snapshot").toString()).contains "allLayoutSettings = preferencesLayoutSettings().getAll()"
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGenerationRejectsPreferenceFilesWithMappedBackend() {
+        PrefEntry entry = PrefEntry.create("key", true)
+        entry.preferenceFile = "other"
+        GenerationOptions options = GenerationOptions.create(false)
+        options.backend = GenerationOptions.BACKEND_MAPPED
+        PClassGenerator.generateSource(Collections.singletonList(entry), "com.flipboard.psync.test", "P", options)
+    }
+
+    @Test
+    public void testWriteSourcesOnlyWritesChanges() {
+        File outputDir = new File("$OUT_PATH/shards")
+        File packageDir = new File(outputDir, "com/flipboard/psync/test")
+        List<File> written = PClassGenerator.writeSources([P: "class P {}", A: "class A {}"], "com.flipboard.psync.test", outputDir)
+        assertThat(written.collect { it.name }).containsExactly("P.java", "A.java")
+
+        File stale = new File(packageDir, "Stale.java")
+        stale.text = "class Stale {}"
+        long longAgo = 1000L
+        new File(packageDir, "P.java").setLastModified(longAgo)
+
+        written = PClassGenerator.writeSources([P: "class P {}", A: "class A { int a; }"], "com.flipboard.psync.test", outputDir)
+        assertThat(written.collect { it.name }).containsExactly "A.java"
+        assertThat(new File(packageDir, "P.java").lastModified()).isEqualTo longAgo
+        assertThat(new File(packageDir, "A.java").text).isEqualTo "class A { int a; }"
+        assertThat(stale.exists()).isFalse()
+
+        outputDir.deleteDir()
+    }
+
+    @Test
+    public void testStreamingGenerationOfLargePreferenceSets() {
+        int count = 50000
+        List<PrefEntry> entries = new ArrayList<>(count)
+        for (int i = 0; i < count; i++) {
+            Object defaultValue = i % 3 == 0 ? Boolean.TRUE : i % 3 == 1 ? Integer.valueOf(i) : "value_$i".toString()
+            PrefEntry entry = PrefEntry.create("key_$i".toString(), defaultValue)
+            entry.sourceFile = "src/main/res/xml/prefs_general.xml"
+            entries.add(entry)
+        }
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        options.generateObservers = true
+        int maxEntries = PClassGenerator.maxEntriesPerClass(options)
+        int parts = (count + maxEntries - 1) / maxEntries
+        assertThat(parts).isGreaterThan 1
+
+        File outputDir = new File("$OUT_PATH/large")
+        File packageDir = new File(outputDir, "com/flipboard/psync/test")
+        options.shardByFile = true
+        List<File> written = PClassGenerator.writeSources(entries, "com.flipboard.psync.test", "P", options, outputDir)
+        assertThat(written).hasSize parts + 1
+        assertThat(packageDir.list().length).isEqualTo parts + 1
+
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new File(packageDir, "P.java")).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findType(pClass, "key0")).isNull()
+        assertThat(findMethod(pClass, "invalidateCachedValues").body.stmts).hasSize parts
+        assertThat(findMethod(pClass, "dispatchChange").body.stmts[parts - 1].toString()).isEqualTo "PrefsGeneral${parts}.dispatchChange(key);".toString()
+
+        ClassOrInterfaceDeclaration first = JavaParser.parse(new File(packageDir, "PrefsGeneral1.java")).types[0] as ClassOrInterfaceDeclaration
+        List<String> firstBlocks = first.members.findAll { it instanceof ClassOrInterfaceDeclaration }.collect { it.name } - ["Editor", "Snapshot"]
+        assertThat(firstBlocks).hasSize maxEntries
+        assertThat(firstBlocks.first()).isEqualTo "key0"
+        assertThat(findMethod(findType(first, "key0"), "get").toString()).contains "cachedValue = P.PREFERENCES.getBoolean(key, defaultValue());"
+        assertThat(findMethod(first, "edit")).isNotNull()
+
+        // Every key ends up in exactly one class, and no class holds more than it can
+        Set<String> keys = new HashSet<>()
+        for (int part = 1; part <= parts; part++) {
+            String source = new File(packageDir, "PrefsGeneral${part}.java").text
+            List<String> partKeys = (source =~ /public static final String key = "([^"]+)";/).collect { it[1] }
+            assertThat(partKeys.size()).isAtMost maxEntries
+            keys.addAll(partKeys)
+        }
+        assertThat(keys).hasSize count
+        assertThat(keys).contains "key_49999"
+
+        outputDir.deleteDir()
+    }
+
+    @Test
+    public void testOverflowingShardsAreSplit() {
+        GenerationOptions options = GenerationOptions.create(false)
+        options.shardByFile = true
+        int maxEntries = PClassGenerator.maxEntriesPerClass(options)
+        List<PrefEntry> entries = []
+        for (int i = 0; i <= maxEntries; i++) {
+            PrefEntry entry = PrefEntry.create("key_$i".toString(), i)
+            entry.sourceFile = "src/main/res/xml/prefs_general.xml"
+            entries.add(entry)
+        }
+        PrefEntry other = PrefEntry.create("other", true)
+        other.sourceFile = "src/main/res/xml/prefs_grid.xml"
+        entries.add(other)
+
+        Map<String, List<PrefEntry>> classes = PClassGenerator.groupByClass(entries, "P", options)
+        assertThat(classes.keySet()).containsExactly("PrefsGeneral1", "PrefsGeneral2", "PrefsGrid").inOrder()
+        assertThat(classes.PrefsGeneral1).hasSize maxEntries
+        assertThat(classes.PrefsGeneral2*.key).containsExactly "key_$maxEntries".toString()
+
+        // Without sharding P.someKey has to stay where it is, so P is never split
+        options.shardByFile = false
+        assertThat(PClassGenerator.groupByClass(entries.subList(0, maxEntries), "P", options)).isNull()
+        assertThat(PClassGenerator.groupByClass(entries, "P", options)).isNull()
+    }
+
+    @Test
+    public void testLargePClassCompilesWithoutSharding() {
+        int count = 1500
+        List<PrefEntry> entries = new ArrayList<>(count)
+        for (int i = 0; i < count; i++) {
+            Object defaultValue = i % 3 == 0 ? Boolean.TRUE : i % 3 == 1 ? Integer.valueOf(i) : "value_$i".toString()
+            PrefEntry entry = PrefEntry.create("key_$i".toString(), defaultValue)
+            entry.sourceFile = "src/main/res/xml/prefs_general.xml"
+            if (i % 2 == 0) {
+                entry.preferenceFile = "other"
+            }
+            entries.add(entry)
+        }
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        options.generateObservers = true
+
+        File outputDir = new File("$OUT_PATH/large-p/source")
+        File classesDir = new File("$OUT_PATH/large-p/classes")
+        List<File> written = PClassGenerator.writeSources(entries, "com.flipboard.psync.test", "P", options, outputDir)
+        assertThat(written*.name).containsExactly "P.java"
+
+        // Every per-entry method is split, so none of them gets too big for javac
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(written[0]).types[0] as ClassOrInterfaceDeclaration
+        assertThat(findType(pClass, "key0")).isNotNull()
+        assertThat(findMethod(pClass, "invalidateCachedValues0")).isNotNull()
+        assertThat(findMethod(pClass, "dispatchChange0")).isNotNull()
+        assertThat(findMethod(pClass, "restoreValues0")).isNotNull()
+        assertThat(findMethod(findType(pClass, "Snapshot"), "readValues0")).isNotNull()
+        assertThat(findMethod(findType(pClass, "Editor"), "removeFromPreferenceFile0")).isNotNull()
+
+        List<File> classpath = System.getProperty("java.class.path").split(File.pathSeparator).collect { new File(it) }
+        List<File> compiled = PClassCompiler.compile("com.flipboard.psync.test", outputDir, classesDir, classpath, [], [])
+        assertThat(new File(classesDir, "com/flipboard/psync/test/P.class").exists()).isTrue()
+        assertThat(compiled.size()).isGreaterThan count
+
+        new File("$OUT_PATH/large-p").deleteDir()
+    }
+
+    @Test
+    public void testArrayResourceDefaultsAreCopied() {
+        List<PrefEntry> entries = [PrefEntryParser.generateResourcePrefEntry("favorite_topics", "@array/default_topics")]
+        assertThat(entries[0].valueType).isEqualTo CharSequence[].class
+        GenerationOptions options = GenerationOptions.create(false)
+        File outputDir = new File("$OUT_PATH/array_default")
+
+        PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", options)
+        ClassOrInterfaceDeclaration pClass = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/P.java")).getTypes()[0] as ClassOrInterfaceDeclaration
+        MethodDeclaration defaultGetter = findMethod(findType(pClass, "favoriteTopics"), "defaultValue")
+        assertThat(defaultGetter.body.stmts[1].toString()).isEqualTo "return resolvedDefaultValue.clone();"
+
+        options.flat = true
+        PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", options)
+        pClass = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/P.java")).getTypes()[0] as ClassOrInterfaceDeclaration
+        defaultGetter = findMethod(pClass, "defaultFavoriteTopics")
+        assertThat(defaultGetter.body.stmts[1].toString()).isEqualTo "return resolvedDefaultFavoriteTopics.clone();"
+
+        outputDir.deleteDir()
+    }
+
+    @Test
+    public void testGenerationWithCachedValues() {
+        List<PrefEntry> entries = PrefEntryParser.getPrefEntriesFromFiles(Collections.singletonList(new File("$RESOURCE_PATH/prefs.xml"))).toBlocking().first()
+        GenerationOptions options = GenerationOptions.create(false)
+        options.cacheValues = true
+        File outputDir = new File("$OUT_PATH/cached")
+        PClassGenerator.generate(entries, "com.flipboard.psync.test", outputDir, "P", options)
+
+        CompilationUnit cu = JavaParser.parse(new File(outputDir, "com/flipboard/psync/test/P.java"))
+        ClassOrInterfaceDeclaration pClass = cu.getTypes()[0] as ClassOrInterfaceDeclaration
+
+        assertThat(findField(pClass, "CACHE_LOCK")).isNotNull()
+        FieldDeclaration invalidator = findField(pClass, "CACHE_INVALIDATOR")
+        assertThat(invalidator).isNotNull()
+        assertThat(invalidator.type.toString()).isEqualTo "SharedPreferences.OnSharedPreferenceChangeListener"
+        assertThat(findMethod(pClass, "invalidateCachedValues")).isNotNull()
+        MethodDeclaration setSharedPreferences = findMethod(pClass, "setSharedPreferences")
+        assertThat(setSharedPreferences.body.stmts.collect {it.toString()}).contains "PREFERENCES.registerOnSharedPreferenceChangeListener(CACHE_INVALIDATOR);"
+
+        ClassOrInterfaceDeclaration colNum = findType(pClass, "numberOfColumns")
+        FieldDeclaration cachedValue = findField(colNum, "cachedValue")
+        assertThat(cachedValue.type.toString()).isEqualTo "int"
+        assertThat(Modifier.isPrivate(cachedValue.modifiers)).isTrue()
+        FieldDeclaration hasCachedValue = findField(colNum, "hasCachedValue")
+        assertThat(hasCachedValue.type.toString()).isEqualTo "boolean"
+        assertThat(Modifier.isVolatile(hasCachedValue.modifiers)).isTrue()
+        MethodDeclaration colNumGetter = findMethod(colNum, "get")
+        assertThat(colNumGetter.body.stmts).hasSize 2
+        assertThat(colNumGetter.body.stmts[1]).isInstanceOf ReturnStmt
+        assertThat(colNumGetter.body.stmts[1].expr.toString()).isEqualTo "cachedValue"
+        MethodDeclaration colNumPutter = findMethod(colNum, "put")
+        assertThat(colNumPutter.body.stmts).hasSize 2
+        assertThat(colNumPutter.body.stmts[0].toString()).isEqualTo "invalidate();"
+        assertThat(findMethod(colNum, "invalidate")).isNotNull()
+        assertThat(findMethod(colNum, "cache").parameters[0].type.toString()).isEqualTo "int"
+
+        MethodDeclaration cacheWrittenValue = findMethod(pClass, "cacheWrittenValue")
+        assertThat(cacheWrittenValue.body.stmts[0].toString()).contains "invalidateCachedValues(key);"
+        assertThat(cacheWrittenValue.body.toString()).contains "numberOfColumns.cache((Integer) value);"
+        assertThat(cacheWrittenValue.body.toString()).contains "serverUrl.cache((String) value);"
+
+        ClassOrInterfaceDeclaration editor = findType(pClass, "Editor")
+        assertThat(findField(editor, "writtenValues").type.toString()).isEqualTo "Map<String, Object>"
+        assertThat(findMethod(editor, "numberOfColumns").body.stmts.collect {it.toString()}).contains "writtenValues.put(P.numberOfColumns.key, val);"
+        assertThat(findMethod(editor, "remove").body.stmts.collect {it.toString()}).contains "writtenValues.put(key, null);"
+        // Only the keys written through this editor are updated, with the values it wrote
+        List<String> applyStmts = findMethod(editor, "apply").body.stmts.collect {it.toString()}
+        assertThat(applyStmts).hasSize 3
+        assertThat(applyStmts[0]).isEqualTo "delegate.apply();"
+        assertThat(applyStmts[1]).contains "cacheWrittenValue(written.getKey(), written.getValue());"
+        assertThat(applyStmts[2]).isEqualTo "writtenValues.clear();"
+        assertThat(applyStmts.join("\n")).doesNotContain "invalidateCachedValues(null)"
+        // Nothing is known to be written after a failed commit
+        List<String> commitStmts = findMethod(editor, "commit").body.stmts.collect {it.toString()}
+        assertThat(commitStmts[1]).contains "cacheWrittenValue(written.getKey(), committed ? written.getValue() : null);"
+        assertThat(findMethod(editor, "rxCommit")).isNull()
+
+        ClassOrInterfaceDeclaration serverUrl = findType(pClass, "serverUrl")
+        assertThat(findField(serverUrl, "cachedValue").type.toString()).isEqualTo "String"
+
+        // No type, nothing to cache
+        ClassOrInterfaceDeclaration catServer = findType(pClass, "prefCatServer")
+        assertThat(catServer.members).hasSize 1
+
+        outputDir.deleteDir()
+    }
+
     @Test
     public void testBasicConfiguration() {
         Project project = TestHelper.evaluatableAppProject()
@@ -687,7 +2013,7 @@ class PsyncTest {
             PSyncTask syncTask = task as PSyncTask
             assertThat(syncTask.packageName).isEqualTo "com.flipboard.psync.test"
             assertThat(syncTask.className).isEqualTo "P"
-            assertThat(syncTask.outputDir).isEqualTo new File("$project.buildDir/generated/source/psync/$variant.flavorName/$variant.buildType.name/")
+            assertThat(syncTask.outputDir).isEqualTo new File("$project.buildDir/generated/source/psync/$variant.dirName")
 
             List<File> xmlFiles = syncTask.getSource().collect{it}
             assertThat(xmlFiles).isNotNull()
@@ -748,7 +2074,7 @@ class PsyncTest {
             PSyncTask syncTask = task as PSyncTask
             assertThat(syncTask.packageName).isEqualTo "com.flipboard.psync.test"
             assertThat(syncTask.className).isEqualTo "P"
-            assertThat(syncTask.outputDir).isEqualTo new File("$project.buildDir/generated/source/psync/$variant.flavorName/$variant.buildType.name/")
+            assertThat(syncTask.outputDir).isEqualTo new File("$project.buildDir/generated/source/psync/$variant.dirName")
 
             List<File> xmlFiles = syncTask.getSource().collect{it}
             assertThat(xmlFiles).isNotNull()
@@ -1,5 +1,8 @@
 package com.flipboard.psync
 
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration
+import com.github.javaparser.ast.body.FieldDeclaration
+import com.github.javaparser.ast.body.MethodDeclaration
 import org.gradle.api.Action
 import org.gradle.api.Project
 import org.gradle.api.tasks.incremental.IncrementalTaskInputs
@@ -78,7 +81,47 @@ final class TestHelper {
         }
     }
 
+    public static IncrementalTaskInputs getIncrementalTaskInputs(List<File> outOfDate, List<File> removed) {
+        return new IncrementalTaskInputs() {
+            @Override
+            boolean isIncremental() {
+                return true
+            }
+
+            @Override
+            void outOfDate(Action<? super InputFileDetails> action) {
+                outOfDate.each { action.execute(fileDetails(it, false)) }
+            }
+
+            @Override
+            void removed(Action<? super InputFileDetails> action) {
+                removed.each { action.execute(fileDetails(it, true)) }
+            }
+        }
+    }
+
+    private static InputFileDetails fileDetails(File file, boolean isRemoved) {
+        return [
+                isAdded   : { false },
+                isModified: { !isRemoved },
+                isRemoved : { isRemoved },
+                getFile   : { file }
+        ] as InputFileDetails
+    }
+
     public static boolean isPSF(int modifiers) {
         return Modifier.isPublic(modifiers) && Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)
     }
+
+    public static ClassOrInterfaceDeclaration findType(ClassOrInterfaceDeclaration type, String name) {
+        return type.members.find { it instanceof ClassOrInterfaceDeclaration && it.name == name } as ClassOrInterfaceDeclaration
+    }
+
+    public static FieldDeclaration findField(ClassOrInterfaceDeclaration type, String name) {
+        return type.members.find { it instanceof FieldDeclaration && it.variables[0].id.name == name } as FieldDeclaration
+    }
+
+    public static MethodDeclaration findMethod(ClassOrInterfaceDeclaration type, String name) {
+        return type.members.find { it instanceof MethodDeclaration && it.name == name } as MethodDeclaration
+    }
 }